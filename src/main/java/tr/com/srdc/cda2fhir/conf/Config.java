@@ -46,7 +46,8 @@ public class Config {
     public static final CodingDt DEFAULT_DIAGNOSTICREPORT_PERFORMER_DATA_ABSENT_REASON_CODE = new CodingDt().setSystem("http://hl7.org/fhir/data-absent-reason").setCode("unknown").setDisplay("Unknown");
     public static final boolean DEFAULT_IMMUNIZATION_REPORTED = false;
 
-    public static final String VALIDATION_DEFINITION_PATH = "src/main/resources/validation-min.xml.zip";
+    // loaded from the classpath once per JVM, see ValidationDefinitions; a file path can be given as well
+    public static final String VALIDATION_DEFINITION_PATH = "classpath:validation-min.xml.zip";
     public static final int DEFAULT_VALIDATOR_TERMINOLOGY_SERVER_CHECK_TIMEOUT = 10000; // in milliseconds, > 0
     // if the array containing URLs doesn't give an accessible URL, this URL will be used
     public static final String DEFAULT_VALIDATOR_TERMINOLOGY_SERVER_URL = "http://tx.fhir.org/r2";
@@ -56,7 +57,8 @@ public class Config {
             "http://fhir.i2b2.org/srv-dstu2-0.2/api/open"
     		};
     
-    public static final String NARRATIVE_PROPERTIES_FILE_PATH = "file:src/main/resources/narrative/customnarrative.properties";
+    // the narrative templates are loaded from the classpath, so that they are found when the library is used as a jar
+    public static final String NARRATIVE_PROPERTIES_FILE_PATH = "classpath:narrative/customnarrative.properties";
 
     private static boolean generateNarrative = true;
     private static INarrativeGenerator narrativeGenerator;
@@ -78,6 +80,27 @@ public class Config {
         return fhirCtx;
     }
 
+    /**
+     * Returns a FHIR context that generates the narratives of the resources while encoding them, or one that never does, regardless of setGenerateNarrative.
+     * Unlike the global setting, the choice can be made per call, e.g. per encoded bundle.
+     * @param withNarratives true for the context generating the empty narratives while encoding
+     * @return A FHIR context whose narrative generator does not change
+     */
+    public static FhirContext getFhirContext(boolean withNarratives) {
+        return withNarratives ? NarrativeContexts.WITH_NARRATIVES : NarrativeContexts.WITHOUT_NARRATIVES;
+    }
+
+    /**
+     * @return The narrative generator for the templates in NARRATIVE_PROPERTIES_FILE_PATH. There is a single instance, so the templates are loaded and compiled once.
+     */
+    public static INarrativeGenerator getNarrativeGenerator() {
+        return narrativeGenerator;
+    }
+
+    public static boolean isGenerateNarrative() {
+        return generateNarrative;
+    }
+
     public static void setGenerateNarrative(boolean generateNar) {
         generateNarrative = generateNar;
         if(generateNarrative)
@@ -94,4 +117,14 @@ public class Config {
         return generateDafProfileMetadata;
     }
 
+    // created on first use; most applications use the global context only
+    private static class NarrativeContexts {
+        private static final FhirContext WITH_NARRATIVES = FhirContext.forDstu2();
+        private static final FhirContext WITHOUT_NARRATIVES = FhirContext.forDstu2();
+
+        static {
+            WITH_NARRATIVES.setNarrativeGenerator(narrativeGenerator);
+        }
+    }
+
 }
@@ -0,0 +1,86 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress counters of a batch transformation. The counters are updated by the worker threads and can be read at any time.
+ */
+public class BatchProgress {
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final long startTime = System.currentTimeMillis();
+
+    void documentSubmitted() {
+        submitted.incrementAndGet();
+    }
+
+    void documentSucceeded() {
+        succeeded.incrementAndGet();
+    }
+
+    void documentFailed() {
+        failed.incrementAndGet();
+    }
+
+    /**
+     * @return Number of documents read from the input and submitted for transformation
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * @return Number of documents transformed and handed to the sink
+     */
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    /**
+     * @return Number of documents that could not be loaded or transformed
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return Number of documents submitted but not yet handed to the sink
+     */
+    public long getInFlight() {
+        return getSubmitted() - getSucceeded() - getFailed();
+    }
+
+    /**
+     * @return Milliseconds passed since the batch has started
+     */
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    @Override
+    public String toString() {
+        return "submitted: " + getSubmitted() + ", succeeded: " + getSucceeded() + ", failed: " + getFailed() + ", elapsed: " + getElapsedMillis() + " ms";
+    }
+}
@@ -0,0 +1,331 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import org.openhealthtools.mdht.uml.cda.ClinicalDocument;
+import org.openhealthtools.mdht.uml.cda.util.CDAUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+public class BatchTransformerImpl implements IBatchTransformer {
+
+    private final ICDATransformer cdaTransformer;
+    private final ExecutorService executor;
+    private final int threads;
+    private final boolean virtualThreads;
+    private final int maxInFlight;
+    private OutputOrder outputOrder = OutputOrder.COMPLETION;
+    private volatile BatchProgress progress;
+
+    private final Logger logger = LoggerFactory.getLogger(BatchTransformerImpl.class);
+
+    /**
+     * Constructs a batch transformer that runs each batch on its own pool of the given number of worker threads.
+     * At most twice as many documents as workers are in flight at any time.
+     * @param cdaTransformer The transformer to be shared by the workers
+     * @param threads Number of worker threads, > 0
+     */
+    public BatchTransformerImpl(ICDATransformer cdaTransformer, int threads) {
+        this(cdaTransformer, null, threads, false, 2 * threads);
+    }
+
+    /**
+     * Constructs a batch transformer that runs the documents on the given executor, which is not shut down by the batch transformer
+     * @param cdaTransformer The transformer to be shared by the workers
+     * @param executor The executor the documents will be loaded and transformed on
+     * @param maxInFlight Maximum number of documents submitted but not yet handed to the sink, > 0. Reading of the input blocks when the limit is reached.
+     */
+    public BatchTransformerImpl(ICDATransformer cdaTransformer, ExecutorService executor, int maxInFlight) {
+        this(cdaTransformer, executor, 0, false, maxInFlight);
+    }
+
+    /**
+     * Constructs a batch transformer that loads and transforms each document on its own virtual thread.
+     * Suits the pipelines that block on I/O while loading the documents or writing the outcomes, as tens of thousands of documents can be kept in flight.
+     * @param cdaTransformer The transformer to be shared by the workers
+     * @param maxInFlight Maximum number of documents submitted but not yet handed to the sink, > 0. Reading of the input blocks when the limit is reached.
+     * @return A batch transformer running on virtual threads
+     */
+    public static BatchTransformerImpl virtualThreadPerDocument(ICDATransformer cdaTransformer, int maxInFlight) {
+        return new BatchTransformerImpl(cdaTransformer, null, 0, true, maxInFlight);
+    }
+
+    private BatchTransformerImpl(ICDATransformer cdaTransformer, ExecutorService executor, int threads, boolean virtualThreads, int maxInFlight) {
+        if(cdaTransformer == null)
+            throw new IllegalArgumentException("CDA transformer should not be null");
+        if(executor == null && !virtualThreads && threads < 1)
+            throw new IllegalArgumentException("Number of worker threads should be positive");
+        if(maxInFlight < 1)
+            throw new IllegalArgumentException("Maximum number of in-flight documents should be positive");
+        this.cdaTransformer = cdaTransformer;
+        this.executor = executor;
+        this.threads = threads;
+        this.virtualThreads = virtualThreads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets the order in which the outcomes are handed to the sink
+     * @param outputOrder COMPLETION (default) or INPUT
+     */
+    public void setOutputOrder(OutputOrder outputOrder) {
+        this.outputOrder = outputOrder;
+    }
+
+    public BatchProgress getProgress() {
+        return progress;
+    }
+
+    public BatchProgress transformAll(Iterable<ClinicalDocument> documents, IBundleSink sink) {
+        return run(documents.iterator(), new DocumentLoader<ClinicalDocument>() {
+            public ClinicalDocument load(ClinicalDocument document) {
+                return document;
+            }
+        }, sink);
+    }
+
+    public BatchProgress transformAll(Stream<Path> paths, IBundleSink sink) {
+        // Load MDHT CDA packages. Otherwise ContinuityOfCareDocument and similar documents will not be recognised.
+        CDAUtil.loadPackages();
+        return run(paths.iterator(), new DocumentLoader<Path>() {
+            public ClinicalDocument load(Path path) throws Exception {
+                try (InputStream is = Files.newInputStream(path)) {
+                    return CDAUtil.load(is);
+                }
+            }
+        }, sink);
+    }
+
+    /**
+     * Submits the sources to the workers, blocking while maxInFlight documents are in flight, and waits for all of them to be handed to the sink.
+     * If the calling thread is interrupted, the documents in flight are cancelled and the sink is closed before returning.
+     * @param sources Sources of the documents to be transformed
+     * @param loader Loads a CDA document from its source on a worker
+     * @param sink The sink receiving the outcomes
+     * @return The final progress counters of the batch
+     */
+    private <T> BatchProgress run(Iterator<T> sources, final DocumentLoader<T> loader, IBundleSink sink) {
+        final BatchProgress batchProgress = new BatchProgress();
+        this.progress = batchProgress;
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final Delivery delivery = new Delivery(sink, batchProgress, inFlight, outputOrder);
+        // the submitted documents not yet handed to the sink, to be cancelled on interrupt
+        final Map<Long, Future<?>> tasks = new ConcurrentHashMap<Long, Future<?>>();
+        // the first error, other than a StackOverflowError, thrown by a worker; stops the batch
+        final AtomicReference<Error> fatal = new AtomicReference<Error>();
+        ExecutorService workers = newWorkers();
+
+        try {
+            long index = 0;
+            while(sources.hasNext() && fatal.get() == null) {
+                final T source = sources.next();
+                final long documentIndex = index++;
+                inFlight.acquire();
+                batchProgress.documentSubmitted();
+                FutureTask<Void> task = new FutureTask<Void>(new Runnable() {
+                    public void run() {
+                        try {
+                            delivery.deliver(documentIndex, transform(loader, source));
+                        } catch (Error e) {
+                            // hand the document over so that its permit is released, and rethrow the error from the batch
+                            fatal.compareAndSet(null, e);
+                            delivery.deliver(documentIndex, new Outcome(null, new ExecutionException(e)));
+                        } finally {
+                            tasks.remove(documentIndex);
+                        }
+                    }
+                }, null);
+                tasks.put(documentIndex, task);
+                try {
+                    workers.execute(task);
+                } catch (RejectedExecutionException e) {
+                    tasks.remove(documentIndex);
+                    delivery.deliver(documentIndex, new Outcome(null, e));
+                }
+            }
+            // all the permits are back once every document is handed to the sink
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // nothing reaches the sink after the batch returns; the tasks are cancelled but a given executor is not shut down
+            delivery.close();
+            for(Future<?> task : tasks.values())
+                task.cancel(true);
+            logger.error("Interrupted while running the batch transformation. Cancelled the documents in flight, returning the progress so far", e);
+        } finally {
+            if(executor == null)
+                workers.shutdown();
+        }
+
+        logger.info("Batch transformation finished. {}", batchProgress);
+        Error error = fatal.get();
+        if(error != null)
+            throw error;
+        return batchProgress;
+    }
+
+    /**
+     * Returns the executor the documents of a batch will run on
+     * @return The executor given at construction, or a new one owned by the batch
+     */
+    private ExecutorService newWorkers() {
+        if(executor != null)
+            return executor;
+        if(virtualThreads)
+            return Executors.newVirtualThreadPerTaskExecutor();
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Loads and transforms a single document, isolating any failure
+     * @param loader Loads a CDA document from its source
+     * @param source Source of the document
+     * @return The outcome of the transformation
+     */
+    private <T> Outcome transform(DocumentLoader<T> loader, T source) {
+        try {
+            ClinicalDocument cda = loader.load(source);
+            Bundle bundle = cdaTransformer.transformDocument(cda);
+            if(bundle == null)
+                return new Outcome(null, new IllegalArgumentException("Document could not be transformed; it is either empty or not a Continuity of Care Document"));
+            return new Outcome(bundle, null);
+        } catch (Exception e) {
+            logger.error("Exception occurred while transforming a document of the batch. Ignoring", e);
+            return new Outcome(null, e);
+        } catch (StackOverflowError e) {
+            // a deeply nested document; the stack is unwound by now, so the batch goes on with the documents after it
+            logger.error("Error occurred while transforming a document of the batch. Ignoring", e);
+            return new Outcome(null, new ExecutionException(e));
+        }
+    }
+
+    /**
+     * Loads a CDA document from its source
+     */
+    private interface DocumentLoader<T> {
+        ClinicalDocument load(T source) throws Exception;
+    }
+
+    /**
+     * The result of a single document: either a bundle or an error
+     */
+    private static class Outcome {
+        private final Bundle bundle;
+        private final Exception error;
+
+        private Outcome(Bundle bundle, Exception error) {
+            this.bundle = bundle;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Hands the outcomes to the sink one at a time, either as they arrive or in the input order, and releases the in-flight permits
+     */
+    private class Delivery {
+        private final IBundleSink sink;
+        private final BatchProgress batchProgress;
+        private final Semaphore inFlight;
+        private final OutputOrder order;
+        private final ReentrantLock lock = new ReentrantLock();
+        // outcomes waiting for their predecessors when the output is in input order; bounded by maxInFlight
+        private final Map<Long, Outcome> pending = new HashMap<Long, Outcome>();
+        private long nextIndex = 0;
+        private boolean closed = false;
+
+        private Delivery(IBundleSink sink, BatchProgress batchProgress, Semaphore inFlight, OutputOrder order) {
+            this.sink = sink;
+            this.batchProgress = batchProgress;
+            this.inFlight = inFlight;
+            this.order = order;
+        }
+
+        private void deliver(long index, Outcome outcome) {
+            lock.lock();
+            try {
+                if(closed) {
+                    inFlight.release();
+                    return;
+                }
+                if(order == OutputOrder.INPUT) {
+                    pending.put(index, outcome);
+                    Outcome next;
+                    while((next = pending.remove(nextIndex)) != null) {
+                        handOver(nextIndex++, next);
+                    }
+                } else {
+                    handOver(index, outcome);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Stops handing the outcomes to the sink; returns once no outcome is being handed over
+         */
+        private void close() {
+            lock.lock();
+            try {
+                closed = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void handOver(long index, Outcome outcome) {
+            try {
+                if(outcome.error == null) {
+                    batchProgress.documentSucceeded();
+                    sink.accept(index, outcome.bundle);
+                } else {
+                    batchProgress.documentFailed();
+                    sink.onError(index, outcome.error);
+                }
+            } catch (RuntimeException | Error e) {
+                // the outcomes pending behind this one are handed over only if the loop in deliver goes on
+                logger.error("Exception occurred in the sink while handling document {}. Ignoring", index, e);
+            } finally {
+                inFlight.release();
+            }
+        }
+    }
+}
@@ -20,6 +20,8 @@ package tr.com.srdc.cda2fhir.transform;
  * #L%
  */
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
 import ca.uhn.fhir.model.dstu2.resource.*;
 import ca.uhn.fhir.model.dstu2.resource.Bundle.Entry;
@@ -29,34 +31,62 @@ import ca.uhn.fhir.model.dstu2.resource.Observation;
 import ca.uhn.fhir.model.dstu2.resource.Procedure;
 import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
 import ca.uhn.fhir.model.dstu2.valueset.HTTPVerbEnum;
+import ca.uhn.fhir.narrative.INarrativeGenerator;
+import org.eclipse.emf.ecore.EObject;
 import org.openhealthtools.mdht.uml.cda.*;
 import org.openhealthtools.mdht.uml.cda.consol.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tr.com.srdc.cda2fhir.conf.Config;
 import tr.com.srdc.cda2fhir.util.IdGeneratorEnum;
+import tr.com.srdc.cda2fhir.util.NarrativeModeEnum;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.IntFunction;
 
 public class CCDTransformerImpl implements ICDATransformer, Serializable {
 
-    private int counter;
+    // minimum number of entries of a section to fork them on the entry pool
+    public static final int DEFAULT_ENTRY_PARALLELISM_THRESHOLD = 64;
+
     private IdGeneratorEnum idGenerator;
     private IResourceTransformer resTransformer;
-    private ResourceReferenceDt patientRef;
+    private transient ExecutorService sectionExecutor;
+    private transient ForkJoinPool entryPool;
+    private int entryParallelismThreshold;
+    private boolean deduplicateEntities = true;
+    private transient SharedEntityCache sharedEntityCache;
+    private transient CodeableConceptCache codeableConceptCache;
+    private NarrativeModeEnum sectionNarrativeMode = NarrativeModeEnum.EAGER;
+    private boolean generateResourceNarratives;
 
     private final Logger logger = LoggerFactory.getLogger(CCDTransformerImpl.class);
 
+    // used for the ids requested outside of a document transformation, e.g. when the resource transformer is called directly
+    private final TransformationContext detachedContext;
+
     /**
      * Default constructor that initiates with a UUID resource id generator
      */
     public CCDTransformerImpl() {
-        this.counter = 0;
         // The default resource id pattern is UUID
         this.idGenerator = IdGeneratorEnum.UUID;
         resTransformer = new ResourceTransformerImpl(this);
-        this.patientRef = null;
+        this.detachedContext = new TransformationContext(IdGeneratorEnum.COUNTER);
+        this.entryParallelismThreshold = DEFAULT_ENTRY_PARALLELISM_THRESHOLD;
     }
 
     /**
@@ -70,23 +100,133 @@ public class CCDTransformerImpl implements ICDATransformer, Serializable {
     }
 
     public ResourceReferenceDt getPatientRef() {
-        return patientRef;
+        TransformationContext context = TransformationContext.current();
+        return context != null ? context.getPatientRef() : null;
     }
-    
-    public synchronized String getUniqueId() {
-        switch (this.idGenerator) {
-            case COUNTER:
-                return Integer.toString(++counter);
-            case UUID:
-            default:
-                return UUID.randomUUID().toString();
-        }
+
+    public String getUniqueId() {
+        TransformationContext context = TransformationContext.current();
+        if(context != null)
+            return context.getUniqueId();
+        // not within a document transformation
+        if(idGenerator == IdGeneratorEnum.COUNTER)
+            return detachedContext.getUniqueId();
+        return idGenerator.newGenerator().generateId();
+    }
+
+    public String getUniqueId(String resourceType, EObject source) {
+        TransformationContext context = TransformationContext.current();
+        if(context != null)
+            return context.getUniqueId(resourceType, source);
+        // not within a document transformation
+        if(idGenerator == IdGeneratorEnum.COUNTER)
+            return detachedContext.getUniqueId();
+        return idGenerator.newGenerator().generateId(resourceType, source);
+    }
+
+    /**
+     * Creates a new transformation context carrying the current options of the transformer
+     * @return A new TransformationContext with no patient reference
+     */
+    public TransformationContext newContext() {
+        TransformationContext context = new TransformationContext(idGenerator);
+        context.setDeduplicateEntities(deduplicateEntities);
+        context.setSharedEntityCache(sharedEntityCache);
+        context.setCodeableConceptCache(codeableConceptCache);
+        context.setSectionNarrativeMode(sectionNarrativeMode);
+        context.setGenerateResourceNarratives(generateResourceNarratives);
+        return context;
     }
 
     public void setIdGenerator(IdGeneratorEnum idGen) {
         this.idGenerator = idGen;
     }
 
+    /**
+     * Enables or disables the deduplication of the Practitioners and Organizations within a document.
+     * If enabled (default), an author, performer or organization occurring many times in a document is transformed once
+     * and the resulting Bundle contains a single entry for it, which all its occurrences refer to.
+     * The entities are matched by their ids, or by their names and addresses if they have no ids.
+     * @param deduplicateEntities true to transform repeating entities once
+     */
+    public void setDeduplicateEntities(boolean deduplicateEntities) {
+        this.deduplicateEntities = deduplicateEntities;
+    }
+
+    /**
+     * Sets the cache of the entities shared by the documents transformed by this transformer, e.g. in a batch run from one facility.
+     * The custodian and the other organizations, the practitioners, the locations and the substances then get stable resource ids across documents,
+     * and optionally are emitted only in the first document they occur in (see SharedEntityCache.setSkipKnownEntities).
+     * The same cache may be given to many transformers.
+     * @param sharedEntityCache The shared entity cache, or null to identify the entities within each document only (default)
+     */
+    public void setSharedEntityCache(SharedEntityCache sharedEntityCache) {
+        this.sharedEntityCache = sharedEntityCache;
+    }
+
+    /**
+     * Sets the cache of the coded values (CD) transformed to CodeableConcepts. A code repeated within a document or across the documents
+     * transformed by this transformer is then transformed once. The same cache may be given to many transformers;
+     * its hit and miss counts can be used to size it.
+     * @param codeableConceptCache The cache to be used, or null to transform every coded value (default)
+     */
+    public void setCodeableConceptCache(CodeableConceptCache codeableConceptCache) {
+        this.codeableConceptCache = codeableConceptCache;
+    }
+
+    /**
+     * Sets how the narratives of the sections are transformed. NONE leaves them out, e.g. for the pipelines that strip the narratives anyway.
+     * DEFERRED transforms each narrative only when its Composition is encoded, keeping the CDA document referred to until then.
+     * @param sectionNarrativeMode The way the section narratives are transformed. The default is EAGER.
+     */
+    public void setSectionNarrativeMode(NarrativeModeEnum sectionNarrativeMode) {
+        this.sectionNarrativeMode = sectionNarrativeMode != null ? sectionNarrativeMode : NarrativeModeEnum.EAGER;
+    }
+
+    /**
+     * Enables generating the narratives of the resulting resources as the last stage of the transformation, using the templates of
+     * Config.NARRATIVE_PROPERTIES_FILE_PATH. Since the parsers generate a narrative only for the resources whose text is empty,
+     * the bundle can then be encoded without narrative generation, e.g. by FHIRUtil.encodeToJSON(bundle, false), while keeping the narratives.
+     * The narratives are generated in parallel on the entry fork-join pool if one is set.
+     * @param generateResourceNarratives true to generate the narratives within the transformation. The default is false, leaving them to the encoding.
+     */
+    public void setGenerateResourceNarratives(boolean generateResourceNarratives) {
+        this.generateResourceNarratives = generateResourceNarratives;
+    }
+
+    /**
+     * Enables the parallel transformation of the sections of a document on the given executor.
+     * The sections are transformed concurrently and their entries are stitched into the Composition in the original document order.
+     * The resource ids are generated and the repeated entities are settled in document order once the sections are transformed (see TransformationContext),
+     * hence the resulting Bundle is the same as the one produced by the sequential transformation, ids included.
+     * The executor is not shut down by the transformer. A virtual thread per task executor may be given as well; the transformer guards its own
+     * shared state with locks rather than monitors, although the libraries it calls (e.g. EMF and HAPI) may still pin a carrier thread briefly.
+     * @param sectionExecutor The executor the sections will be transformed on. If null, the sections are transformed sequentially (default).
+     */
+    public void setSectionExecutor(ExecutorService sectionExecutor) {
+        this.sectionExecutor = sectionExecutor;
+    }
+
+    /**
+     * Enables splitting the entries of large sections (e.g. thousands of Result Organizers) into work-stealing tasks on the given pool.
+     * The pool may also be passed to setSectionExecutor, in which case the section and entry tasks share the same workers.
+     * Section entry references are kept in document order.
+     * @param entryPool The fork-join pool the entries will be transformed on. If null, the entries of a section are transformed sequentially (default).
+     */
+    public void setEntryForkJoinPool(ForkJoinPool entryPool) {
+        this.entryPool = entryPool;
+    }
+
+    /**
+     * Sets the minimum number of entries a section should contain to be transformed on the entry fork-join pool
+     * @param entryParallelismThreshold The threshold to be set, > 0. The default is DEFAULT_ENTRY_PARALLELISM_THRESHOLD.
+     */
+    public void setEntryParallelismThreshold(int entryParallelismThreshold) {
+        if(entryParallelismThreshold < 1)
+            throw new IllegalArgumentException("Entry parallelism threshold should be positive");
+        this.entryParallelismThreshold = entryParallelismThreshold;
+    }
+
     /**
      * @param cda A Consolidated CDA (C-CDA) 2.1 Continuity of Care Document (CCD) instance to be transformed
      * @param bundleType Desired type of the FHIR Bundle to be returned
@@ -96,9 +236,10 @@ public class CCDTransformerImpl implements ICDATransformer, Serializable {
      */
     public Bundle transformDocument(ClinicalDocument cda, BundleTypeEnum bundleType, String patientRef, Map<String, String> resourceProfileMap) {
         // The default transformer will use this patient reference if it is set.
-        this.patientRef = new ResourceReferenceDt("Patient/" + patientRef);
+        TransformationContext context = newContext();
+        context.setPatientRef(new ResourceReferenceDt("Patient/" + patientRef));
 
-        Bundle documentBundle =  transformDocument(cda);
+        Bundle documentBundle =  transformDocument(cda, context);
         if (documentBundle == null) return null;
 
         Bundle resultBundle = new Bundle();
@@ -140,9 +281,36 @@ public class CCDTransformerImpl implements ICDATransformer, Serializable {
      * @return A FHIR Bundle that contains a Composition corresponding to the CCD document and all other resources that are referenced within the Composition.
      */
     public Bundle transformDocument(ClinicalDocument cda) {
+        return transformDocument(cda, newContext());
+    }
+
+    /**
+     * Transforms a Consolidated CDA (C-CDA) 2.1 Continuity of Care Document (CCD) instance to a Bundle of corresponding FHIR resources, using the given context.
+     * The transformer keeps no per-document state; hence, the same instance can be used by many threads at the same time as long as each call has its own context.
+     * @param cda A Consolidated CDA (C-CDA) 2.1 Continuity of Care Document (CCD) instance to be transformed
+     * @param context The context of this transformation, which holds the patient reference, the id state and the options of the call
+     * @return A FHIR Bundle that contains a Composition corresponding to the CCD document and all other resources that are referenced within the Composition.
+     */
+    public Bundle transformDocument(ClinicalDocument cda, TransformationContext context) {
         if(cda == null)
             return null;
 
+        TransformationContext previous = TransformationContext.bind(context);
+        try {
+            return transformDocumentInContext(cda, context);
+        } finally {
+            TransformationContext.restore(previous);
+        }
+    }
+
+    /**
+     * Transforms the document while the given context is bound to the current thread
+     * @param cda A Consolidated CDA (C-CDA) 2.1 Continuity of Care Document (CCD) instance to be transformed
+     * @param context The context of this transformation
+     * @return A FHIR Bundle that contains a Composition corresponding to the CCD document and all other resources that are referenced within the Composition.
+     */
+    private Bundle transformDocumentInContext(ClinicalDocument cda, final TransformationContext context) {
+
         ContinuityOfCareDocument ccd = null;
 
         // first, cast the ClinicalDocument to ContinuityOfCareDocument
@@ -158,153 +326,270 @@ public class CCDTransformerImpl implements ICDATransformer, Serializable {
         // the first bundle entry is always the composition
         Composition ccdComposition = (Composition)ccdBundle.getEntry().get(0).getResource();
         // init the patient id reference if it is not given externally. the patient is always the 2nd bundle entry
-        if (patientRef == null)
-            patientRef = new ResourceReferenceDt(ccdBundle.getEntry().get(1).getResource().getId());
+        if (context.getPatientRef() == null)
+            context.setPatientRef(new ResourceReferenceDt(ccdBundle.getEntry().get(1).getResource().getId()));
         else // Correct the subject at composition with given patient reference.
-            ccdComposition.setSubject(patientRef);
+            ccdComposition.setSubject(context.getPatientRef());
 
         // transform the sections
-        for(Section cdaSec: ccd.getSections()) {
-            Composition.Section fhirSec = resTransformer.tSection2Section(cdaSec);
-            
-            if(fhirSec == null)
-            	continue;
-            else
-                ccdComposition.addSection(fhirSec);
-            
-            if(cdaSec instanceof AdvanceDirectivesSection) {
-
+        List<SectionResult> sectionResults = new ArrayList<SectionResult>();
+        if(sectionExecutor == null) {
+            for(Section cdaSec: ccd.getSections()) {
+                sectionResults.add(transformSection(cdaSec));
             }
-            else if(cdaSec instanceof AllergiesSection) {
-            	AllergiesSection allSec = (AllergiesSection) cdaSec;
-            	for(AllergyProblemAct probAct : allSec.getAllergyProblemActs()) {
-            		Bundle allBundle = resTransformer.tAllergyProblemAct2AllergyIntolerance(probAct);
-                    mergeBundles(allBundle, ccdBundle, fhirSec, AllergyIntolerance.class);
-            	}
+        } else {
+            // transform the sections concurrently, each within a context forked from the document's, and join them in document order
+            List<TransformationContext> forks = new ArrayList<TransformationContext>();
+            List<Future<SectionResult>> futures = new ArrayList<Future<SectionResult>>();
+            for(final Section cdaSec: ccd.getSections()) {
+                final TransformationContext fork = context.fork();
+                forks.add(fork);
+                futures.add(sectionExecutor.submit(new Callable<SectionResult>() {
+                    public SectionResult call() {
+                        TransformationContext previous = TransformationContext.bind(fork);
+                        try {
+                            return transformSection(cdaSec);
+                        } finally {
+                            TransformationContext.restore(previous);
+                        }
+                    }
+                }));
             }
-            else if(cdaSec instanceof EncountersSection) {
-                EncountersSection encSec = (EncountersSection) cdaSec;
-                for (EncounterActivities encAct : encSec.getConsolEncounterActivitiess()) {
-                    Bundle encBundle = resTransformer.tEncounterActivity2Encounter(encAct);
-                    mergeBundles(encBundle, ccdBundle, fhirSec, Encounter.class);
+            try {
+                for(Future<SectionResult> future : futures) {
+                    sectionResults.add(future.get());
                 }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                for(Future<SectionResult> future : futures)
+                    future.cancel(true);
+                logger.error("Interrupted while waiting for the sections to be transformed. Returning null", ex);
+                return null;
+            } catch (ExecutionException ex) {
+                for(Future<SectionResult> future : futures)
+                    future.cancel(true);
+                throw propagate(ex.getCause());
             }
-            else if(cdaSec instanceof FamilyHistorySection) {
-                FamilyHistorySection famSec = (FamilyHistorySection) cdaSec;
-                for(FamilyHistoryOrganizer fhOrganizer : famSec.getFamilyHistories()) {
-                    FamilyMemberHistory fmh = resTransformer.tFamilyHistoryOrganizer2FamilyMemberHistory(fhOrganizer);
-                    ResourceReferenceDt ref = fhirSec.addEntry();
-                    ref.setReference(fmh.getId());
-                    ccdBundle.addEntry(new Bundle.Entry().setResource(fmh));
+
+            // settle the ids and the repeated entities of the sections in document order, as the sequential transformation does
+            for(int i = 0; i < sectionResults.size(); i++) {
+                TransformationContext.Resolution resolution = context.join(forks.get(i));
+                if(sectionResults.get(i) != null) {
+                    resolution.resolve(sectionResults.get(i).bundle);
+                    resolution.resolve(sectionResults.get(i).fhirSec);
                 }
             }
-            else if(cdaSec instanceof FunctionalStatusSection) {
-                FunctionalStatusSection funcSec = (FunctionalStatusSection) cdaSec;
-                for(FunctionalStatusResultOrganizer funcOrganizer : funcSec.getFunctionalStatusResultOrganizers()) {
-                    for(org.openhealthtools.mdht.uml.cda.Observation funcObservation : funcOrganizer.getObservations()) {
-                        Bundle funcBundle = resTransformer.tFunctionalStatus2Observation(funcObservation);
-                        mergeBundles(funcBundle, ccdBundle, fhirSec, Observation.class);
-                    }
-                }
+        }
+
+        for(SectionResult sectionResult : sectionResults) {
+            if(sectionResult == null)
+                continue;
+            ccdComposition.addSection(sectionResult.fhirSec);
+            for(Entry entry : sectionResult.bundle.getEntry()) {
+                ccdBundle.addEntry(entry);
+            }
+        }
+
+        // the entities shared by many entries (e.g. the same author) are referenced from many bundles; keep a single entry for each
+        if(context.isDeduplicateEntities())
+            removeDuplicateEntries(ccdBundle, context);
+
+        if(context.isGenerateResourceNarratives())
+            generateNarratives(ccdBundle);
+
+        return ccdBundle;
+    }
+
+    /**
+     * Transforms a single CDA section and its entries within the context bound to the current thread. When the sections are transformed
+     * concurrently, each one is bound to its own context forked from the document's, so that the sections share no transformation state
+     * until they are joined.
+     * @param cdaSec A CDA Section instance
+     * @return A SectionResult holding the FHIR Section and a Bundle of the resources of its entries in document order, or null if the section could not be transformed
+     */
+    private SectionResult transformSection(Section cdaSec) {
+        Composition.Section fhirSec = resTransformer.tSection2Section(cdaSec);
+
+        if(fhirSec == null)
+            return null;
+
+        Bundle secBundle = new Bundle();
+
+        if(cdaSec instanceof AdvanceDirectivesSection) {
+
+        }
+        else if(cdaSec instanceof AllergiesSection) {
+            AllergiesSection allSec = (AllergiesSection) cdaSec;
+            for(Bundle allBundle : transformEntries(allSec.getAllergyProblemActs(), resTransformer::tAllergyProblemAct2AllergyIntolerance)) {
+                mergeBundles(allBundle, secBundle, fhirSec, AllergyIntolerance.class);
             }
-            else if(cdaSec instanceof ImmunizationsSection) {
-            	ImmunizationsSection immSec = (ImmunizationsSection) cdaSec;
-            	for(ImmunizationActivity immAct : immSec.getImmunizationActivities()) {
-            		Bundle immBundle = resTransformer.tImmunizationActivity2Immunization(immAct);
-                    mergeBundles(immBundle, ccdBundle, fhirSec, Immunization.class);
-            	}
+        }
+        else if(cdaSec instanceof EncountersSection) {
+            EncountersSection encSec = (EncountersSection) cdaSec;
+            for(Bundle encBundle : transformEntries(encSec.getConsolEncounterActivitiess(), resTransformer::tEncounterActivity2Encounter)) {
+                mergeBundles(encBundle, secBundle, fhirSec, Encounter.class);
             }
-            else if(cdaSec instanceof MedicalEquipmentSection) {
-                MedicalEquipmentSection equipSec = (MedicalEquipmentSection) cdaSec;
-                // Case 1: Entry is a Non-Medicinal Supply Activity (V2)
-                for(NonMedicinalSupplyActivity supplyActivity : equipSec.getNonMedicinalSupplyActivities()) {
-                    Device fhirDevice = resTransformer.tSupply2Device(supplyActivity);
-                    ResourceReferenceDt ref = fhirSec.addEntry();
-                    ref.setReference(fhirDevice.getId());
-                    ccdBundle.addEntry(new Bundle.Entry().setResource(fhirDevice));
-                }
-                // Case 2: Entry is a Medical Equipment Organizer, which is indeed a collection of Non-Medicinal Supply Activity (V2)
-                for(Organizer organizer : equipSec.getOrganizers()) {
-                    for(Supply supply : organizer.getSupplies()) {
-                        if(supply instanceof NonMedicinalSupplyActivity) {
-                            Device fhirDevice = resTransformer.tSupply2Device(supply);
-                            ResourceReferenceDt ref = fhirSec.addEntry();
-                            ref.setReference(fhirDevice.getId());
-                            ccdBundle.addEntry(new Bundle.Entry().setResource(fhirDevice));
-                        }
-                    }
-                }
-                // Case 3: Entry is a Procedure Activity Procedure (V2)
-                for(org.openhealthtools.mdht.uml.cda.Procedure procedure : equipSec.getProcedures()) {
-                    if(procedure instanceof ProcedureActivityProcedure) {
-                        Bundle procBundle = resTransformer.tProcedure2Procedure(procedure);
-                        mergeBundles(procBundle, ccdBundle, fhirSec, Procedure.class);
+        }
+        else if(cdaSec instanceof FamilyHistorySection) {
+            FamilyHistorySection famSec = (FamilyHistorySection) cdaSec;
+            for(FamilyMemberHistory fmh : transformEntries(famSec.getFamilyHistories(), resTransformer::tFamilyHistoryOrganizer2FamilyMemberHistory)) {
+                ResourceReferenceDt ref = fhirSec.addEntry();
+                ref.setReference(fmh.getId());
+                secBundle.addEntry(new Bundle.Entry().setResource(fmh));
+            }
+        }
+        else if(cdaSec instanceof FunctionalStatusSection) {
+            FunctionalStatusSection funcSec = (FunctionalStatusSection) cdaSec;
+            List<org.openhealthtools.mdht.uml.cda.Observation> funcObservations = new ArrayList<org.openhealthtools.mdht.uml.cda.Observation>();
+            for(FunctionalStatusResultOrganizer funcOrganizer : funcSec.getFunctionalStatusResultOrganizers()) {
+                funcObservations.addAll(funcOrganizer.getObservations());
+            }
+            for(Bundle funcBundle : transformEntries(funcObservations, resTransformer::tFunctionalStatus2Observation)) {
+                mergeBundles(funcBundle, secBundle, fhirSec, Observation.class);
+            }
+        }
+        else if(cdaSec instanceof ImmunizationsSection) {
+            ImmunizationsSection immSec = (ImmunizationsSection) cdaSec;
+            for(Bundle immBundle : transformEntries(immSec.getImmunizationActivities(), resTransformer::tImmunizationActivity2Immunization)) {
+                mergeBundles(immBundle, secBundle, fhirSec, Immunization.class);
+            }
+        }
+        else if(cdaSec instanceof MedicalEquipmentSection) {
+            MedicalEquipmentSection equipSec = (MedicalEquipmentSection) cdaSec;
+            // Case 1: Entry is a Non-Medicinal Supply Activity (V2)
+            for(NonMedicinalSupplyActivity supplyActivity : equipSec.getNonMedicinalSupplyActivities()) {
+                Device fhirDevice = resTransformer.tSupply2Device(supplyActivity);
+                ResourceReferenceDt ref = fhirSec.addEntry();
+                ref.setReference(fhirDevice.getId());
+                secBundle.addEntry(new Bundle.Entry().setResource(fhirDevice));
+            }
+            // Case 2: Entry is a Medical Equipment Organizer, which is indeed a collection of Non-Medicinal Supply Activity (V2)
+            for(Organizer organizer : equipSec.getOrganizers()) {
+                for(Supply supply : organizer.getSupplies()) {
+                    if(supply instanceof NonMedicinalSupplyActivity) {
+                        Device fhirDevice = resTransformer.tSupply2Device(supply);
+                        ResourceReferenceDt ref = fhirSec.addEntry();
+                        ref.setReference(fhirDevice.getId());
+                        secBundle.addEntry(new Bundle.Entry().setResource(fhirDevice));
                     }
                 }
             }
-            else if(cdaSec instanceof MedicationsSection) {
-                MedicationsSection medSec = (MedicationsSection) cdaSec;
-                for(MedicationActivity medAct : medSec.getMedicationActivities()) {
-                    Bundle medBundle = resTransformer.tMedicationActivity2MedicationStatement(medAct);
-                    mergeBundles(medBundle, ccdBundle, fhirSec, MedicationStatement.class);
+            // Case 3: Entry is a Procedure Activity Procedure (V2)
+            for(org.openhealthtools.mdht.uml.cda.Procedure procedure : equipSec.getProcedures()) {
+                if(procedure instanceof ProcedureActivityProcedure) {
+                    Bundle procBundle = resTransformer.tProcedure2Procedure(procedure);
+                    mergeBundles(procBundle, secBundle, fhirSec, Procedure.class);
                 }
             }
-            else if(cdaSec instanceof PayersSection) {
-
+        }
+        else if(cdaSec instanceof MedicationsSection) {
+            MedicationsSection medSec = (MedicationsSection) cdaSec;
+            for(Bundle medBundle : transformEntries(medSec.getMedicationActivities(), resTransformer::tMedicationActivity2MedicationStatement)) {
+                mergeBundles(medBundle, secBundle, fhirSec, MedicationStatement.class);
             }
-            else if(cdaSec instanceof PlanOfCareSection) {
+        }
+        else if(cdaSec instanceof PayersSection) {
+
+        }
+        else if(cdaSec instanceof PlanOfCareSection) {
 
+        }
+        else if(cdaSec instanceof ProblemSection) {
+            ProblemSection probSec = (ProblemSection) cdaSec;
+            for(Bundle conBundle : transformEntries(probSec.getConsolProblemConcerns(), resTransformer::tProblemConcernAct2Condition)) {
+                mergeBundles(conBundle, secBundle, fhirSec, Condition.class);
             }
-            else if(cdaSec instanceof ProblemSection) {
-                ProblemSection probSec = (ProblemSection) cdaSec;
-                for(ProblemConcernAct pcAct : probSec.getConsolProblemConcerns()) {
-                    Bundle conBundle = resTransformer.tProblemConcernAct2Condition(pcAct);
-                    mergeBundles(conBundle, ccdBundle, fhirSec, Condition.class);
-                }
+        }
+        else if(cdaSec instanceof ProceduresSection) {
+            ProceduresSection procSec = (ProceduresSection) cdaSec;
+            for(Bundle procBundle : transformEntries(procSec.getConsolProcedureActivityProcedures(), resTransformer::tProcedure2Procedure)) {
+                mergeBundles(procBundle, secBundle, fhirSec, Procedure.class);
             }
-            else if(cdaSec instanceof ProceduresSection) {
-                ProceduresSection procSec = (ProceduresSection) cdaSec;
-                for(ProcedureActivityProcedure proc : procSec.getConsolProcedureActivityProcedures()) {
-                    Bundle procBundle = resTransformer.tProcedure2Procedure(proc);
-                    mergeBundles(procBundle, ccdBundle, fhirSec, Procedure.class);
-                }
+        }
+        else if(cdaSec instanceof ResultsSection) {
+            ResultsSection resultSec = (ResultsSection) cdaSec;
+            for(Bundle resBundle : transformEntries(resultSec.getResultOrganizers(), resTransformer::tResultOrganizer2DiagnosticReport)) {
+                mergeBundles(resBundle, secBundle, fhirSec, DiagnosticReport.class);
             }
-            else if(cdaSec instanceof ResultsSection) {
-            	ResultsSection resultSec = (ResultsSection) cdaSec;
-            	for(ResultOrganizer resOrg : resultSec.getResultOrganizers()) {
-                    Bundle resBundle = resTransformer.tResultOrganizer2DiagnosticReport(resOrg);
-                    mergeBundles(resBundle, ccdBundle, fhirSec, DiagnosticReport.class);
-            	}
+        }
+        else if(cdaSec instanceof SocialHistorySection) {
+            SocialHistorySection socialSec = (SocialHistorySection) cdaSec;
+            /**
+             * The generic observation transformer should be able to transform all the possible entries:
+             *    Caregiver Characteristics
+             *    Characteristics of Home Environment
+             *    Cultural and Religious Observation
+             *    Pregnancy Observation
+             *    Smoking Status - Meaningful Use (V2)
+             *    Social History Observation (V3)
+             *    Tobacco Use (V2)
+             */
+            for(Bundle socialObsBundle : transformEntries(socialSec.getObservations(), resTransformer::tObservation2Observation)) {
+                mergeBundles(socialObsBundle, secBundle, fhirSec, Observation.class);
             }
-            else if(cdaSec instanceof SocialHistorySection) {
-                SocialHistorySection socialSec = (SocialHistorySection) cdaSec;
-                /**
-                 * The generic observation transformer should be able to transform all the possible entries:
-                 *    Caregiver Characteristics
-                 *    Characteristics of Home Environment
-                 *    Cultural and Religious Observation
-                 *    Pregnancy Observation
-                 *    Smoking Status - Meaningful Use (V2)
-                 *    Social History Observation (V3)
-                 *    Tobacco Use (V2)
-                 */
-                for(org.openhealthtools.mdht.uml.cda.Observation socialObs : socialSec.getObservations()) {
-                    Bundle socialObsBundle = resTransformer.tObservation2Observation(socialObs);
-                    mergeBundles(socialObsBundle, ccdBundle, fhirSec, Observation.class);
-                }
+        }
+        else if(cdaSec instanceof VitalSignsSection) {
+            VitalSignsSection vitalSec = (VitalSignsSection) cdaSec;
+            List<VitalSignObservation> vsObservations = new ArrayList<VitalSignObservation>();
+            for(VitalSignsOrganizer vsOrg : vitalSec.getVitalSignsOrganizers())	{
+                vsObservations.addAll(vsOrg.getVitalSignObservations());
             }
-            else if(cdaSec instanceof VitalSignsSection) {
-            	VitalSignsSection vitalSec = (VitalSignsSection) cdaSec;
-            	for(VitalSignsOrganizer vsOrg : vitalSec.getVitalSignsOrganizers())	{
-            		for(VitalSignObservation vsObs : vsOrg.getVitalSignObservations()) {
-            			Bundle vsBundle = resTransformer.tVitalSignObservation2Observation(vsObs);
-                        mergeBundles(vsBundle, ccdBundle, fhirSec, Observation.class);
-            		}
-            	}
+            for(Bundle vsBundle : transformEntries(vsObservations, resTransformer::tVitalSignObservation2Observation)) {
+                mergeBundles(vsBundle, secBundle, fhirSec, Observation.class);
             }
         }
 
-        return ccdBundle;
+        return new SectionResult(fhirSec, secBundle);
+    }
+
+    /**
+     * Applies the given transformation to each of the entries of a section.
+     * If an entry fork-join pool is set and the number of entries reaches the entry parallelism threshold, the entries are
+     * transformed as work-stealing tasks on that pool, each within a context forked from the calling thread's, which are joined in entry order.
+     * In any case, the results are returned in the order of the given entries, with the ids and entities of the sequential transformation.
+     * @param cdaEntries CDA entries to be transformed
+     * @param transformer The transformation to be applied to each entry
+     * @return A list containing the transformation result of each entry at the same index
+     */
+    private <T, R> List<R> transformEntries(List<T> cdaEntries, Function<T, R> transformer) {
+        if(entryPool == null || cdaEntries.size() < entryParallelismThreshold) {
+            List<R> results = new ArrayList<R>(cdaEntries.size());
+            for(T cdaEntry : cdaEntries) {
+                results.add(transformer.apply(cdaEntry));
+            }
+            return results;
+        }
+
+        // the workers transform each entry within a context forked from the one of the calling thread
+        final TransformationContext context = TransformationContext.current();
+        final List<TransformationContext> forks = new ArrayList<TransformationContext>(cdaEntries.size());
+        for(int i = 0; i < cdaEntries.size(); i++) {
+            forks.add(context.fork());
+        }
+        IntFunction<R> forkedTransformer = i -> {
+            TransformationContext previous = TransformationContext.bind(forks.get(i));
+            try {
+                return transformer.apply(cdaEntries.get(i));
+            } finally {
+                TransformationContext.restore(previous);
+            }
+        };
+
+        // split down to a few chunks per worker, so that idle workers have something to steal
+        int leafSize = cdaEntries.size() / (entryPool.getParallelism() * 4);
+        EntryTransformTask<R> task = new EntryTransformTask<R>(0, cdaEntries.size(), leafSize, forkedTransformer);
+        List<R> results;
+        // when the section itself is being transformed on the same pool, join the task from within instead of blocking a worker
+        if(ForkJoinTask.getPool() == entryPool)
+            results = task.invoke();
+        else
+            results = entryPool.invoke(task);
+
+        // settle the ids and the repeated entities of the entries in entry order
+        for(int i = 0; i < results.size(); i++) {
+            results.set(i, context.join(forks.get(i)).resolve(results.get(i)));
+        }
+        return results;
     }
 
     /**
@@ -330,6 +615,45 @@ public class CCDTransformerImpl implements ICDATransformer, Serializable {
     	}
     }
 
+    /**
+     * Removes the entries whose resource has already been added to the bundle by a previous entry, keeping the first occurrence.
+     * The resources emitted by a previous document, which are only referred to, are removed as well.
+     * @param bundle FHIR Bundle to be deduplicated
+     * @param context The context of the transformation that produced the bundle
+     */
+    private void removeDuplicateEntries(Bundle bundle, TransformationContext context) {
+        Set<IResource> added = Collections.newSetFromMap(new IdentityHashMap<IResource, Boolean>());
+        List<Entry> entries = new ArrayList<Entry>(bundle.getEntry().size());
+        for(Entry entry : bundle.getEntry()) {
+            if(entry != null && !context.isOmitted(entry.getResource()) && added.add(entry.getResource()))
+                entries.add(entry);
+        }
+        bundle.setEntry(entries);
+    }
+
+    /**
+     * Generates the narratives of the resources in the bundle whose text is empty, leaving the narratives already set (e.g. the ones of the sections) as they are.
+     * The generator holds the compiled templates and can be used by many threads; hence, the entries are processed on the entry fork-join pool if one is set.
+     * @param bundle FHIR Bundle whose resources' narratives are to be generated
+     */
+    private void generateNarratives(Bundle bundle) {
+        final INarrativeGenerator narrativeGenerator = Config.getNarrativeGenerator();
+        final FhirContext fhirCtx = Config.getFhirContext(true);
+        final List<Entry> entries = bundle.getEntry();
+        if(entryPool == null || entries.size() < entryParallelismThreshold) {
+            for(Entry entry : entries) {
+                generateNarrative(narrativeGenerator, fhirCtx, entry.getResource());
+            }
+        } else {
+            entryPool.submit(() -> entries.parallelStream().forEach(entry -> generateNarrative(narrativeGenerator, fhirCtx, entry.getResource()))).join();
+        }
+    }
+
+    private void generateNarrative(INarrativeGenerator narrativeGenerator, FhirContext fhirCtx, IResource resource) {
+        if(resource != null && resource.getText().isEmpty())
+            narrativeGenerator.generateNarrative(fhirCtx, resource, resource.getText());
+    }
+
     /**
      * Adds fullUrl field to the entry using it's resource id.
      * @param entry Entry which fullUrl field to be added.
@@ -348,4 +672,30 @@ public class CCDTransformerImpl implements ICDATransformer, Serializable {
         request.setUrl(entry.getResource().getResourceName());
         entry.setRequest(request);
     }
+
+    /**
+     * Rethrows the cause of a failed section transformation in the calling thread
+     * @param cause The throwable thrown by the section transformation task
+     * @return Never returns normally; declared to let the callers write "throw propagate(...)"
+     */
+    private RuntimeException propagate(Throwable cause) {
+        if(cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+        if(cause instanceof Error)
+            throw (Error) cause;
+        throw new IllegalStateException("Section transformation failed", cause);
+    }
+
+    /**
+     * The outcome of a single section transformation: the FHIR Section and the resources referenced by it
+     */
+    private static class SectionResult {
+        private final Composition.Section fhirSec;
+        private final Bundle bundle;
+
+        private SectionResult(Composition.Section fhirSec, Bundle bundle) {
+            this.fhirSec = fhirSec;
+            this.bundle = bundle;
+        }
+    }
 }
@@ -0,0 +1,210 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
+import ca.uhn.fhir.model.dstu2.composite.CodingDt;
+import org.openhealthtools.mdht.uml.hl7.datatypes.CD;
+import tr.com.srdc.cda2fhir.util.BoundedCache;
+import tr.com.srdc.cda2fhir.util.CodeSystemRegistry;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Memoizes the transformations of coded values (CD) to CodeableConcepts. Documents repeat the same LOINC, SNOMED CT or RxNorm codes
+ * many times (e.g. the vital sign codes of a flowsheet); a cached code is not transformed again, and its code system OID is not mapped again.
+ * The cache is keyed on the code system, code, code system version and display name of the CD and of its translations, and on the
+ * generation of the default CodeSystemRegistry; hence, the codings mapped before the registry is reloaded are not returned afterwards.
+ * It keeps the transformed codings as immutable values and returns a new CodeableConceptDt for each call, since the returned
+ * elements belong to the resource they are set to and may be modified afterwards.
+ * Instances are safe to be shared by concurrent transformations.
+ */
+public class CodeableConceptCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 5000;
+
+    // system, code, version and display of a coding
+    private static final int CODING_FIELDS = 4;
+    // cached for the CDs which are transformed to null
+    private static final String[] NO_CODINGS = new String[0];
+
+    private final BoundedCache<Key, String[]> codings;
+
+    /**
+     * Constructs a cache of DEFAULT_MAXIMUM_SIZE coded values
+     */
+    public CodeableConceptCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * @param maximumSize Maximum number of coded values to be kept, > 0
+     */
+    public CodeableConceptCache(int maximumSize) {
+        this.codings = new BoundedCache<Key, String[]>(maximumSize);
+    }
+
+    /**
+     * Returns the CodeableConcept of the coded value, transforming it only if an equal coded value is not cached
+     * @param cd The coded value to be transformed, which is neither null nor nullFlavored
+     * @param includeTranslations Whether the translations of the coded value are transformed as well
+     * @param transformer The transformation to be applied to a coded value that is not cached
+     * @return A new CodeableConceptDt equal to the one the transformer returns for the coded value, or null if the transformer returns null
+     */
+    public CodeableConceptDt get(CD cd, boolean includeTranslations, Function<CD, CodeableConceptDt> transformer) {
+        CodeSystemRegistry registry = CodeSystemRegistry.getDefault();
+        long generation = registry.getGeneration();
+        Key key = new Key(cd, includeTranslations, generation);
+        String[] values = codings.get(key);
+        if(values == null) {
+            values = valuesOf(transformer.apply(cd));
+            // not cached if the registry has been reloaded meanwhile, as the codings may have been mapped by the previous mappings
+            if(registry.getGeneration() == generation)
+                values = codings.putIfAbsent(key, values);
+        }
+        return toCodeableConcept(values);
+    }
+
+    /**
+     * Forgets all the cached coded values
+     */
+    public void clear() {
+        codings.invalidateAll();
+    }
+
+    /**
+     * @return The number of the cached coded values
+     */
+    public int size() {
+        return codings.size();
+    }
+
+    public long getHitCount() {
+        return codings.getHitCount();
+    }
+
+    public long getMissCount() {
+        return codings.getMissCount();
+    }
+
+    /**
+     * @return The ratio of the lookups that found the coded value cached, or 0 if there has been no lookup
+     */
+    public double getHitRate() {
+        return codings.getHitRate();
+    }
+
+    /**
+     * @return The underlying cache, e.g. to read its eviction count
+     */
+    public BoundedCache<?, ?> getCache() {
+        return codings;
+    }
+
+    @Override
+    public String toString() {
+        return codings.toString();
+    }
+
+    private static String[] valuesOf(CodeableConceptDt codeableConcept) {
+        if(codeableConcept == null || codeableConcept.getCoding().isEmpty())
+            return NO_CODINGS;
+        List<CodingDt> codingList = codeableConcept.getCoding();
+        String[] values = new String[codingList.size() * CODING_FIELDS];
+        int i = 0;
+        for(CodingDt coding : codingList) {
+            values[i++] = coding.getSystem();
+            values[i++] = coding.getCode();
+            values[i++] = coding.getVersion();
+            values[i++] = coding.getDisplay();
+        }
+        return values;
+    }
+
+    private static CodeableConceptDt toCodeableConcept(String[] values) {
+        if(values == null || values.length == 0)
+            return null;
+        CodeableConceptDt codeableConcept = new CodeableConceptDt();
+        for(int i = 0; i < values.length; i += CODING_FIELDS) {
+            CodingDt coding = codeableConcept.addCoding();
+            if(values[i] != null)
+                coding.setSystem(values[i]);
+            if(values[i + 1] != null)
+                coding.setCode(values[i + 1]);
+            if(values[i + 2] != null)
+                coding.setVersion(values[i + 2]);
+            if(values[i + 3] != null)
+                coding.setDisplay(values[i + 3]);
+        }
+        return codeableConcept;
+    }
+
+    /**
+     * The attributes of a coded value and its translations that its CodeableConcept depends on
+     */
+    private static final class Key {
+
+        private final String[] fields;
+        private final boolean includeTranslations;
+        private final long registryGeneration;
+        private final int hash;
+
+        Key(CD cd, boolean includeTranslations, long registryGeneration) {
+            List<CD> translations = includeTranslations ? cd.getTranslations() : null;
+            int count = 1 + (translations != null ? translations.size() : 0);
+            this.fields = new String[count * CODING_FIELDS];
+            int i = put(cd, 0);
+            if(translations != null) {
+                for(CD translation : translations)
+                    i = put(translation, i);
+            }
+            this.includeTranslations = includeTranslations;
+            this.registryGeneration = registryGeneration;
+            this.hash = 31 * Arrays.hashCode(fields) + (includeTranslations ? 1 : 0);
+        }
+
+        private int put(CD cd, int i) {
+            fields[i++] = cd.getCodeSystem();
+            fields[i++] = cd.getCode();
+            fields[i++] = cd.getCodeSystemVersion();
+            fields[i++] = cd.getDisplayName();
+            return i;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(this == obj)
+                return true;
+            if(!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return hash == other.hash && includeTranslations == other.includeTranslations && registryGeneration == other.registryGeneration
+                    && Arrays.equals(fields, other.fields);
+        }
+    }
+}
@@ -37,13 +37,8 @@ import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.model.primitive.InstantDt;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.TimeZone;
 
-import org.eclipse.emf.ecore.impl.EStructuralFeatureImpl;
-import org.eclipse.emf.ecore.util.BasicFeatureMap;
-import org.eclipse.emf.ecore.util.FeatureMap;
 import org.openhealthtools.mdht.uml.cda.StrucDocText;
 import org.openhealthtools.mdht.uml.hl7.datatypes.*;
 import org.openhealthtools.mdht.uml.hl7.vocab.EntityNameUse;
@@ -54,12 +49,29 @@ import org.slf4j.LoggerFactory;
 
 import tr.com.srdc.cda2fhir.conf.Config;
 import tr.com.srdc.cda2fhir.util.StringUtil;
+import tr.com.srdc.cda2fhir.util.TSParser;
 
 public class DataTypesTransformerImpl implements IDataTypesTransformer, Serializable {
 
 	private IValueSetsTransformer vst = new ValueSetsTransformerImpl();
+	private transient CodeableConceptCache codeableConceptCache;
 
 	private final Logger logger = LoggerFactory.getLogger(DataTypesTransformerImpl.class);
+
+	/**
+	 * Sets the cache of the coded values transformed by this transformer. If not set, the cache of the current document transformation is used, if any.
+	 * @param codeableConceptCache The cache to be used by tCD2CodeableConcept and tCD2CodeableConceptExcludingTranslations, or null
+	 */
+	public void setCodeableConceptCache(CodeableConceptCache codeableConceptCache) {
+		this.codeableConceptCache = codeableConceptCache;
+	}
+
+	private CodeableConceptCache getCodeableConceptCache() {
+		if(codeableConceptCache != null)
+			return codeableConceptCache;
+		TransformationContext context = TransformationContext.current();
+		return context != null ? context.getCodeableConceptCache() : null;
+	}
 	
 	public AddressDt AD2Address(AD ad) {
 	    if(ad == null || ad.isSetNullFlavor())
@@ -196,7 +208,16 @@ public class DataTypesTransformerImpl implements IDataTypesTransformer, Serializ
 	}
 	
 	public CodeableConceptDt tCD2CodeableConcept(CD cd) {
-       	CodeableConceptDt myCodeableConceptDt = tCD2CodeableConceptExcludingTranslations(cd);
+		if(cd == null || cd.isSetNullFlavor())
+			return null;
+		CodeableConceptCache cache = getCodeableConceptCache();
+		if(cache != null)
+			return cache.get(cd, true, this::transformCD);
+		return transformCD(cd);
+	}
+
+	private CodeableConceptDt transformCD(CD cd) {
+       	CodeableConceptDt myCodeableConceptDt = transformCDExcludingTranslations(cd);
 
 		if(myCodeableConceptDt == null)
 			return null;
@@ -242,7 +263,13 @@ public class DataTypesTransformerImpl implements IDataTypesTransformer, Serializ
 	public CodeableConceptDt tCD2CodeableConceptExcludingTranslations(CD cd) {
 		if(cd == null || cd.isSetNullFlavor())
 			return null;
+		CodeableConceptCache cache = getCodeableConceptCache();
+		if(cache != null)
+			return cache.get(cd, false, this::transformCDExcludingTranslations);
+		return transformCDExcludingTranslations(cd);
+	}
 
+	private CodeableConceptDt transformCDExcludingTranslations(CD cd) {
 		CodeableConceptDt myCodeableConceptDt = new CodeableConceptDt();
 
 		// .
@@ -629,15 +656,14 @@ public class DataTypesTransformerImpl implements IDataTypesTransformer, Serializ
     }
 
 	public DateTimeDt tString2DateTime(String date) {
-		TS ts = DatatypesFactory.eINSTANCE.createTS();
-		ts.setValue(date);
-		return tTS2DateTime(ts);
+		// parse the string directly, rather than wrapping it in a TS
+		return completeDateTime((DateTimeDt) tTS2BaseDateTime(date, DateTimeDt.class));
 	}
 	
 	public NarrativeDt tStrucDocText2Narrative(StrucDocText sdt) {
 		if(sdt != null) {
 			NarrativeDt narrative = new NarrativeDt();
-			String narrativeDivString = tStrucDocText2String(sdt);
+			String narrativeDivString = StrucDocTextWriter.toString(sdt);
 			
 			try {
 				narrative.setDiv(narrativeDivString); 
@@ -650,6 +676,12 @@ public class DataTypesTransformerImpl implements IDataTypesTransformer, Serializ
 		return null;
 	}
 
+	public NarrativeDt tStrucDocText2DeferredNarrative(StrucDocText sdt) {
+		if(sdt == null)
+			return null;
+		return new DeferredNarrativeDt(sdt);
+	}
+
 	public ContactPointDt tTEL2ContactPoint(TEL tel) {
 		if(tel == null || tel.isSetNullFlavor())
 			return null;
@@ -735,12 +767,20 @@ public class DataTypesTransformerImpl implements IDataTypesTransformer, Serializ
 	}
 	
 	public DateTimeDt tTS2DateTime(TS ts) {
-		DateTimeDt dateTime = (DateTimeDt) tTS2BaseDateTime(ts,DateTimeDt.class);
-		
+		return completeDateTime((DateTimeDt) tTS2BaseDateTime(ts,DateTimeDt.class));
+	}
+	
+	/**
+	 * Completes a parsed FHIR dateTime according to the constraints of the dateTime type
+	 * @param dateTime A FHIR DateTimeDt instance parsed from a CDA date
+	 * @return The given instance, or null if it is null
+	 */
+	private DateTimeDt completeDateTime(DateTimeDt dateTime) {
 		if(dateTime == null)
 			return null;
 		
 		// if the precision is not YEAR or MONTH, TimeZone SHALL be populated
+		// the default time zone is encoded with its offset at the instant, i.e. the daylight saving time offset in summer
 		if(dateTime.getPrecision() != TemporalPrecisionEnum.YEAR && dateTime.getPrecision() != TemporalPrecisionEnum.MONTH) {
 			if(dateTime.getTimeZone() == null) {
 				dateTime.setTimeZone(TimeZone.getDefault());
@@ -748,9 +788,9 @@ public class DataTypesTransformerImpl implements IDataTypesTransformer, Serializ
 		}
 		
 		// if the precision is MINUTE, seconds SHALL be populated
+		// the parsed seconds are already 0; only the precision is to be raised
 		if(dateTime.getPrecision() == TemporalPrecisionEnum.MINUTE) {
 			dateTime.setPrecision(TemporalPrecisionEnum.SECOND);
-			dateTime.setSecond(0);
 		}
 		
 		return dateTime;
@@ -778,192 +818,6 @@ public class DataTypesTransformerImpl implements IDataTypesTransformer, Serializ
     }
 	
 	// Helper Methods
-	/**
-	 * Extracts the attributes of an HTML element
-	 * This method is the helper for the method getTags, which is already a helper for tStrucDocText2String.
-	 * @param entry A EStructuralFeatureImpl.ContainmentUpdatingFeatureMapEntry instance
-	 * @return A Java String list containing the attributes of an HTML element in form: attributeName="attributeValue". Each element corresponds to distinct attributes for the same tag
-	 */
-	private List<String> getAttributesHelperForTStructDocText2String(EStructuralFeatureImpl.ContainmentUpdatingFeatureMapEntry entry) {
-		if(entry == null)
-			return null;
-		
-		List<String> attributeList = new ArrayList<String>();
-		if(entry.getValue() instanceof org.eclipse.emf.ecore.xml.type.impl.AnyTypeImpl) {
-			for(FeatureMap.Entry attribute : ((org.eclipse.emf.ecore.xml.type.impl.AnyTypeImpl) entry.getValue()).getAnyAttribute()) {
-				String name = attribute.getEStructuralFeature().getName();
-				String value = attribute.getValue().toString();
-				if(name != null && !name.isEmpty()) {
-					String attributeToAdd = "";
-					// we may have attributes which doesn't have any value
-					attributeToAdd = attributeToAdd + name;
-					if(value != null && !value.isEmpty()) {
-						attributeToAdd = attributeToAdd + "=\""+value+"\"";
-					}
-					attributeList.add(attributeToAdd);
-				}
-			}
-		}
-		return attributeList;
-	}
-	
-	/**
-	 * Extracts the tags and the attributes of an HTML element.
-	 * Also, this method transforms the CDA formatted tags to HTML formatted tags.
-	 * This method is the helper for the method tStrucDocText2String.
-	 * @param entry A EStructuralFeatureImpl.ContainmentUpdatingFeatureMapEntry instance
-	 * @return A Java String list containing the start tag and end tag of an HTML element in form: &lt;tagName attribute="attributeValue"&gt;. While first element of the list correspons to the start tag, second element of the list corresponds to the end tag.
-	 */
-	private List<String> getTagsHelperForTStructDocText2String(org.eclipse.emf.ecore.impl.EStructuralFeatureImpl.ContainmentUpdatingFeatureMapEntry entry) {
-		if(entry == null)
-			return null;
-		String startTag = "";
-		String endTag = "";
-		String tagName = entry.getEStructuralFeature().getName();
-		if(tagName == null || tagName.equals(""))
-			return null;
-		List<String> attributeList = getAttributesHelperForTStructDocText2String(entry);
-		List<String> tagList = new ArrayList<String>();
-		
-		String attributeToRemove = null;
-		
-		// removing id attribute from the attributeList
-		for(String attribute : attributeList) {
-			if(attribute.toLowerCase().startsWith("id=\"", 0)) {
-				attributeToRemove = attribute;
-			}
-		}
-		
-		if(attributeToRemove != null)
-			attributeList.remove(attributeToRemove);
-		
-		// removing styleCode attribute from the attributeList
-		for(String attribute : attributeList) {
-			if(attribute.toLowerCase().startsWith("stylecode=\"", 0)) {
-				attributeToRemove = attribute;
-			}
-		}
-		if(attributeToRemove != null)
-			attributeList.remove(attributeToRemove);
-		
-		// case tag.equals("list"). we need to transform it to "ul" or "ol"
-		if(tagName.equals("list")) {
-			// first, think of the situtation no attribute exists about ordered/unordered
-			tagName = "ul";
-			attributeToRemove = null;
-			for(String attribute : attributeList) {
-				// if the attribute is listType, make the transformation
-				if(attribute.toLowerCase().contains("listtype")) {
-					// notice that the string "unordered" also contains "ordered"
-					// therefore, it is vital to check "unordered" firstly.
-					// if "unordered" is not contained by the attribute, then we may check for "ordered"
-					if(attribute.toLowerCase().contains("unordered")) {
-						tagName = "ul";
-					} else if(attribute.toLowerCase().contains("ordered")) {
-						tagName = "ol";
-					}
-					attributeToRemove = attribute;
-				}
-			}
-			// if we found the "listType" attribute, we assigned it to attributeToRemove
-			// from now on, we have nothing to do with this attribute. let's remove it from the list.
-			if(attributeToRemove != null) {
-				attributeList.remove(attributeToRemove);
-			}
-		} else {
-			switch(tagName.toLowerCase()) {
-				case "paragraph":
-					tagName = "p"; break;
-				case "content":
-					tagName = "span"; break;
-				case "item":
-					tagName = "li"; break;
-				case "linkhtml":
-					tagName = "a"; break;
-				case "renderMultimedia":
-					tagName = "img"; break;
-				case "list":
-					tagName = "ul"; break;
-				default: // do nothing. let the tagName be as it is
-			}
-		}
-		
-		// now, it is time to prepare our tag by using tagName and attributes
-		startTag = "<" + tagName;
-		// adding attributes to the start tag
-		for(String attribute : attributeList) {
-			startTag += " "+attribute;
-		}
-		// closing the start tag
-		startTag += ">";
-		endTag = "</" + tagName + ">";
-		
-		// 1st element of the returning list: startTag
-		tagList.add(startTag);
-		// 2nd element of the returning list: endTag
-		tagList.add(endTag);
-		
-		return tagList;
-	}
-	
-	/**
-	 * Transforms A CDA StructDocText instance to a Java String containing the transformed text.
-	 * Since the method is a recursive one and handles with different types of object, parameter is taken as Object. However, parameters of type StructDocText should be given by the caller.
-	 * @param param A CDA StructDocText instance
-	 * @return A Java String containing the transformed text
-	 */
-	private String tStrucDocText2String(Object param) {
-		if(param instanceof org.openhealthtools.mdht.uml.cda.StrucDocText) {
-			org.openhealthtools.mdht.uml.cda.StrucDocText paramStrucDocText = (org.openhealthtools.mdht.uml.cda.StrucDocText)param;
-			return "<div>" +tStrucDocText2String(paramStrucDocText.getMixed()) + "</div>";
-		} 
-		else if(param instanceof BasicFeatureMap) {
-			String returnValue = "";
-			for(Object object : (BasicFeatureMap)param){
-				String pieceOfReturn = tStrucDocText2String(object);
-				if(pieceOfReturn != null && !pieceOfReturn.isEmpty()) {
-					returnValue = returnValue + pieceOfReturn;
-				}
-			}
-			return returnValue;
-		} 
-		else if(param instanceof EStructuralFeatureImpl.SimpleFeatureMapEntry) {
-			String elementBody = ((EStructuralFeatureImpl.SimpleFeatureMapEntry)param).getValue().toString();
-			// deletion of unnecessary content (\n, \t)
-			elementBody = elementBody.replaceAll("\n", "").replaceAll("\t", "");
-			
-			// replacement of special characters
-			elementBody = elementBody.replaceAll("<","&lt;").replaceAll(">", "&gt;").replaceAll("&", "&amp;");
-			// if there was a well-formed char sequence "&amp;", after replacement it will transform to &amp;amp;
-			// the following line of code will remove these type of typos
-			elementBody = elementBody.replaceAll("&amp;amp;", "&amp;");
-			
-			String typeName = ((EStructuralFeatureImpl.SimpleFeatureMapEntry) param).getEStructuralFeature().getName();
-			typeName = typeName.toLowerCase();
-			if(typeName.equals("comment")) {
-				return "<!-- "+elementBody +" -->";
-			} else if(typeName.equals("text")){
-				return elementBody;
-			} else {
-				logger.warn("Unknown element type was found while transforming a StrucDocText instance to Narrative. Returning the value of the element");
-				return elementBody;
-			}
-		} 
-		else if(param instanceof EStructuralFeatureImpl.ContainmentUpdatingFeatureMapEntry) {
-			EStructuralFeatureImpl.ContainmentUpdatingFeatureMapEntry entry = (EStructuralFeatureImpl.ContainmentUpdatingFeatureMapEntry)param;
-			List<String> tagList = getTagsHelperForTStructDocText2String(entry);
-			return tagList.get(0) + tStrucDocText2String(entry.getValue()) + tagList.get(1);
-		} 
-		else if(param instanceof org.eclipse.emf.ecore.xml.type.impl.AnyTypeImpl) {
-			// since the name and the attributes are taken already, we just send the mixed of anyTypeImpl
-			return tStrucDocText2String(((org.eclipse.emf.ecore.xml.type.impl.AnyTypeImpl)param).getMixed());
-		}
-		else {
-			logger.warn("Parameter for the method tStrucDocText2String is unknown. Returning null", param.getClass());
-			return null;
-		}
-	}
-	
 	/**
 	 * Transforms a CDA TS instance or a string including the date information in CDA format to a FHIR BaseDateTimeDt primitive datatype instance.
 	 * Since BaseDateTimeDt is an abstract class, the second parameter of this method (Class&lt;?&gt; classOfReturningObject) determines the class that initiates the BaseDateTimeDt object the method is to return.
@@ -1016,115 +870,10 @@ public class DataTypesTransformerImpl implements IDataTypesTransformer, Serializ
 		 * YYYYMMDDHHMMSS.S: year month day hour minute second
 		 * YYYYMMDDHHMM+TIZO: year month day hour minute timezone
 		 */
-		
-		TemporalPrecisionEnum precision = null;
-		TimeZone timeZone = null;
-		
-		// getting the timezone
-		// once got the timezone, crop the timezone part from the string
-		if(dateString.contains("+")) {
-			timeZone = TimeZone.getTimeZone("GMT"+dateString.substring(dateString.indexOf('+')));
-			dateString = dateString.substring(0, dateString.indexOf('+'));
-		} else if(dateString.contains("-")) {
-			timeZone = TimeZone.getTimeZone("GMT"+dateString.substring(dateString.indexOf('-')));
-			dateString = dateString.substring(0, dateString.indexOf('-'));
-		}
-		
-		
-		// determining precision
-		switch(dateString.length()) {
-			case 4: // yyyy
-				precision = TemporalPrecisionEnum.YEAR; break;
-			case 6: // yyyymm
-				precision = TemporalPrecisionEnum.MONTH; break;
-			case 8: // yyyymmdd
-				precision = TemporalPrecisionEnum.DAY; break;
-			case 12: // yyyymmddhhmm
-				precision = TemporalPrecisionEnum.MINUTE; break;
-			case 14: // yyyymmddhhmmss
-				precision = TemporalPrecisionEnum.SECOND; break;
-			case 16: // yyyymmddhhmmss.s
-			case 17: // yyyymmddhhmmss.ss
-			case 18: // yyyymmddhhmmss.sss
-			case 19: // yyyymmddhhmmss.ssss
-				precision = TemporalPrecisionEnum.MILLI; break;
-			default:
-				precision = null;
-		}
-		
-		// given string may include up to four digits of fractions of a second
-		// therefore, there may be cases where the length of the string is 17,18 or 19 and the precision is MILLI.
-		// for those of cases where the length causes conflicts, let's check if dot(.) exists in the string
-			
-		// setting precision
-		if(precision != null){
-			date.setPrecision(precision);
-		} else {
+		if(!TSParser.parse(dateString, date)) {
 			// incorrect format
 			return null;
 		}
-		
-		// if timeZone is present, setting it
-		if(timeZone != null) {
-			date.setTimeZone(timeZone);
-		}
-		
-		if(precision == TemporalPrecisionEnum.MILLI) {
-			// get the integer starting from the dot(.) char 'till the end of the string as the millis
-			int millis = new Integer(dateString.substring(dateString.indexOf('.')+1));
-			// if millis is given as .4 , it corresponds to 400 millis. 
-			// therefore, we need a conversion.
-			if(millis > 0 && millis < 1000) {
-				while(millis*10 <1000) {
-					millis *= 10;
-				}
-			} else if(millis >= 1000){
-				// unexpected situtation
-				millis = 999;
-			} else {
-				// unexpected situtation
-				millis = 0;
-			}
-			
-			// setting millis
-			date.setMillis(millis);
-			
-			// setting second, minute, hour, day, month, year..
-			date.setSecond(new Integer(dateString.substring(12,14)));
-			date.setMinute(new Integer(dateString.substring(10, 12)));
-			date.setHour(new Integer(dateString.substring(8,10)));
-			date.setDay(new Integer(dateString.substring(6,8)));
-			date.setMonth(new Integer(dateString.substring(4,6))-1);
-			date.setYear(new Integer(dateString.substring(0,4)));
-			
-		} else {
-			// since there are strange situtations where the index changes upon the precision, we set every value in its precision block
-			switch(precision) {
-				case SECOND:
-					date.setSecond(new Integer(dateString.substring(12,14)));
-				case MINUTE: 
-					date.setMinute(new Integer(dateString.substring(10,12)));
-					date.setHour(new Integer(dateString.substring(8,10)));
-					date.setDay(new Integer(dateString.substring(6,8)));
-					date.setMonth(new Integer(dateString.substring(4,6))-1);
-					date.setYear(new Integer(dateString.substring(0,4))); 
-					break;
-				case DAY:
-					date.setDay(new Integer(dateString.substring(6,8)));
-					date.setMonth(new Integer(dateString.substring(4,6))-1);
-					date.setYear(new Integer(dateString.substring(0,4))); 
-					break;
-				case MONTH:
-					date.setMonth(new Integer(dateString.substring(4,6)));
-					date.setYear(new Integer(dateString.substring(0,4))); 
-					break;
-				case YEAR:
-					date.setYear(new Integer(dateString.substring(0,4))+1); 
-					break;
-				default:
-					date = null;
-			}
-		}
 		return date;
 	}
 }
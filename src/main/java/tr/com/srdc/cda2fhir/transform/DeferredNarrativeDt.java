@@ -0,0 +1,55 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.api.annotation.DatatypeDef;
+import ca.uhn.fhir.model.dstu2.composite.NarrativeDt;
+import ca.uhn.fhir.model.dstu2.valueset.NarrativeStatusEnum;
+import ca.uhn.fhir.model.primitive.BoundCodeDt;
+import ca.uhn.fhir.model.primitive.XhtmlDt;
+import org.openhealthtools.mdht.uml.cda.StrucDocText;
+
+/**
+ * The narrative of a section whose div is transformed from the CDA StrucDocText only when it is first read (see DeferredXhtmlDt).
+ * The eager transformation gives no narrative when the transformed div is not valid XHTML; likewise, this narrative is then empty,
+ * status included, and left out of the encoded resource. As the parsers check whether an element is empty before encoding it,
+ * isEmpty materializes the div.
+ */
+@DatatypeDef(name = "Narrative", isSpecialization = true)
+public class DeferredNarrativeDt extends NarrativeDt {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param source The CDA StrucDocText instance to be transformed when the div is first read
+     */
+    public DeferredNarrativeDt(StrucDocText source) {
+        super(new DeferredXhtmlDt(source), NarrativeStatusEnum.ADDITIONAL);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        XhtmlDt div = getDiv();
+        if(div instanceof DeferredXhtmlDt && !((DeferredXhtmlDt) div).isValid() && !getStatus().isEmpty())
+            setStatus(new BoundCodeDt<NarrativeStatusEnum>(NarrativeStatusEnum.VALUESET_BINDER));
+        return super.isEmpty();
+    }
+}
@@ -0,0 +1,141 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.primitive.XhtmlDt;
+import ca.uhn.fhir.parser.DataFormatException;
+import org.openhealthtools.mdht.uml.cda.StrucDocText;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.events.XMLEvent;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The XHTML div of a section narrative, which is transformed from the CDA StrucDocText and parsed only when it is first read,
+ * i.e. when the resource is encoded. Hence, a narrative that is never encoded costs nothing but a reference to the StrucDocText.
+ * If the transformed narrative is not valid XHTML, the div is left empty; a DeferredNarrativeDt is then empty as a whole.
+ * The div is materialized under a lock rather than a monitor, so that a virtual thread encoding it does not pin its carrier.
+ */
+public class DeferredXhtmlDt extends XhtmlDt {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = LoggerFactory.getLogger(DeferredXhtmlDt.class);
+
+    private transient volatile StrucDocText source;
+    private transient volatile boolean invalid;
+    private final transient ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Used by deserialization only; the deserialized div is already materialized
+     */
+    public DeferredXhtmlDt() {
+    }
+
+    /**
+     * @param source The CDA StrucDocText instance to be transformed when the div is first read
+     */
+    public DeferredXhtmlDt(StrucDocText source) {
+        this.source = source;
+    }
+
+    /**
+     * @return true if the div has been transformed and parsed
+     */
+    public boolean isMaterialized() {
+        return source == null;
+    }
+
+    /**
+     * Transforms and parses the div if it has not been done yet
+     * @return false if the transformed narrative is not valid XHTML, in which case the div is empty
+     */
+    public boolean isValid() {
+        materialize();
+        return !invalid;
+    }
+
+    @Override
+    public List<XMLEvent> getValue() {
+        materialize();
+        return super.getValue();
+    }
+
+    @Override
+    public String getValueAsString() throws DataFormatException {
+        materialize();
+        return super.getValueAsString();
+    }
+
+    @Override
+    public XhtmlDt setValue(List<XMLEvent> value) throws DataFormatException {
+        source = null;
+        invalid = false;
+        return (XhtmlDt) super.setValue(value);
+    }
+
+    @Override
+    public void setValueAsString(String value) throws DataFormatException {
+        source = null;
+        invalid = false;
+        super.setValueAsString(value);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return source == null && super.isEmpty();
+    }
+
+    @Override
+    public boolean hasContent() {
+        return source != null || super.hasContent();
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        materialize();
+        super.writeExternal(out);
+    }
+
+    private void materialize() {
+        if(source == null)
+            return;
+        lock.lock();
+        try {
+            StrucDocText sdt = source;
+            if(sdt == null)
+                return;
+            try {
+                super.setValueAsString(StrucDocTextWriter.toString(sdt));
+            } catch(DataFormatException e) {
+                invalid = true;
+                logger.error("Section narrative could not be parsed as XHTML. Leaving the narrative out.", e);
+            }
+            source = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
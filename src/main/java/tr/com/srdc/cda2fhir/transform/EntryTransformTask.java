@@ -0,0 +1,73 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+
+/**
+ * A fork-join task that applies a transformation to a range of the entries of a CDA section.
+ * The range is split in halves until it gets smaller than the leaf size; the results are concatenated in the original entry order.
+ * @param <R> Type of the transformation result
+ */
+class EntryTransformTask<R> extends RecursiveTask<List<R>> {
+
+    private final int from;
+    private final int to;
+    private final int leafSize;
+    private final IntFunction<R> transformer;
+
+    /**
+     * @param from Index of the first entry to be transformed, inclusive
+     * @param to Index of the last entry to be transformed, exclusive
+     * @param leafSize Number of entries below which the range is transformed sequentially
+     * @param transformer The transformation to be applied to the entry at each index
+     */
+    EntryTransformTask(int from, int to, int leafSize, IntFunction<R> transformer) {
+        this.from = from;
+        this.to = to;
+        this.leafSize = Math.max(1, leafSize);
+        this.transformer = transformer;
+    }
+
+    @Override
+    protected List<R> compute() {
+        if(to - from <= leafSize) {
+            List<R> results = new ArrayList<R>(to - from);
+            for(int i = from; i < to; i++) {
+                results.add(transformer.apply(i));
+            }
+            return results;
+        }
+
+        int mid = (from + to) >>> 1;
+        EntryTransformTask<R> left = new EntryTransformTask<R>(from, mid, leafSize, transformer);
+        EntryTransformTask<R> right = new EntryTransformTask<R>(mid, to, leafSize, transformer);
+        left.fork();
+        List<R> results = new ArrayList<R>(to - from);
+        List<R> rightResults = right.compute();
+        results.addAll(left.join());
+        results.addAll(rightResults);
+        return results;
+    }
+}
@@ -0,0 +1,68 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.openhealthtools.mdht.uml.cda.ClinicalDocument;
+
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+public interface IBatchTransformer {
+
+    /**
+     * The order in which the outcomes are handed to the sink
+     */
+    enum OutputOrder {
+        /** As soon as a document is transformed */
+        COMPLETION,
+        /** In the order of the input, buffering at most the in-flight documents */
+        INPUT
+    }
+
+    /**
+     * Transforms the given CDA documents concurrently and hands the resulting Bundles to the sink.
+     * The method blocks until every document is handed to the sink. A failing document is reported to the sink and does not stop the batch,
+     * unless it fails with an Error other than StackOverflowError: no more documents are then submitted, and the Error is rethrown once
+     * the documents in flight are handed over. If the calling thread is interrupted, the documents in flight are cancelled and the method
+     * returns the progress so far, with the interrupt status set; nothing is handed to the sink after it returns. An executor given at
+     * construction is not shut down, although the documents of the batch are cancelled on it.
+     * @param documents CDA documents to be transformed. The documents are consumed as the workers catch up, at most a bounded number of them being in flight.
+     * @param sink The sink receiving the outcomes
+     * @return The final progress counters of the batch
+     */
+    BatchProgress transformAll(Iterable<ClinicalDocument> documents, IBundleSink sink);
+
+    /**
+     * Loads the CDA documents at the given paths and transforms them concurrently, handing the resulting Bundles to the sink.
+     * Loading is done by the workers as well. The method blocks until every document is handed to the sink; failures and interrupts are
+     * handled as in {@link #transformAll(Iterable, IBundleSink)}.
+     * @param paths Paths of the CDA documents to be transformed
+     * @param sink The sink receiving the outcomes
+     * @return The final progress counters of the batch
+     */
+    BatchProgress transformAll(Stream<Path> paths, IBundleSink sink);
+
+    /**
+     * Returns the progress counters of the running batch, or the last one if no batch is running
+     * @return The progress counters, or null if no batch has been started yet
+     */
+    BatchProgress getProgress();
+}
@@ -0,0 +1,43 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+
+/**
+ * Receives the outcomes of a batch transformation. The sink is never called concurrently by the batch transformer.
+ */
+public interface IBundleSink {
+
+    /**
+     * Called when a document has been transformed successfully
+     * @param index Position of the document in the input of the batch, starting from 0
+     * @param bundle The FHIR Bundle transformed from the document
+     */
+    void accept(long index, Bundle bundle);
+
+    /**
+     * Called when a document could not be loaded or transformed. The failure does not affect the rest of the batch.
+     * @param index Position of the document in the input of the batch, starting from 0
+     * @param error The cause of the failure
+     */
+    void onError(long index, Exception error);
+}
@@ -22,24 +22,34 @@ package tr.com.srdc.cda2fhir.transform;
 
 import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import org.eclipse.emf.ecore.EObject;
 import org.openhealthtools.mdht.uml.cda.ClinicalDocument;
 import tr.com.srdc.cda2fhir.util.IdGeneratorEnum;
 
 public interface ICDATransformer {
     /**
-     * Returns a ResourceReferenceDt for the patient of the CDA document
+     * Returns a ResourceReferenceDt for the patient of the CDA document being transformed by the calling thread
      * @return A ResourceReferenceDt that references the patient (i.e. recordTarget/patientRole) of the document
      */
     ResourceReferenceDt getPatientRef();
 
     /**
-     * A consistent unique resource id generator
+     * A consistent unique resource id generator. The ids are unique within the document being transformed by the calling thread.
      * @return a unique resource id
      */
     String getUniqueId();
 
     /**
-     * Sets the resource id generator format, which is either an incremental COUNTER or UUID
+     * A consistent unique resource id generator for a resource transformed from the given CDA artifact.
+     * Depending on the id generator, the id may be derived from the identifiers or the position of the artifact.
+     * @param resourceType Type of the FHIR resource to be identified, e.g. Observation
+     * @param source The CDA artifact the resource is transformed from
+     * @return a unique resource id
+     */
+    String getUniqueId(String resourceType, EObject source);
+
+    /**
+     * Sets the resource id generator format, e.g. an incremental COUNTER, UUID or ids hashed from the content (CONTENT_HASH)
      * @param idGen The id generator enumeration to be set
      */
     void setIdGenerator(IdGeneratorEnum idGen);
@@ -175,6 +175,14 @@ public interface IDataTypesTransformer {
 	* @return A NarrativeDt composite datatype instance
 	*/
 	NarrativeDt tStrucDocText2Narrative(StrucDocText sdt);
+
+	/**
+	* Transforms a CDA StrucDocText instance to a FHIR NarrativeDt composite datatype instance, whose div is transformed and parsed only when it is first read, e.g. when the resource is encoded.
+	* The StrucDocText instance is referred to until then. If the div turns out not to be valid XHTML, the narrative is empty, as if tStrucDocText2Narrative had returned null.
+	* @param sdt A CDA StrucDocText instance
+	* @return A NarrativeDt composite datatype instance
+	*/
+	NarrativeDt tStrucDocText2DeferredNarrative(StrucDocText sdt);
 	
 	/**
 	* Transforms a CDA TEL instance to a FHIR ContactPointDt composite datatype instance.
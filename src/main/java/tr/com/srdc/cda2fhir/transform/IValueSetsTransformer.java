@@ -100,14 +100,14 @@ public interface IValueSetsTransformer {
 	/**
 	 * Transforms a CDA NullFlavor vocable to a FHIR CodingDt composite datatype which includes the code about DataAbsentReason.
 	 * @param cdaNullFlavor A CDA NullFlavor vocable
-	 * @return A FHIR CodingDt composite datatype which includes the code about DataAbsentReason.
+	 * @return A FHIR CodingDt composite datatype which includes the code about DataAbsentReason. The same instance is returned for a NullFlavor vocable each time; it should not be modified.
 	 */
 	CodingDt tNullFlavor2DataAbsentReasonCode(NullFlavor cdaNullFlavor);
 	
 	/**
 	 * Transforms a CDA Observation Interpretation Code to a FHIR CodeableConceptDt composite datatype which includes the code about Observation Interpretation.
 	 * @param cdaObservationInterpretationCode A CDA Observation Interpretation Code
-	 * @return A FHIR CodeableConceptDt composite datatype which includes the code about Observation Interpretation
+	 * @return A FHIR CodeableConceptDt composite datatype which includes the code about Observation Interpretation. The coding of a mapped code is shared; it should not be modified.
 	 */
 	CodeableConceptDt tObservationInterpretationCode2ObservationInterpretationCode(CD cdaObservationInterpretationCode);
 	
@@ -119,7 +119,7 @@ public interface IValueSetsTransformer {
 	ObservationStatusEnum tObservationStatusCode2ObservationStatusEnum(String cdaObservationStatusCode);
 	
 	/**
-	 * Transforms a CodeSystem string to a URL string.
+	 * Transforms a CodeSystem string to a URL string. The OIDs are mapped by the default CodeSystemRegistry; the unregistered ones are transformed to urn:oid URIs.
 	 * @param codeSystem a CodeSystem string
 	 * @return A URL string
 	 */
@@ -128,7 +128,7 @@ public interface IValueSetsTransformer {
 	/**
 	 * Transforms a CDA ParticipationType vocable to a FHIR CodingDt composite datatype which includes the code about ParticipationType.
 	 * @param cdaParticipationType A CDA ParticipationType vocable
-	 * @return A FHIR CodingDt composite datatype which includes the code about ParticipationType
+	 * @return A FHIR CodingDt composite datatype which includes the code about ParticipationType. The same instance is returned for a ParticipationType vocable each time; it should not be modified.
 	 */
 	CodingDt tParticipationType2ParticipationTypeCode(org.openhealthtools.mdht.uml.hl7.vocab.ParticipationType cdaParticipationType);
 
@@ -169,7 +169,7 @@ public interface IValueSetsTransformer {
 	/**
 	 * Transforms a CDA RoleCode string to a FHIR CodingDt composite datatype which includes the code about PatientContactRelationship.
 	 * @param cdaRoleCode A CDA RoleCode string
-	 * @return A FHIR CodingDt composite datatype which includes the code about PatientContactRelationship
+	 * @return A FHIR CodingDt composite datatype which includes the code about PatientContactRelationship. The same instance is returned for a RoleCode each time; it should not be modified.
 	 */
 	CodingDt tRoleCode2PatientContactRelationshipCode(String cdaRoleCode);
 	
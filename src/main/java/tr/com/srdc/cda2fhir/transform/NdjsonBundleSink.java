@@ -0,0 +1,294 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Bundle.Entry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tr.com.srdc.cda2fhir.util.FHIRUtil;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FilterWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the resources of the transformed bundles as newline delimited JSON (NDJSON), the output format of the FHIR Bulk Data export:
+ * each resource is encoded as a single compact JSON line, either into a file per resource type (e.g. Observation.ndjson) or into a single file.
+ * The resources are streamed to buffered, optionally gzip compressed files as the bundles arrive; hence, no bundle is encoded as a whole and
+ * the memory use does not grow with the number of documents. Can be given to a batch transformer as its sink, or be fed bundles directly.
+ * The files are complete only after the sink is closed. The sink is safe to be fed by many threads; a lock is used instead of a monitor,
+ * so that the virtual threads of a batch transformer are not pinned while the files are written.
+ */
+public class NdjsonBundleSink implements IBundleSink, Closeable, Flushable {
+
+    public static final String FILE_EXTENSION = ".ndjson";
+    public static final String GZIP_FILE_EXTENSION = ".ndjson.gz";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final Path file;
+    private final boolean gzip;
+    // the open writers by resource type, or the single writer under null
+    private final Map<String, BufferedLineWriter> writers = new LinkedHashMap<String, BufferedLineWriter>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long resourceCount;
+    private long errorCount;
+    private boolean closed;
+
+    private final Logger logger = LoggerFactory.getLogger(NdjsonBundleSink.class);
+
+    /**
+     * Constructs a sink writing a file per resource type into the given directory, named after the type, e.g. Patient.ndjson or Patient.ndjson.gz.
+     * The files are created as the first resource of their type arrives; existing files are overwritten.
+     * @param directory The directory of the files, which is created if it does not exist
+     * @param gzip true to compress the files with gzip
+     * @throws IOException if the directory cannot be created
+     */
+    public NdjsonBundleSink(Path directory, boolean gzip) throws IOException {
+        this(directory, null, gzip);
+        Files.createDirectories(directory);
+    }
+
+    private NdjsonBundleSink(Path directory, Path file, boolean gzip) {
+        this.directory = directory;
+        this.file = file;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Constructs a sink writing the resources of all types into a single file
+     * @param file The file to be written, which is overwritten if it exists. The parent directories are created if they do not exist.
+     * @param gzip true to compress the file with gzip, in which case the file name should end with .gz
+     * @return A sink writing into the given file
+     * @throws IOException if the file cannot be created
+     */
+    public static NdjsonBundleSink singleFile(Path file, boolean gzip) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if(parent != null)
+            Files.createDirectories(parent);
+        NdjsonBundleSink sink = new NdjsonBundleSink(null, file, gzip);
+        // create the file right away, so that an empty batch leaves an empty file behind
+        sink.writers.put(null, sink.open(file));
+        return sink;
+    }
+
+    /**
+     * Writes each resource in the bundle as a line
+     * @param index Position of the document in the input of the batch, starting from 0
+     * @param bundle The FHIR Bundle transformed from the document
+     * @throws UncheckedIOException if a resource cannot be written
+     */
+    public void accept(long index, Bundle bundle) {
+        try {
+            write(bundle);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the resources of document " + index + " as NDJSON", e);
+        }
+    }
+
+    public void onError(long index, Exception error) {
+        lock.lock();
+        try {
+            errorCount++;
+        } finally {
+            lock.unlock();
+        }
+        logger.warn("Document {} could not be transformed; it is left out of the NDJSON output", index);
+    }
+
+    /**
+     * Writes each resource in the bundle as a line, in the order of the bundle entries
+     * @param bundle The bundle whose resources are to be written
+     * @throws IOException if a resource cannot be written
+     */
+    public void write(Bundle bundle) throws IOException {
+        lock.lock();
+        try {
+            for(Entry entry : bundle.getEntry()) {
+                if(entry != null && entry.getResource() != null)
+                    write(entry.getResource());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the resource as a line
+     * @param resource The resource to be written
+     * @throws IOException if the resource cannot be written
+     */
+    public void write(IResource resource) throws IOException {
+        lock.lock();
+        try {
+            if(closed)
+                throw new IOException("NDJSON sink is closed");
+            Writer writer = writerFor(resource.getResourceName());
+            // compact encoding; a pretty printed resource would span many lines
+            FHIRUtil.encodeToJSON(resource, writer, false);
+            writer.write('\n');
+            resourceCount++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of resources written so far
+     */
+    public long getResourceCount() {
+        lock.lock();
+        try {
+            return resourceCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of documents reported as failed to the sink
+     */
+    public long getErrorCount() {
+        lock.lock();
+        try {
+            return errorCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered lines out to the files, e.g. to make the progress visible to the readers of the files.
+     * Compressed files are only readable up to the last complete deflate block until the sink is closed.
+     * @throws IOException if a file cannot be written
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            for(BufferedLineWriter writer : writers.values())
+                writer.flushThrough();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes and closes all the files. The sink cannot be written to afterwards.
+     * @throws IOException if a file cannot be closed; the rest of the files are closed nevertheless
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if(closed)
+                return;
+            closed = true;
+            IOException failure = null;
+            for(Writer writer : writers.values()) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    if(failure == null)
+                        failure = e;
+                    else
+                        failure.addSuppressed(e);
+                }
+            }
+            writers.clear();
+            if(failure != null)
+                throw failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the writer the resources of the given type go to, opening its file on first use
+     * @param resourceType The type of the resource to be written
+     * @return The writer of the file
+     * @throws IOException if the file cannot be created
+     */
+    private Writer writerFor(String resourceType) throws IOException {
+        if(file != null)
+            return writers.get(null);
+        BufferedLineWriter writer = writers.get(resourceType);
+        if(writer == null) {
+            writer = open(directory.resolve(resourceType + (gzip ? GZIP_FILE_EXTENSION : FILE_EXTENSION)));
+            writers.put(resourceType, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Opens a buffered UTF-8 writer on the file, compressing the output if gzip is set
+     * @param path The file to be written
+     * @return The writer of the file, which does not pass the flushes of the parser through
+     * @throws IOException if the file cannot be created
+     */
+    private BufferedLineWriter open(Path path) throws IOException {
+        OutputStream out = Files.newOutputStream(path);
+        try {
+            if(gzip)
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            return new BufferedLineWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE));
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Ignores the flush the parser issues after each resource, which would otherwise write the buffer out (or end a deflate block) per line.
+     * The buffer is written out by flushThrough, i.e. by the flush of the sink, and on close.
+     */
+    private static class BufferedLineWriter extends FilterWriter {
+
+        private BufferedLineWriter(Writer out) {
+            super(out);
+        }
+
+        /**
+         * Does nothing; see flushThrough
+         */
+        @Override
+        public void flush() {
+        }
+
+        private void flushThrough() throws IOException {
+            out.flush();
+        }
+    }
+}
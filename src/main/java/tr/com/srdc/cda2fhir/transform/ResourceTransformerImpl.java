@@ -21,7 +21,9 @@ package tr.com.srdc.cda2fhir.transform;
  */
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 import ca.uhn.fhir.model.dstu2.composite.*;
 import ca.uhn.fhir.model.dstu2.resource.*;
@@ -35,6 +37,7 @@ import ca.uhn.fhir.model.dstu2.resource.Patient;
 
 import ca.uhn.fhir.model.dstu2.valueset.*;
 
+import org.eclipse.emf.ecore.EObject;
 import org.openhealthtools.mdht.uml.cda.*;
 import org.openhealthtools.mdht.uml.cda.AssignedAuthor;
 import org.openhealthtools.mdht.uml.cda.Author;
@@ -48,6 +51,7 @@ import org.openhealthtools.mdht.uml.hl7.vocab.ParticipationType;
 import org.openhealthtools.mdht.uml.hl7.vocab.RoleClassRoot;
 
 import ca.uhn.fhir.model.api.ExtensionDt;
+import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.dstu2.resource.AllergyIntolerance.Reaction;
 import ca.uhn.fhir.model.dstu2.resource.Device;
 import ca.uhn.fhir.model.dstu2.resource.Patient.Communication;
@@ -60,6 +64,8 @@ import org.slf4j.LoggerFactory;
 
 import tr.com.srdc.cda2fhir.conf.Config;
 import tr.com.srdc.cda2fhir.util.Constants;
+import tr.com.srdc.cda2fhir.util.EntityFingerprint;
+import tr.com.srdc.cda2fhir.util.NarrativeModeEnum;
 
 public class ResourceTransformerImpl implements IResourceTransformer, Serializable {
 
@@ -90,6 +96,104 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 			return UUID.randomUUID().toString();
 	}
 
+	/**
+	 * Generates a resource id for a resource transformed from the given CDA artifact. Depending on the id generator, the id may be derived from the artifact.
+	 * @param resourceType Type of the FHIR resource to be identified
+	 * @param source The CDA artifact the resource is transformed from
+	 * @return a unique resource id
+	 */
+	protected String getUniqueId(String resourceType, EObject source) {
+		if(cdat != null)
+			return cdat.getUniqueId(resourceType, source);
+		else
+			return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Looks up an entity (e.g. a Practitioner or an Organization) already transformed in the document being transformed by the calling thread
+	 * @param fingerprint The fingerprint of the CDA entity, see EntityFingerprint
+	 * @return The FHIR representation of the entity, or null if it has not been transformed yet or there is no document being transformed
+	 */
+	protected <T> T getCachedEntity(String fingerprint) {
+		TransformationContext context = TransformationContext.current();
+		if(context != null)
+			return context.getEntity(fingerprint);
+		else
+			return null;
+	}
+
+	/**
+	 * Records the FHIR representation of an entity, so that its later occurrences in the document refer to the same resource
+	 * @param fingerprint The fingerprint of the CDA entity, see EntityFingerprint
+	 * @param entity The FHIR representation of the entity
+	 * @return The representation to be used for the entity
+	 */
+	protected <T> T cacheEntity(String fingerprint, T entity) {
+		TransformationContext context = TransformationContext.current();
+		if(context != null)
+			return context.putEntity(fingerprint, entity);
+		else
+			return entity;
+	}
+
+	/**
+	 * Generates the resource id of an entity. If a shared entity cache is used, the entity gets the same id in all the documents it occurs in.
+	 * @param resourceType Type of the FHIR resource to be identified
+	 * @param fingerprint The fingerprint of the CDA entity, see EntityFingerprint
+	 * @param source The CDA artifact the resource is transformed from
+	 * @return The resource id of the entity
+	 */
+	protected IdDt getEntityId(String resourceType, String fingerprint, EObject source) {
+		TransformationContext context = TransformationContext.current();
+		SharedEntityCache sharedCache = context != null ? context.getSharedEntityCache() : null;
+		if(sharedCache == null || fingerprint == null)
+			return new IdDt(resourceType, getUniqueId(resourceType, source));
+		return new IdDt(resourceType, sharedCache.getOrAssignId(fingerprint));
+	}
+
+	/**
+	 * Returns a reference-only resource for an entity emitted by a previous document, if the shared entity cache is set to skip the known entities.
+	 * The returned resource carries only the id of the entity and is left out of the document bundle.
+	 * @param resourceType Type of the FHIR resource of the entity
+	 * @param fingerprint The fingerprint of the CDA entity, see EntityFingerprint
+	 * @param factory Creates an empty resource of the type
+	 * @return A resource holding the id of the known entity, or null if the entity should be transformed
+	 */
+	protected <T extends IResource> T getKnownEntity(String resourceType, String fingerprint, Supplier<T> factory) {
+		TransformationContext context = TransformationContext.current();
+		SharedEntityCache sharedCache = context != null ? context.getSharedEntityCache() : null;
+		if(sharedCache == null || fingerprint == null || !sharedCache.isSkipKnownEntities())
+			return null;
+		String id = sharedCache.getId(fingerprint);
+		if(id == null)
+			return null;
+		T resource = factory.get();
+		resource.setId(new IdDt(resourceType, id));
+		context.omitEntity(resource);
+		return resource;
+	}
+
+	/**
+	 * Copies the entries of a cached entity bundle into a new bundle, so that the callers are free to modify the returned bundle
+	 * @param bundle The bundle to be copied
+	 * @return A new bundle holding the resources of the given bundle
+	 */
+	private Bundle copyEntityBundle(Bundle bundle) {
+		Bundle copy = new Bundle();
+		for(Bundle.Entry entry : bundle.getEntry()) {
+			copy.addEntry(new Bundle.Entry().setResource(entry.getResource()));
+		}
+		return copy;
+	}
+
+	/**
+	 * @return The way the section narratives are transformed in the document being transformed by the calling thread; EAGER if there is no such document
+	 */
+	protected NarrativeModeEnum getNarrativeMode() {
+		TransformationContext context = TransformationContext.current();
+		return context != null ? context.getSectionNarrativeMode() : NarrativeModeEnum.EAGER;
+	}
+
 	protected ResourceReferenceDt getPatientRef() {
 		if(cdat != null)
 			return cdat.getPatientRef();
@@ -133,7 +237,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		allergyIntoleranceBundle.addEntry(new Bundle.Entry().setResource(fhirAllergyIntolerance));
 		
 		// resource id
-		IdDt resourceId = new IdDt("AllergyIntolerance", getUniqueId());
+		IdDt resourceId = new IdDt("AllergyIntolerance", getUniqueId("AllergyIntolerance", cdaAllergyProbAct));
 		fhirAllergyIntolerance.setId(resourceId);
 		
 		// meta.profile
@@ -305,6 +409,19 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		if(cdaAssignedAuthor == null || cdaAssignedAuthor.isSetNullFlavor())
 			return null;
 		
+		// the same author usually occurs many times in a document; transform it once
+		String fingerprint = EntityFingerprint.of("Practitioner", cdaAssignedAuthor.getIds(),
+				cdaAssignedAuthor.getAssignedPerson() != null ? cdaAssignedAuthor.getAssignedPerson().getNames() : null, cdaAssignedAuthor.getAddrs());
+		Bundle cachedBundle = getCachedEntity(fingerprint);
+		if(cachedBundle != null)
+			return copyEntityBundle(cachedBundle);
+		Practitioner knownPractitioner = getKnownEntity("Practitioner", fingerprint, Practitioner::new);
+		if(knownPractitioner != null) {
+			Bundle knownBundle = new Bundle();
+			knownBundle.addEntry(new Bundle.Entry().setResource(knownPractitioner));
+			return copyEntityBundle(cacheEntity(fingerprint, knownBundle));
+		}
+		
 		Practitioner fhirPractitioner = new Practitioner();
 		
 		// bundle
@@ -312,7 +429,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirPractitionerBundle.addEntry(new Bundle.Entry().setResource(fhirPractitioner));
 		
 		// resource id
-		IdDt resourceId = new IdDt("Practitioner", getUniqueId());
+		IdDt resourceId = getEntityId("Practitioner", fingerprint, cdaAssignedAuthor);
 		fhirPractitioner.setId(resourceId);
 		
 		// meta.profile
@@ -373,13 +490,26 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 			fhirPractitionerBundle.addEntry(new Bundle.Entry().setResource(fhirOrganization));
 		}
 
-		return fhirPractitionerBundle;
+		return copyEntityBundle(cacheEntity(fingerprint, fhirPractitionerBundle));
 	}
 
 	public Bundle tAssignedEntity2Practitioner(AssignedEntity cdaAssignedEntity) {
 		if(cdaAssignedEntity == null || cdaAssignedEntity.isSetNullFlavor())
 			return null;
 		
+		// the same performer usually occurs many times in a document; transform it once
+		String fingerprint = EntityFingerprint.of("Practitioner", cdaAssignedEntity.getIds(),
+				cdaAssignedEntity.getAssignedPerson() != null ? cdaAssignedEntity.getAssignedPerson().getNames() : null, cdaAssignedEntity.getAddrs());
+		Bundle cachedBundle = getCachedEntity(fingerprint);
+		if(cachedBundle != null)
+			return copyEntityBundle(cachedBundle);
+		Practitioner knownPractitioner = getKnownEntity("Practitioner", fingerprint, Practitioner::new);
+		if(knownPractitioner != null) {
+			Bundle knownBundle = new Bundle();
+			knownBundle.addEntry(new Bundle.Entry().setResource(knownPractitioner));
+			return copyEntityBundle(cacheEntity(fingerprint, knownBundle));
+		}
+		
 		Practitioner fhirPractitioner = new Practitioner();
 
 		// bundle
@@ -387,7 +517,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirPractitionerBundle.addEntry(new Bundle.Entry().setResource(fhirPractitioner));
 			
 		// resource id
-		IdDt resourceId = new IdDt("Practitioner", getUniqueId());
+		IdDt resourceId = getEntityId("Practitioner", fingerprint, cdaAssignedEntity);
 		fhirPractitioner.setId(resourceId);
 		
 		// meta.profile
@@ -448,7 +578,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 			}
 		}
 
-		return fhirPractitionerBundle;
+		return copyEntityBundle(cacheEntity(fingerprint, fhirPractitionerBundle));
 	}
 
 	public Bundle tAuthor2Practitioner(org.openhealthtools.mdht.uml.cda.Author cdaAuthor) {
@@ -465,10 +595,19 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		if(cdaSubstanceCode == null || cdaSubstanceCode.isSetNullFlavor())
 			return null;
 
+		// substances are identified by their codes
+		String fingerprint = EntityFingerprint.ofCode("Substance", cdaSubstanceCode);
+		Substance cachedSubstance = getCachedEntity(fingerprint);
+		if(cachedSubstance != null)
+			return cachedSubstance;
+		Substance knownSubstance = getKnownEntity("Substance", fingerprint, Substance::new);
+		if(knownSubstance != null)
+			return cacheEntity(fingerprint, knownSubstance);
+
 		Substance fhirSubstance = new Substance();
 
 		// resource id
-		fhirSubstance.setId(new IdDt("Substance", getUniqueId()));
+		fhirSubstance.setId(getEntityId("Substance", fingerprint, cdaSubstanceCode));
 
 		// meta.profile
 		if(Config.isGenerateDafProfileMetadata())
@@ -477,7 +616,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		// code -> code
 		fhirSubstance.setCode(dtt.tCD2CodeableConcept(cdaSubstanceCode));
 
-		return fhirSubstance;
+		return cacheEntity(fingerprint, fhirSubstance);
 	}
 	
 	public Bundle tClinicalDocument2Composition(ClinicalDocument cdaClinicalDocument) {
@@ -487,7 +626,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		// create and init the global bundle and the composition resources
 		Bundle fhirCompBundle = new Bundle();
 		Composition fhirComp = new Composition();
-		fhirComp.setId(new IdDt("Composition", getUniqueId()));
+		fhirComp.setId(new IdDt("Composition", getUniqueId("Composition", cdaClinicalDocument)));
 		fhirCompBundle.addEntry(new Bundle.Entry().setResource(fhirComp));
 		
 		// id -> identifier
@@ -601,10 +740,20 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		if(cdaOrganization == null || cdaOrganization.isSetNullFlavor())
 			return null;
 		
+		// the custodian is often the represented organization of the authors as well
+		String fingerprint = EntityFingerprint.of("Organization", cdaOrganization.getIds(),
+				cdaOrganization.getName() != null ? Collections.singletonList(cdaOrganization.getName()) : null, cdaOrganization.getAddrs());
+		Organization cachedOrganization = getCachedEntity(fingerprint);
+		if(cachedOrganization != null)
+			return cachedOrganization;
+		Organization knownOrganization = getKnownEntity("Organization", fingerprint, Organization::new);
+		if(knownOrganization != null)
+			return cacheEntity(fingerprint, knownOrganization);
+		
 		Organization fhirOrganization = new Organization();
 		
 		// resource id
-		IdDt resourceId = new IdDt("Organization", getUniqueId());
+		IdDt resourceId = getEntityId("Organization", fingerprint, cdaOrganization);
 		fhirOrganization.setId(resourceId);
 
 		// meta.profile
@@ -643,7 +792,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 			}
 		}
 
-		return fhirOrganization;
+		return cacheEntity(fingerprint, fhirOrganization);
 	}
 	
 	public Bundle tEncounter2Encounter(org.openhealthtools.mdht.uml.cda.Encounter cdaEncounter) {
@@ -658,7 +807,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		// NOTE: hospitalization.period not found. However, daf requires it being mapped
 
 		// resource id
-		IdDt resourceId = new IdDt("Encounter", getUniqueId());
+		IdDt resourceId = new IdDt("Encounter", getUniqueId("Encounter", cdaEncounter));
 		fhirEncounter.setId(resourceId);
 
 		// meta.profile
@@ -801,7 +950,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		// NOTE: hospitalization.period not found. However, daf requires it being mapped
 
 		// resource id
-		IdDt resourceId = new IdDt("Encounter",getUniqueId());
+		IdDt resourceId = new IdDt("Encounter", getUniqueId("Encounter", cdaEncounterActivity));
 		fhirEncounter.setId(resourceId);
 
 		// meta.profile
@@ -985,7 +1134,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		FamilyMemberHistory fhirFMH = new FamilyMemberHistory();
 		
 		// resource id
-		IdDt resourceId = new IdDt("FamilyMemberHistory", getUniqueId());
+		IdDt resourceId = new IdDt("FamilyMemberHistory", getUniqueId("FamilyMemberHistory", cdaFHO));
 		fhirFMH.setId(resourceId);
 
 		// meta.profile
@@ -1109,7 +1258,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirObsBundle.addEntry(new Bundle.Entry().setResource(fhirObs));
 		
 		// resource id
-		IdDt resourceId = new IdDt("Observation", getUniqueId());
+		IdDt resourceId = new IdDt("Observation", getUniqueId("Observation", cdaObservation));
 		fhirObs.setId(resourceId);
 		
 		// subject
@@ -1248,7 +1397,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirImmunizationBundle.addEntry(new Bundle.Entry().setResource(fhirImmunization));
 		
 		// resource id
-		IdDt resourceId = new IdDt("Immunization", getUniqueId());
+		IdDt resourceId = new IdDt("Immunization", getUniqueId("Immunization", cdaImmunizationActivity));
 		fhirImmunization.setId(resourceId);
 
 		// meta.profile
@@ -1406,7 +1555,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		Condition fhirCond = new Condition();
 
 		// resource id
-		IdDt resourceId = new IdDt("Condition", getUniqueId());
+		IdDt resourceId = new IdDt("Condition", getUniqueId("Condition", cdaIndication));
 		fhirCond.setId(resourceId);
 
 		// patient
@@ -1519,7 +1668,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirMedicationBundle.addEntry(new Bundle.Entry().setResource(fhirMedication));
 		
 		// resource id
-		IdDt resourceId = new IdDt("Medication", getUniqueId());
+		IdDt resourceId = new IdDt("Medication", getUniqueId("Medication", cdaManufacturedProduct));
 		fhirMedication.setId(resourceId);
 
 		// meta.profile
@@ -1569,7 +1718,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		medStatementBundle.addEntry(new Bundle.Entry().setResource(fhirMedSt));
 	
 		// resource id
-		IdDt resourceId = new IdDt("MedicationStatement", getUniqueId());
+		IdDt resourceId = new IdDt("MedicationStatement", getUniqueId("MedicationStatement", cdaMedicationActivity));
 		fhirMedSt.setId(resourceId);
 
 		// meta.profile
@@ -1695,7 +1844,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirMediDisp.setPatient(getPatientRef());
 		
 		// resource id
-		IdDt resourceId = new IdDt("MedicationDispense", getUniqueId());
+		IdDt resourceId = new IdDt("MedicationDispense", getUniqueId("MedicationDispense", cdaMedicationDispense));
 		fhirMediDisp.setId(resourceId);
 
 		// meta.profile
@@ -1843,7 +1992,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirObsBundle.addEntry(new Bundle.Entry().setResource(fhirObs));
 
 		// resource id
-		IdDt resourceId = new IdDt("Observation", getUniqueId());
+		IdDt resourceId = new IdDt("Observation", getUniqueId("Observation", cdaObservation));
 		fhirObs.setId(resourceId);
 
 		// subject
@@ -2003,10 +2152,19 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		if(cdaOrganization == null || cdaOrganization.isSetNullFlavor())
 			return null;
 		
+		// the same organization usually occurs many times in a document; transform it once
+		String fingerprint = EntityFingerprint.of("Organization", cdaOrganization.getIds(), cdaOrganization.getNames(), cdaOrganization.getAddrs());
+		Organization cachedOrganization = getCachedEntity(fingerprint);
+		if(cachedOrganization != null)
+			return cachedOrganization;
+		Organization knownOrganization = getKnownEntity("Organization", fingerprint, Organization::new);
+		if(knownOrganization != null)
+			return cacheEntity(fingerprint, knownOrganization);
+		
 		Organization fhirOrganization = new Organization();
 		
 		// resource id
-		IdDt resourceId = new IdDt("Organization",getUniqueId());
+		IdDt resourceId = getEntityId("Organization", fingerprint, cdaOrganization);
 		fhirOrganization.setId(resourceId);
 
 		// meta.profile
@@ -2049,17 +2207,27 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 			}
 		}
 
-		return fhirOrganization;
+		return cacheEntity(fingerprint, fhirOrganization);
 	}
 
 	public Location tParticipantRole2Location(ParticipantRole cdaParticipantRole) {
 		if(cdaParticipantRole == null || cdaParticipantRole.isSetNullFlavor())
 			return null;
 
+		// the same location usually occurs in many encounters and procedures; transform it once
+		String fingerprint = EntityFingerprint.of("Location", cdaParticipantRole.getIds(),
+				cdaParticipantRole.getPlayingEntity() != null ? cdaParticipantRole.getPlayingEntity().getNames() : null, cdaParticipantRole.getAddrs());
+		Location cachedLocation = getCachedEntity(fingerprint);
+		if(cachedLocation != null)
+			return cachedLocation;
+		Location knownLocation = getKnownEntity("Location", fingerprint, Location::new);
+		if(knownLocation != null)
+			return cacheEntity(fingerprint, knownLocation);
+
 		Location fhirLocation = new Location();
 		
 		// resource id
-		IdDt resourceId = new IdDt("Location", getUniqueId());
+		IdDt resourceId = getEntityId("Location", fingerprint, cdaParticipantRole);
 		fhirLocation.setId(resourceId);
 
 		// meta.profile
@@ -2113,7 +2281,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 			}
 		}			
 
-		return fhirLocation;
+		return cacheEntity(fingerprint, fhirLocation);
 	}
 	
 	public Bundle tPatientRole2Patient(PatientRole cdaPatientRole) {
@@ -2126,7 +2294,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirPatientBundle.addEntry(new Bundle.Entry().setResource(fhirPatient));
 
 		// resource id
-		IdDt resourceId = new IdDt("Patient", getUniqueId());
+		IdDt resourceId = new IdDt("Patient", getUniqueId("Patient", cdaPatientRole));
 		fhirPatient.setId(resourceId);
 
 		// meta.profile
@@ -2304,7 +2472,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirConditionBundle.addEntry(new Bundle.Entry().setResource(fhirCondition));
 		
 		// resource id
-		IdDt resourceId = new IdDt("Condition", getUniqueId());
+		IdDt resourceId = new IdDt("Condition", getUniqueId("Condition", cdaProbObs));
 		fhirCondition.setId(resourceId);
 
 		// meta.profile
@@ -2408,7 +2576,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirProcBundle.addEntry(new Bundle.Entry().setResource(fhirProc));
 
 		// resource id
-		IdDt resourceId = new IdDt("Procedure", getUniqueId());
+		IdDt resourceId = new IdDt("Procedure", getUniqueId("Procedure", cdaProcedure));
 		fhirProc.setId(resourceId);
 		
 		// meta.profile
@@ -2561,7 +2729,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		fhirDiagReportBundle.addEntry(new Bundle.Entry().setResource(fhirDiagReport));
 		
 		// resource id
-		IdDt resourceId = new IdDt("DiagnosticReport", getUniqueId());
+		IdDt resourceId = new IdDt("DiagnosticReport", getUniqueId("DiagnosticReport", cdaResultOrganizer));
 		fhirDiagReport.setId(resourceId);
 
 		// meta.profile
@@ -2646,7 +2814,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 			// if there is no information about the performer in CDA side, assign an empty Practitioner resource
 			// which has data absent reason: unknown
 			Practitioner fhirPerformerDataAbsent = new Practitioner();
-			fhirPerformerDataAbsent.setId(new IdDt("Practitioner", getUniqueId()));
+			fhirPerformerDataAbsent.setId(new IdDt("Practitioner", getUniqueId("Practitioner", cdaResultOrganizer)));
 			ExtensionDt extDataAbsentReason = new ExtensionDt();
 
 			// meta.profile
@@ -2702,8 +2870,10 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		}
 
 		// text -> text
-		if(cdaSection.getText() != null) {
-			NarrativeDt fhirText = dtt.tStrucDocText2Narrative(cdaSection.getText());
+		NarrativeModeEnum narrativeMode = getNarrativeMode();
+		if(cdaSection.getText() != null && narrativeMode != NarrativeModeEnum.NONE) {
+			NarrativeDt fhirText = narrativeMode == NarrativeModeEnum.DEFERRED ? dtt.tStrucDocText2DeferredNarrative(cdaSection.getText())
+					: dtt.tStrucDocText2Narrative(cdaSection.getText());
 			if(fhirText != null)
 				fhirSec.setText(fhirText);
 		}
@@ -2743,7 +2913,7 @@ public class ResourceTransformerImpl implements IResourceTransformer, Serializab
 		Device fhirDev = new Device();
 
 		// resource id
-		IdDt resourceId = new IdDt("Device", getUniqueId());
+		IdDt resourceId = new IdDt("Device", getUniqueId("Device", cdaSupply));
 		fhirDev.setId(resourceId);
 		
 		// patient
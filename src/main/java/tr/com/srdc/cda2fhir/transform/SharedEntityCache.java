@@ -0,0 +1,107 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import tr.com.srdc.cda2fhir.util.BoundedCache;
+import tr.com.srdc.cda2fhir.util.ContentHashIdGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps the fingerprints of the CDA entities shared by many documents (e.g. the custodian organization, the practitioners of a facility,
+ * the locations and substances) to stable FHIR resource ids. When the same cache is given to the transformations of many documents,
+ * an entity gets the same resource id in all of them. Optionally, the entities already emitted by a previous document are not emitted again;
+ * the resources of the later documents then refer to the resources emitted before, which should already be on the target server.
+ * The id of an entity is the hash of its fingerprint rather than an id of the generator of the document it is first seen in, as the ids of
+ * a per-document generator (e.g. COUNTER) are repeated across documents; hence, an entity gets the same id again after it is evicted from the cache,
+ * which is bounded in size and, optionally, in time.
+ * Instances are safe to be shared by concurrent transformations.
+ */
+public class SharedEntityCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private final BoundedCache<String, String> ids;
+    private volatile boolean skipKnownEntities;
+
+    /**
+     * Constructs a cache of DEFAULT_MAXIMUM_SIZE entities, whose entries never expire
+     */
+    public SharedEntityCache() {
+        this(DEFAULT_MAXIMUM_SIZE, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maximumSize Maximum number of entities to be kept, > 0
+     * @param timeToLive Time an entity is kept after it is first seen. If not positive, the entities never expire.
+     * @param unit Unit of the timeToLive
+     */
+    public SharedEntityCache(int maximumSize, long timeToLive, TimeUnit unit) {
+        this.ids = new BoundedCache<String, String>(maximumSize, timeToLive, unit);
+    }
+
+    /**
+     * @return true if the entities known from previous documents are only referred to, but not emitted again
+     */
+    public boolean isSkipKnownEntities() {
+        return skipKnownEntities;
+    }
+
+    /**
+     * Sets whether the entities known from previous documents are emitted again. If set, only the first document in which an entity
+     * occurs contains its resource; this requires the bundles to be loaded to the same server in the order they are produced.
+     * @param skipKnownEntities true to skip re-emitting the known entities. The default is false.
+     */
+    public void setSkipKnownEntities(boolean skipKnownEntities) {
+        this.skipKnownEntities = skipKnownEntities;
+    }
+
+    /**
+     * @param fingerprint The fingerprint of the CDA entity, see EntityFingerprint
+     * @return The id of the resource of the entity, or null if the entity is not known
+     */
+    public String getId(String fingerprint) {
+        return ids.get(fingerprint);
+    }
+
+    /**
+     * Returns the id of the resource of the entity, assigning it an id derived from its fingerprint if the entity is not known
+     * @param fingerprint The fingerprint of the CDA entity, see EntityFingerprint
+     * @return The stable id of the resource of the entity
+     */
+    public String getOrAssignId(String fingerprint) {
+        return ids.get(fingerprint, ContentHashIdGenerator::hashToId);
+    }
+
+    /**
+     * Forgets all the known entities
+     */
+    public void clear() {
+        ids.invalidateAll();
+    }
+
+    /**
+     * @return The underlying cache, e.g. to read its hit, miss and eviction counts
+     */
+    public BoundedCache<String, String> getCache() {
+        return ids;
+    }
+}
@@ -0,0 +1,219 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.eclipse.emf.ecore.impl.EStructuralFeatureImpl;
+import org.eclipse.emf.ecore.util.FeatureMap;
+import org.eclipse.emf.ecore.xml.type.AnyType;
+import org.openhealthtools.mdht.uml.cda.StrucDocText;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the narrative block of a CDA section (StrucDocText) as an XHTML div, in a single pass over the mixed content into one StringBuilder.
+ * The CDA narrative elements are renamed to their XHTML counterparts (e.g. paragraph to p, list to ul or ol), the id and styleCode attributes are dropped,
+ * and the texts are escaped character by character. The cost is linear in the size of the narrative.
+ */
+public class StrucDocTextWriter {
+
+    // CDA narrative element names (lower case) -> XHTML element names. The other elements keep their names.
+    private static final Map<String, String> TAG_NAMES = new HashMap<String, String>();
+
+    // the builders larger than this are not kept for reuse, not to pin the memory of an exceptionally large narrative
+    private static final int MAX_REUSED_CAPACITY = 1 << 20;
+
+    private static final ThreadLocal<StringBuilder> BUILDERS = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    private static final Logger logger = LoggerFactory.getLogger(StrucDocTextWriter.class);
+
+    static {
+        TAG_NAMES.put("paragraph", "p");
+        TAG_NAMES.put("content", "span");
+        TAG_NAMES.put("item", "li");
+        TAG_NAMES.put("linkhtml", "a");
+        TAG_NAMES.put("list", "ul");
+    }
+
+    private StrucDocTextWriter() {
+    }
+
+    /**
+     * @param sdt A CDA StrucDocText instance
+     * @return A Java String containing the XHTML div corresponding to the narrative block
+     */
+    public static String toString(StrucDocText sdt) {
+        StringBuilder out = BUILDERS.get();
+        out.setLength(0);
+        write(sdt, out);
+        String div = out.toString();
+        if(out.capacity() > MAX_REUSED_CAPACITY)
+            BUILDERS.set(new StringBuilder(1024));
+        return div;
+    }
+
+    /**
+     * Appends the XHTML div corresponding to the narrative block to the given builder
+     * @param sdt A CDA StrucDocText instance
+     * @param out The builder to be appended to
+     */
+    public static void write(StrucDocText sdt, StringBuilder out) {
+        out.append("<div>");
+        writeMixed(sdt.getMixed(), out);
+        out.append("</div>");
+    }
+
+    private static void writeMixed(FeatureMap mixed, StringBuilder out) {
+        for(FeatureMap.Entry entry : mixed) {
+            if(entry instanceof EStructuralFeatureImpl.ContainmentUpdatingFeatureMapEntry)
+                writeElement(entry, out);
+            else if(entry instanceof EStructuralFeatureImpl.SimpleFeatureMapEntry)
+                writeText(entry, out);
+            else
+                logger.warn("Unknown entry was found while transforming a StrucDocText instance to Narrative. Skipping it");
+        }
+    }
+
+    private static void writeText(FeatureMap.Entry entry, StringBuilder out) {
+        String typeName = entry.getEStructuralFeature().getName().toLowerCase();
+        if(typeName.equals("comment")) {
+            out.append("<!-- ");
+            escape(entry.getValue().toString(), out);
+            out.append(" -->");
+        } else {
+            if(!typeName.equals("text"))
+                logger.warn("Unknown element type was found while transforming a StrucDocText instance to Narrative. Returning the value of the element");
+            escape(entry.getValue().toString(), out);
+        }
+    }
+
+    private static void writeElement(FeatureMap.Entry entry, StringBuilder out) {
+        String tagName = entry.getEStructuralFeature().getName();
+        Object value = entry.getValue();
+        List<String> attributes = value instanceof AnyType ? getAttributes((AnyType) value) : new ArrayList<String>(0);
+
+        // the last id and styleCode attributes are not carried over
+        removeLast(attributes, "id=\"");
+        removeLast(attributes, "stylecode=\"");
+
+        if(tagName.equals("list")) {
+            // the listType attribute decides between ul and ol; notice that "unordered" also contains "ordered"
+            tagName = "ul";
+            int listType = -1;
+            for(int i = 0; i < attributes.size(); i++) {
+                String attribute = attributes.get(i).toLowerCase();
+                if(attribute.contains("listtype")) {
+                    if(attribute.contains("unordered"))
+                        tagName = "ul";
+                    else if(attribute.contains("ordered"))
+                        tagName = "ol";
+                    listType = i;
+                }
+            }
+            if(listType >= 0)
+                attributes.remove(listType);
+        } else {
+            String mappedName = TAG_NAMES.get(tagName.toLowerCase());
+            if(mappedName != null)
+                tagName = mappedName;
+        }
+
+        out.append('<').append(tagName);
+        for(String attribute : attributes)
+            out.append(' ').append(attribute);
+        out.append('>');
+        if(value instanceof AnyType) {
+            writeMixed(((AnyType) value).getMixed(), out);
+        } else {
+            logger.warn("Unknown element content was found while transforming a StrucDocText instance to Narrative: {}", value != null ? value.getClass() : null);
+            out.append("null");
+        }
+        out.append("</").append(tagName).append('>');
+    }
+
+    /**
+     * @return The attributes of an element in form: attributeName="attributeValue", or attributeName if the attribute has no value
+     */
+    private static List<String> getAttributes(AnyType element) {
+        FeatureMap anyAttribute = element.getAnyAttribute();
+        List<String> attributes = new ArrayList<String>(anyAttribute.size());
+        for(FeatureMap.Entry attribute : anyAttribute) {
+            String name = attribute.getEStructuralFeature().getName();
+            String value = attribute.getValue().toString();
+            if(name != null && !name.isEmpty())
+                attributes.add(value.isEmpty() ? name : name + "=\"" + value + "\"");
+        }
+        return attributes;
+    }
+
+    private static void removeLast(List<String> attributes, String lowerCasePrefix) {
+        for(int i = attributes.size() - 1; i >= 0; i--) {
+            String attribute = attributes.get(i);
+            if(attribute.regionMatches(true, 0, lowerCasePrefix, 0, lowerCasePrefix.length())) {
+                attributes.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends a narrative text, leaving out the line feeds and tabs. The markup characters are escaped and
+     * the already escaped ampersands (i.e. a literal "&amp;amp;") are kept as they are.
+     */
+    private static void escape(String text, StringBuilder out) {
+        if(text.indexOf('\n') >= 0 || text.indexOf('\t') >= 0)
+            text = removeLineFeedsAndTabs(text);
+        int length = text.length();
+        for(int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch(c) {
+                case '&':
+                    out.append("&amp;");
+                    if(text.startsWith("amp;", i + 1))
+                        i += 4;
+                    break;
+                case '<':
+                    // the entity is escaped once more, as before
+                    out.append("&amp;lt;");
+                    break;
+                case '>':
+                    out.append("&amp;gt;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    private static String removeLineFeedsAndTabs(String text) {
+        StringBuilder stripped = new StringBuilder(text.length());
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c != '\n' && c != '\t')
+                stripped.append(c);
+        }
+        return stripped.toString();
+    }
+}
@@ -0,0 +1,522 @@
+package tr.com.srdc.cda2fhir.transform;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Composition;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.util.FhirTerser;
+import org.eclipse.emf.ecore.EObject;
+import tr.com.srdc.cda2fhir.conf.Config;
+import tr.com.srdc.cda2fhir.util.IIdGenerator;
+import tr.com.srdc.cda2fhir.util.IdGeneratorEnum;
+import tr.com.srdc.cda2fhir.util.NarrativeModeEnum;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the state of a single document transformation: the patient reference, the resource id state and the options of the call.
+ * A new context is created for each transformDocument call, so that a single transformer (and the resource, data types and value sets
+ * transformers it owns) can serve concurrent transformations. While a document is being transformed, its context is bound to the
+ * transforming thread(s) and can be reached through TransformationContext.current().
+ * <p>
+ * The parts of a document that are transformed concurrently (the sections, or the entries of a large section) each get a context forked
+ * from the context of the document. A forked context hands out provisional resource ids and does not share the entities it transforms;
+ * instead, it records its id requests, entity lookups and recorded entities in the order they are made. The forked contexts are joined
+ * in document order: the ids are then generated and the repeated entities are settled in exactly the order the sequential transformation
+ * would have done, and the resulting Resolution rewrites the resources of the part accordingly. Hence, the concurrent transformation of
+ * a document gives the same Bundle as the sequential one, with any id generator.
+ */
+public class TransformationContext {
+
+    private static final ThreadLocal<TransformationContext> CURRENT = new ThreadLocal<TransformationContext>();
+
+    // prefix of the provisional ids handed out by the forked contexts, which is not used by any id generator
+    private static final String PROVISIONAL_ID_PREFIX = "~";
+
+    private final IdGeneratorEnum idGenerator;
+    private final IIdGenerator idGen;
+    // the context of the document this context is forked from, or null if this is the context of a document
+    private final TransformationContext root;
+    // the id requests, entity lookups and records, omissions and joined forks of a forked context, in the order they are made
+    private final List<Object> journal;
+    private final AtomicLong provisionalIds;
+    private volatile ResourceReferenceDt patientRef;
+    private volatile boolean deduplicateEntities = true;
+    // the Practitioners, Organizations etc. already transformed in this document, by their entity fingerprints
+    private final ConcurrentMap<String, Object> entities;
+    private volatile SharedEntityCache sharedEntityCache;
+    private volatile CodeableConceptCache codeableConceptCache;
+    private volatile NarrativeModeEnum sectionNarrativeMode = NarrativeModeEnum.EAGER;
+    private volatile boolean generateResourceNarratives;
+    // ids of the resources that are referred to, but not emitted, since a previous document has emitted them
+    private final Set<String> omittedIds;
+
+    /**
+     * Constructs a context with the given id generator and no patient reference.
+     * The patient reference is then initiated from the recordTarget of the document.
+     * @param idGenerator The resource id generator to be used throughout the transformation
+     */
+    public TransformationContext(IdGeneratorEnum idGenerator) {
+        this(idGenerator, null);
+    }
+
+    /**
+     * Constructs a context with the given id generator and patient reference
+     * @param idGenerator The resource id generator to be used throughout the transformation
+     * @param patientRef Patient reference to be used for the resources of the document. If null, it is initiated from the recordTarget of the document.
+     */
+    public TransformationContext(IdGeneratorEnum idGenerator, ResourceReferenceDt patientRef) {
+        this.idGenerator = idGenerator != null ? idGenerator : IdGeneratorEnum.UUID;
+        this.idGen = this.idGenerator.newGenerator();
+        this.patientRef = patientRef;
+        this.root = null;
+        this.journal = null;
+        this.provisionalIds = new AtomicLong();
+        this.entities = new ConcurrentHashMap<String, Object>();
+        this.omittedIds = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Constructs a context forked from the given one, carrying its options
+     * @param parent The context of the document, or of the part of it, this context is forked from
+     */
+    private TransformationContext(TransformationContext parent) {
+        this.idGenerator = parent.idGenerator;
+        this.idGen = null;
+        this.root = parent.root != null ? parent.root : parent;
+        this.journal = new ArrayList<Object>();
+        this.provisionalIds = null;
+        this.entities = null;
+        this.omittedIds = null;
+        this.patientRef = parent.patientRef;
+        this.deduplicateEntities = parent.deduplicateEntities;
+        this.sharedEntityCache = parent.sharedEntityCache;
+        this.codeableConceptCache = parent.codeableConceptCache;
+        this.sectionNarrativeMode = parent.sectionNarrativeMode;
+        this.generateResourceNarratives = parent.generateResourceNarratives;
+    }
+
+    /**
+     * Returns the context bound to the current thread
+     * @return The context of the transformation the current thread works on, or null if the thread is not transforming a document
+     */
+    public static TransformationContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds the given context to the current thread
+     * @param context The context to be bound
+     * @return The context that was bound to the current thread before; it should be passed to restore when the work is done
+     */
+    static TransformationContext bind(TransformationContext context) {
+        TransformationContext previous = CURRENT.get();
+        CURRENT.set(context);
+        return previous;
+    }
+
+    /**
+     * Forks a context for a part of the document (e.g. a section or an entry) that is to be transformed concurrently with the other parts.
+     * The forked context should be bound to the thread transforming the part, and joined to this context once the part is transformed.
+     * @return A new forked context carrying the options of this context
+     */
+    TransformationContext fork() {
+        return new TransformationContext(this);
+    }
+
+    /**
+     * Joins a context forked from this one. The forked contexts of a context should be joined in document order, after the parts
+     * transformed before the fork (e.g. the header of the document) and before the parts transformed after the join.
+     * If this is the context of a document, the ids requested by the forked context are generated, and its entities are settled against
+     * the entities of the document as if the part had been transformed sequentially; the returned resolution should then be applied to
+     * the results of the part. Otherwise, the forked context is settled when this context is joined in turn.
+     * @param forked A context forked from this one, whose part has been transformed
+     * @return The resolution to be applied to the results of the part
+     */
+    Resolution join(TransformationContext forked) {
+        if(root != null) {
+            journal.add(forked);
+            return Resolution.NONE;
+        }
+        Resolution resolution = new Resolution();
+        settle(forked, resolution);
+        return resolution;
+    }
+
+    /**
+     * Replays the journal of a forked context, and of the contexts joined to it, in order
+     */
+    private void settle(TransformationContext forked, Resolution resolution) {
+        for(Object event : forked.journal) {
+            if(event instanceof TransformationContext) {
+                settle((TransformationContext) event, resolution);
+            } else if(event instanceof IdRequest) {
+                IdRequest request = (IdRequest) event;
+                if(resolution.skippedEntities > 0)
+                    resolution.droppedIds.add(request.provisionalId);
+                else
+                    resolution.ids.put(request.provisionalId, request.resourceType != null ? idGen.generateId(request.resourceType, request.source) : idGen.generateId());
+            } else if(event instanceof EntityLookup) {
+                // the sequential transformation finds the entities transformed before; the part's transformation of such an entity is dropped
+                if(resolution.skippedEntities > 0 || entities.containsKey(((EntityLookup) event).fingerprint))
+                    resolution.skippedEntities++;
+            } else if(event instanceof EntityRecord) {
+                EntityRecord record = (EntityRecord) event;
+                if(resolution.skippedEntities == 0)
+                    entities.putIfAbsent(record.fingerprint, record.entity);
+                else if(--resolution.skippedEntities == 0)
+                    resolution.replace(record.entity, entities.get(record.fingerprint));
+            } else if(event instanceof String) {
+                if(resolution.skippedEntities == 0)
+                    omittedIds.add((String) event);
+            }
+        }
+    }
+
+    /**
+     * Restores the context that was bound to the current thread before a call to bind
+     * @param previous The value returned by the corresponding call to bind
+     */
+    static void restore(TransformationContext previous) {
+        if(previous == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(previous);
+    }
+
+    public IdGeneratorEnum getIdGenerator() {
+        return idGenerator;
+    }
+
+    public ResourceReferenceDt getPatientRef() {
+        return patientRef;
+    }
+
+    public void setPatientRef(ResourceReferenceDt patientRef) {
+        this.patientRef = patientRef;
+    }
+
+    /**
+     * Generates a resource id that is unique within the document
+     * @return a unique resource id
+     */
+    public String getUniqueId() {
+        return getUniqueId(null, null);
+    }
+
+    /**
+     * Generates a resource id that is unique within the document for a resource transformed from the given CDA artifact
+     * @param resourceType Type of the FHIR resource to be identified
+     * @param source The CDA artifact the resource is transformed from
+     * @return a unique resource id
+     */
+    public String getUniqueId(String resourceType, EObject source) {
+        if(root == null)
+            return resourceType != null ? idGen.generateId(resourceType, source) : idGen.generateId();
+        // the id is generated when this context is joined to the context of the document
+        String provisionalId = PROVISIONAL_ID_PREFIX + root.provisionalIds.incrementAndGet();
+        journal.add(new IdRequest(provisionalId, resourceType, source));
+        return provisionalId;
+    }
+
+    /**
+     * @return true if the repeating entities of the document are transformed once. This is always the case when a shared entity cache is set,
+     * as the occurrences of an entity then get the same resource id.
+     */
+    public boolean isDeduplicateEntities() {
+        return deduplicateEntities || sharedEntityCache != null;
+    }
+
+    /**
+     * Enables or disables the per-document entity cache. If enabled (default), the authors, performers and organizations
+     * that occur many times in the document are transformed once and all their occurrences refer to the same resource.
+     * @param deduplicateEntities true to transform repeating entities once
+     */
+    public void setDeduplicateEntities(boolean deduplicateEntities) {
+        this.deduplicateEntities = deduplicateEntities;
+    }
+
+    /**
+     * Looks up an entity already transformed in this document
+     * @param fingerprint The fingerprint of the CDA entity, see EntityFingerprint
+     * @return The FHIR representation of the entity, or null if the entity has not been transformed yet or the cache is disabled
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getEntity(String fingerprint) {
+        if(!isDeduplicateEntities() || fingerprint == null)
+            return null;
+        if(root == null)
+            return (T) entities.get(fingerprint);
+        // a forked context only finds the entities settled before the fork; the rest are settled when it is joined
+        Object entity = root.entities.get(fingerprint);
+        if(entity == null)
+            journal.add(new EntityLookup(fingerprint));
+        return (T) entity;
+    }
+
+    /**
+     * Records the FHIR representation of an entity transformed in this document. When the same entity is transformed concurrently
+     * by two threads within this context, the first one recorded wins and both threads should continue with the returned value.
+     * A forked context only records the entity in its journal; the entity is settled when the context is joined.
+     * @param fingerprint The fingerprint of the CDA entity, see EntityFingerprint
+     * @param entity The FHIR representation of the entity
+     * @return The representation recorded for the entity, which is the given one unless another thread has recorded one before
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T putEntity(String fingerprint, T entity) {
+        if(!isDeduplicateEntities() || fingerprint == null || entity == null)
+            return entity;
+        if(root != null) {
+            journal.add(new EntityRecord(fingerprint, entity));
+            return entity;
+        }
+        Object previous = entities.putIfAbsent(fingerprint, entity);
+        return previous != null ? (T) previous : entity;
+    }
+
+    public SharedEntityCache getSharedEntityCache() {
+        return sharedEntityCache;
+    }
+
+    /**
+     * Sets the cache of the entities shared with the other documents
+     * @param sharedEntityCache The cache that maps the shared entities to stable resource ids, or null to identify the entities within this document only
+     */
+    public void setSharedEntityCache(SharedEntityCache sharedEntityCache) {
+        this.sharedEntityCache = sharedEntityCache;
+    }
+
+    public NarrativeModeEnum getSectionNarrativeMode() {
+        return sectionNarrativeMode;
+    }
+
+    /**
+     * @param sectionNarrativeMode The way the section narratives are transformed; null is taken as EAGER
+     */
+    public void setSectionNarrativeMode(NarrativeModeEnum sectionNarrativeMode) {
+        this.sectionNarrativeMode = sectionNarrativeMode != null ? sectionNarrativeMode : NarrativeModeEnum.EAGER;
+    }
+
+    public boolean isGenerateResourceNarratives() {
+        return generateResourceNarratives;
+    }
+
+    /**
+     * @param generateResourceNarratives true to generate the narratives of the resulting resources at the end of the transformation
+     */
+    public void setGenerateResourceNarratives(boolean generateResourceNarratives) {
+        this.generateResourceNarratives = generateResourceNarratives;
+    }
+
+    public CodeableConceptCache getCodeableConceptCache() {
+        return codeableConceptCache;
+    }
+
+    /**
+     * Sets the cache of the coded values transformed to CodeableConcepts
+     * @param codeableConceptCache The cache to be used while transforming this document, or null to transform every coded value
+     */
+    public void setCodeableConceptCache(CodeableConceptCache codeableConceptCache) {
+        this.codeableConceptCache = codeableConceptCache;
+    }
+
+    /**
+     * Marks a resource to be referred to, but left out of the document bundle
+     * @param resource A resource already emitted by a previous document
+     */
+    public void omitEntity(IResource resource) {
+        if(root != null)
+            journal.add(resource.getId().getValue());
+        else
+            omittedIds.add(resource.getId().getValue());
+    }
+
+    /**
+     * @param resource A resource of the document
+     * @return true if the resource should be left out of the document bundle
+     */
+    public boolean isOmitted(IResource resource) {
+        if(root != null)
+            return root.isOmitted(resource);
+        return !omittedIds.isEmpty() && resource.getId() != null && omittedIds.contains(resource.getId().getValue());
+    }
+
+    /**
+     * A resource id requested by a forked context
+     */
+    private static final class IdRequest {
+        private final String provisionalId;
+        private final String resourceType;
+        private final EObject source;
+
+        private IdRequest(String provisionalId, String resourceType, EObject source) {
+            this.provisionalId = provisionalId;
+            this.resourceType = resourceType;
+            this.source = source;
+        }
+    }
+
+    /**
+     * A lookup of an entity that a forked context has not found, and hence transforms
+     */
+    private static final class EntityLookup {
+        private final String fingerprint;
+
+        private EntityLookup(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * An entity transformed by a forked context
+     */
+    private static final class EntityRecord {
+        private final String fingerprint;
+        private final Object entity;
+
+        private EntityRecord(String fingerprint, Object entity) {
+            this.fingerprint = fingerprint;
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * The outcome of joining a forked context to the context of its document: the ids generated for the provisional ids of the part,
+     * and the resources of the entities the part has transformed again, which are replaced by the ones transformed first.
+     * Applying it to the results of the part rewrites their ids and references in place.
+     */
+    static final class Resolution {
+
+        // the resolution of a context joined to another forked context; the results are resolved when that context is joined in turn
+        static final Resolution NONE = new Resolution();
+
+        private final Map<String, String> ids = new HashMap<String, String>();
+        private final Set<String> droppedIds = new HashSet<String>();
+        private final Map<IResource, IResource> replacements = new IdentityHashMap<IResource, IResource>();
+        private final Set<IResource> resolved = Collections.newSetFromMap(new IdentityHashMap<IResource, Boolean>());
+        private FhirTerser terser;
+        // depth of the entity transformations being dropped while the journal is replayed
+        private int skippedEntities;
+
+        private Resolution() {
+        }
+
+        /**
+         * Replaces the resources of an entity transformed again by the resources of the same entity transformed first
+         * @param dropped The entity transformed again, a Bundle or a resource
+         * @param settled The entity settled before, of the same kind
+         */
+        private void replace(Object dropped, Object settled) {
+            if(dropped instanceof Bundle && settled instanceof Bundle) {
+                List<Bundle.Entry> droppedEntries = ((Bundle) dropped).getEntry();
+                List<Bundle.Entry> settledEntries = ((Bundle) settled).getEntry();
+                for(int i = 0; i < droppedEntries.size() && i < settledEntries.size(); i++) {
+                    replace(droppedEntries.get(i).getResource(), settledEntries.get(i).getResource());
+                }
+            } else if(dropped instanceof IResource && settled instanceof IResource) {
+                replace((IResource) dropped, (IResource) settled);
+            }
+        }
+
+        private void replace(IResource dropped, IResource settled) {
+            if(dropped == null || settled == null || !dropped.getResourceName().equals(settled.getResourceName()))
+                return;
+            String droppedId = dropped.getId().getIdPart();
+            // the resources of the entities the dropped one refers to may have been settled on their own
+            if(!droppedIds.contains(droppedId))
+                return;
+            replacements.put(dropped, settled);
+            String settledId = settled.getId().getIdPart();
+            ids.put(droppedId, ids.containsKey(settledId) ? ids.get(settledId) : settledId);
+        }
+
+        /**
+         * Resolves the results of a transformed part in place
+         * @param result A Bundle, a resource or a Composition.Section produced by the part
+         * @return The resolved result; a resource may be replaced by the resource of the same entity transformed before
+         */
+        @SuppressWarnings("unchecked")
+        <R> R resolve(R result) {
+            if(this == NONE || result == null)
+                return result;
+            if(result instanceof Bundle) {
+                Bundle bundle = (Bundle) result;
+                List<Bundle.Entry> entries = new ArrayList<Bundle.Entry>(bundle.getEntry().size());
+                for(Bundle.Entry entry : bundle.getEntry()) {
+                    IResource resource = entry != null ? resolveResource(entry.getResource()) : null;
+                    if(resource != null)
+                        entries.add(entry.setResource(resource));
+                }
+                bundle.setEntry(entries);
+            } else if(result instanceof IResource) {
+                return (R) resolveResource((IResource) result);
+            } else if(result instanceof Composition.Section) {
+                for(ResourceReferenceDt ref : ((Composition.Section) result).getEntry()) {
+                    resolveReference(ref);
+                }
+            }
+            return result;
+        }
+
+        private IResource resolveResource(IResource resource) {
+            if(resource == null)
+                return null;
+            IResource replacement = replacements.get(resource);
+            if(replacement != null)
+                return resolveResource(replacement);
+            String id = resource.getId().getIdPart();
+            if(droppedIds.contains(id))
+                return null;
+            if(!resolved.add(resource))
+                return resource;
+            if(ids.containsKey(id))
+                resource.setId(new IdDt(resource.getResourceName(), ids.get(id)));
+            if(terser == null)
+                terser = Config.getFhirContext().newTerser();
+            for(ResourceReferenceDt ref : terser.getAllPopulatedChildElementsOfType(resource, ResourceReferenceDt.class)) {
+                resolveReference(ref);
+            }
+            return resource;
+        }
+
+        private void resolveReference(ResourceReferenceDt ref) {
+            IdDt reference = ref.getReference();
+            if(reference == null || reference.isEmpty())
+                return;
+            String id = ids.get(reference.getIdPart());
+            if(id != null)
+                ref.setReference(new IdDt(reference.getResourceType(), id));
+        }
+    }
+}
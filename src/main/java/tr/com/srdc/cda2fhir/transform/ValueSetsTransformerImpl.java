@@ -33,9 +33,30 @@ import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
 import ca.uhn.fhir.model.dstu2.composite.CodingDt;
 
 import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import tr.com.srdc.cda2fhir.util.CodeSystemRegistry;
 
 public class ValueSetsTransformerImpl implements IValueSetsTransformer, Serializable {
 
+	// The codings of the fixed value sets are created once and shared by all the resources they are set to; they should not be modified.
+	private static final Map<NullFlavor, CodingDt> DATA_ABSENT_REASON_CODES = new EnumMap<NullFlavor, CodingDt>(NullFlavor.class);
+	private static final Map<org.openhealthtools.mdht.uml.hl7.vocab.ParticipationType, CodingDt> PARTICIPATION_TYPE_CODES =
+			new EnumMap<org.openhealthtools.mdht.uml.hl7.vocab.ParticipationType, CodingDt>(org.openhealthtools.mdht.uml.hl7.vocab.ParticipationType.class);
+	// by the role and interpretation codes as they occur in the documents; the unmapped codes are not kept
+	private static final ConcurrentMap<String, CodingDt> PATIENT_CONTACT_RELATIONSHIP_CODES = new ConcurrentHashMap<String, CodingDt>();
+	private static final ConcurrentMap<String, CodingDt> INTERPRETATION_CODES = new ConcurrentHashMap<String, CodingDt>();
+
+	static {
+		for(NullFlavor nullFlavor : NullFlavor.values())
+			DATA_ABSENT_REASON_CODES.put(nullFlavor, createDataAbsentReasonCode(nullFlavor));
+		for(org.openhealthtools.mdht.uml.hl7.vocab.ParticipationType participationType : org.openhealthtools.mdht.uml.hl7.vocab.ParticipationType.values())
+			PARTICIPATION_TYPE_CODES.put(participationType, createParticipationTypeCode(participationType));
+	}
+
 	public AdministrativeGenderEnum tAdministrativeGenderCode2AdministrativeGenderEnum(String cdaAdministrativeGenderCode) {
 		switch (cdaAdministrativeGenderCode.toLowerCase()) {
 			case "f":
@@ -204,6 +225,10 @@ public class ValueSetsTransformerImpl implements IValueSetsTransformer, Serializ
 	}
 
 	public CodingDt tNullFlavor2DataAbsentReasonCode(NullFlavor cdaNullFlavor) {
+		return cdaNullFlavor != null ? DATA_ABSENT_REASON_CODES.get(cdaNullFlavor) : null;
+	}
+
+	private static CodingDt createDataAbsentReasonCode(NullFlavor cdaNullFlavor) {
 		CodingDt DataAbsentReasonCode = new CodingDt();
 		String code = null;
 		String display = null;
@@ -247,6 +272,12 @@ public class ValueSetsTransformerImpl implements IValueSetsTransformer, Serializ
 	public CodeableConceptDt tObservationInterpretationCode2ObservationInterpretationCode(CD cdaObservationInterpretationCode) {
 		if(cdaObservationInterpretationCode == null)
 			return null;
+		// the mapped codes share their coding; the others carry the code and display name of the CDA code
+		if(cdaObservationInterpretationCode.getCode() != null) {
+			CodingDt sharedCode = INTERPRETATION_CODES.computeIfAbsent(cdaObservationInterpretationCode.getCode(), ValueSetsTransformerImpl::createObservationInterpretationCode);
+			if(sharedCode != null)
+				return new CodeableConceptDt().addCoding(sharedCode);
+		}
 		CodingDt obsIntCode = new CodingDt();
 		obsIntCode.setSystem("http://hl7.org/fhir/v2/0078");
 		
@@ -258,9 +289,14 @@ public class ValueSetsTransformerImpl implements IValueSetsTransformer, Serializ
 		if(cdaObservationInterpretationCode.getDisplayName() != null)
 			display = cdaObservationInterpretationCode.getDisplayName();
 		
-		// if a different code is found, change it
-		if(cdaObservationInterpretationCode.getCode() != null) {
-			switch(cdaObservationInterpretationCode.getCode().toUpperCase()) {
+		obsIntCode.setCode(code);
+		obsIntCode.setDisplay(display);
+		return new CodeableConceptDt().addCoding(obsIntCode);
+	}
+
+	private static CodingDt createObservationInterpretationCode(String cdaObservationInterpretationCode) {
+		String code = null, display = null;
+		switch(cdaObservationInterpretationCode.toUpperCase()) {
 			case "AC":
 				code = "IE"; display = "Insufficient evidence"; break;
 			case "EX":
@@ -280,12 +316,9 @@ public class ValueSetsTransformerImpl implements IValueSetsTransformer, Serializ
 			case "L<":
 				code = "LU"; display = "Very low"; break;
 			default:
-				break;
+				return null;
 		}
-	}
-		obsIntCode.setCode(code);
-		obsIntCode.setDisplay(display);
-		return new CodeableConceptDt().addCoding(obsIntCode);
+		return new CodingDt("http://hl7.org/fhir/v2/0078", code).setDisplay(display);
 	}
 	
 	public ObservationStatusEnum tObservationStatusCode2ObservationStatusEnum(String cdaObservationStatusCode) {
@@ -314,100 +347,15 @@ public class ValueSetsTransformerImpl implements IValueSetsTransformer, Serializ
 	}
 
 	public String tOid2Url(String codeSystem) {
-		String system = null;
-		switch (codeSystem) {
-	        case "2.16.840.1.113883.6.96":
-	            system = "http://snomed.info/sct";
-	            break;
-	        case "2.16.840.1.113883.6.88":
-	            system = "http://www.nlm.nih.gov/research/umls/rxnorm";
-	            break;
-	        case "2.16.840.1.113883.6.1":
-	            system = "http://loinc.org";
-	            break;
-	        case "2.16.840.1.113883.6.8":
-	            system = "http://unitsofmeasure.org";
-	            break;
-	        case "2.16.840.1.113883.3.26.1.2":
-	            system = "http://ncimeta.nci.nih.gov";
-	            break;
-	        case "2.16.840.1.113883.6.12":
-	            system = "http://www.ama-assn.org/go/cpt";
-	            break;
-	        case "2.16.840.1.113883.6.209":
-	            system = "http://hl7.org/fhir/ndfrt";
-	            break;
-	        case "2.16.840.1.113883.4.9":
-	            system = "http://fdasis.nlm.nih.gov";
-	            break;
-	        case "2.16.840.1.113883.12.292":
-	            system = "http://www2a.cdc.gov/vaccines/iis/iisstandards/vaccines.asp?rpt=cvx";
-	            break;
-	        case "1.0.3166.1.2.2":
-	            system = "urn:iso:std:iso:3166";
-	            break;
-	        case "2.16.840.1.113883.6.301.5":
-	            system = "http://www.nubc.org/patient-discharge";
-	            break;
-	        case "2.16.840.1.113883.6.256":
-	            system = "http://www.radlex.org";
-	            break;
-	        case "2.16.840.1.113883.6.3":
-	            system = "http://hl7.org/fhir/sid/icd-10";
-	            break;
-	        case "2.16.840.1.113883.6.4":
-	            system = "http://www.icd10data.com/icd10pcs";
-	            break;
-	        case "2.16.840.1.113883.6.42":
-	            system = "http://hl7.org/fhir/sid/icd-9";
-	            break;
-	        case "2.16.840.1.113883.6.73":
-	            system = "http://www.whocc.no/atc";
-	            break;
-	        case "2.16.840.1.113883.6.24":
-	            system = "urn:std:iso:11073:10101";
-	            break;
-	        case "1.2.840.10008.2.16.4":
-	            system = "http://nema.org/dicom/dicm";
-	            break;
-	        case "2.16.840.1.113883.6.281":
-	            system = "http://www.genenames.org";
-	            break;
-	        case "2.16.840.1.113883.6.280":
-	            system = "http://www.ncbi.nlm.nih.gov/nuccore";
-	            break;
-	        case "2.16.840.1.113883.6.282":
-	            system = "http://www.hgvs.org/mutnomen";
-	            break;
-	        case "2.16.840.1.113883.6.284":
-	            system = "http://www.ncbi.nlm.nih.gov/projects/SNP";
-	            break;
-	        case "2.16.840.1.113883.3.912":
-	            system = "http://cancer.sanger.ac.uk/cancergenome/projects/cosmic";
-	            break;
-	        case "2.16.840.1.113883.6.283":
-	            system = "http://www.hgvs.org/mutnomen";
-	            break;
-	        case "2.16.840.1.113883.6.174":
-	            system = "http://www.omim.org";
-	            break;
-	        case "2.16.840.1.113883.13.191":
-	            system = "http://www.ncbi.nlm.nih.gov/pubmed";
-	            break;
-	        case "2.16.840.1.113883.3.913":
-	            system = "http://www.pharmgkb.org";
-	            break;
-	        case "2.16.840.1.113883.3.1077":
-	            system = "http://clinicaltrials.gov";
-	            break;
-	        default:
-	            system = "urn:oid:" + codeSystem;
-	            break;
-	    }
-		return system;
+		String system = CodeSystemRegistry.getDefault().getUrl(codeSystem);
+		return system != null ? system : "urn:oid:" + codeSystem;
 	}
 
 	public CodingDt tParticipationType2ParticipationTypeCode(org.openhealthtools.mdht.uml.hl7.vocab.ParticipationType cdaParticipationType) {
+		return cdaParticipationType != null ? PARTICIPATION_TYPE_CODES.get(cdaParticipationType) : null;
+	}
+
+	private static CodingDt createParticipationTypeCode(org.openhealthtools.mdht.uml.hl7.vocab.ParticipationType cdaParticipationType) {
 		CodingDt fhirParticipationType = new CodingDt();
 		fhirParticipationType.setSystem("http://hl7.org/fhir/v3/ParticipationType");
 		String code = null;
@@ -626,7 +574,10 @@ public class ValueSetsTransformerImpl implements IValueSetsTransformer, Serializ
 	public CodingDt tRoleCode2PatientContactRelationshipCode(String cdaRoleCode) {
 		if(cdaRoleCode == null)
 			return null;
-		
+		return PATIENT_CONTACT_RELATIONSHIP_CODES.computeIfAbsent(cdaRoleCode, ValueSetsTransformerImpl::createPatientContactRelationshipCode);
+	}
+
+	private static CodingDt createPatientContactRelationshipCode(String cdaRoleCode) {
 		CodingDt fhirPatientContactRelationshipCode = new CodingDt();
 		fhirPatientContactRelationshipCode.setSystem("http://hl7.org/fhir/patient-contact-relationship");
 		String code = null;
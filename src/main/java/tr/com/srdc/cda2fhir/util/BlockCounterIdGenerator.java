@@ -0,0 +1,79 @@
+package tr.com.srdc.cda2fhir.util;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An incremental counter id generator that does not contend between threads.
+ * Each thread reserves a block of consecutive ids from a shared atomic range and hands them out locally, going back to the shared range
+ * only when its block is used up. When a single thread generates the ids, they are dense (1, 2, 3, ...). When several threads generate
+ * them concurrently, the ids are still unique, but the unused tails of the blocks leave gaps.
+ * The blocks are kept in a single thread-local shared by all the generators, so that the short-lived generators of the documents leave
+ * no thread-local entries behind on long-lived threads. A thread holds the block of the generator it has used last; switching to another
+ * generator drops the rest of the block, which leaves a gap as well.
+ */
+public class BlockCounterIdGenerator implements IIdGenerator {
+
+    public static final int DEFAULT_BLOCK_SIZE = 32;
+
+    private static final ThreadLocal<Block> BLOCK = new ThreadLocal<Block>() {
+        @Override
+        protected Block initialValue() {
+            return new Block();
+        }
+    };
+
+    private final AtomicInteger nextBlockStart = new AtomicInteger(1);
+    private final int blockSize;
+
+    public BlockCounterIdGenerator() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize Number of ids reserved by a thread at once, > 0
+     */
+    public BlockCounterIdGenerator(int blockSize) {
+        if(blockSize < 1)
+            throw new IllegalArgumentException("Block size should be positive");
+        this.blockSize = blockSize;
+    }
+
+    public String generateId() {
+        Block block = BLOCK.get();
+        if(block.generator != this || block.next == block.end) {
+            block.generator = this;
+            block.next = nextBlockStart.getAndAdd(blockSize);
+            block.end = block.next + blockSize;
+        }
+        return Integer.toString(block.next++);
+    }
+
+    /**
+     * The ids reserved by a thread: [next, end) of the given generator
+     */
+    private static final class Block {
+        private BlockCounterIdGenerator generator;
+        private int next;
+        private int end;
+    }
+}
@@ -0,0 +1,283 @@
+package tr.com.srdc.cda2fhir.util;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A size and time bounded cache that can be shared by many threads.
+ * The entries are spread over independently locked segments, each evicting its least recently used entries when it is full.
+ * An entry also expires when it has not been written for the given time to live. The hits, misses and evictions are counted
+ * to let the users tune the limits. Locks are used instead of monitors, so that virtual threads are not pinned while waiting.
+ * @param <K> Type of the keys
+ * @param <V> Type of the values
+ */
+public class BoundedCache<K, V> {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructs a cache whose entries never expire
+     * @param maximumSize Maximum number of entries to be kept, > 0
+     */
+    public BoundedCache(int maximumSize) {
+        this(maximumSize, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maximumSize Maximum number of entries to be kept, > 0
+     * @param timeToLive Time an entry is kept after it is written. If not positive, the entries never expire.
+     * @param unit Unit of the timeToLive
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedCache(int maximumSize, long timeToLive, TimeUnit unit) {
+        if(maximumSize < 1)
+            throw new IllegalArgumentException("Maximum size should be positive");
+        long ttlNanos = timeToLive > 0 ? unit.toNanos(timeToLive) : 0;
+
+        // a small cache is not worth splitting; each segment should be able to hold at least a few entries
+        int segmentCount = 1;
+        while(segmentCount < MAX_SEGMENTS && segmentCount * 8 <= maximumSize)
+            segmentCount <<= 1;
+        segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        int segmentSize = (maximumSize + segmentCount - 1) / segmentCount;
+        for(int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment<K, V>(segmentSize, ttlNanos, evictions);
+    }
+
+    /**
+     * @param key The key to be looked up
+     * @return The value cached for the key, or null if the key is not cached or its entry has expired
+     */
+    public V get(K key) {
+        V value = segmentFor(key).get(key, System.nanoTime());
+        if(value != null)
+            hits.increment();
+        else
+            misses.increment();
+        return value;
+    }
+
+    /**
+     * Returns the value cached for the key, loading and caching it if the key is not cached. The loader is called without holding
+     * any lock; hence, two threads missing the same key at the same time may both call it, and the value cached first is returned to both.
+     * @param key The key to be looked up
+     * @param loader The function to compute the value of a missing key. If it returns null, nothing is cached.
+     * @return The value cached for the key, or null if the loader returned null
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = get(key);
+        if(value != null)
+            return value;
+        V loaded = loader.apply(key);
+        if(loaded == null)
+            return null;
+        return putIfAbsent(key, loaded);
+    }
+
+    /**
+     * Caches the value for the key, replacing any value cached before
+     * @param key The key to be cached
+     * @param value The value to be cached
+     */
+    public void put(K key, V value) {
+        if(value == null)
+            throw new NullPointerException("Cache values cannot be null");
+        segmentFor(key).put(key, value, System.nanoTime(), true);
+    }
+
+    /**
+     * Caches the value for the key unless a live entry already exists for it
+     * @param key The key to be cached
+     * @param value The value to be cached
+     * @return The value cached for the key, which is the given one unless the key has already been cached
+     */
+    public V putIfAbsent(K key, V value) {
+        if(value == null)
+            throw new NullPointerException("Cache values cannot be null");
+        return segmentFor(key).put(key, value, System.nanoTime(), false);
+    }
+
+    /**
+     * @param key The key to be removed from the cache
+     */
+    public void invalidate(K key) {
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * Removes all the entries of the cache. The statistics are kept.
+     */
+    public void invalidateAll() {
+        for(Segment<K, V> segment : segments)
+            segment.clear();
+    }
+
+    /**
+     * @return The number of entries in the cache, including the expired ones that have not been cleaned up yet
+     */
+    public int size() {
+        int size = 0;
+        for(Segment<K, V> segment : segments)
+            size += segment.size();
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The ratio of the lookups that found a value, or 0 if there have been no lookups
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return lookups == 0 ? 0 : (double) hitCount / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "BoundedCache[size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        // spread the higher bits, as the segment is chosen by the lower ones
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static final class Node<V> {
+        private final V value;
+        private final long writeTime;
+
+        private Node(V value, long writeTime) {
+            this.value = value;
+            this.writeTime = writeTime;
+        }
+    }
+
+    private static final class Segment<K, V> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<K, Node<V>> map;
+        private final long ttlNanos;
+        private final LongAdder evictions;
+
+        private Segment(final int capacity, long ttlNanos, final LongAdder evictions) {
+            this.ttlNanos = ttlNanos;
+            this.evictions = evictions;
+            // access ordered, so that the eldest entry is the least recently used one
+            this.map = new LinkedHashMap<K, Node<V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Node<V>> eldest) {
+                    if(size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private V get(K key, long now) {
+            lock.lock();
+            try {
+                Node<V> node = map.get(key);
+                if(node == null)
+                    return null;
+                if(isExpired(node, now)) {
+                    map.remove(key);
+                    evictions.increment();
+                    return null;
+                }
+                return node.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private V put(K key, V value, long now, boolean replace) {
+            lock.lock();
+            try {
+                if(!replace) {
+                    Node<V> node = map.get(key);
+                    if(node != null && !isExpired(node, now))
+                        return node.value;
+                }
+                map.put(key, new Node<V>(value, now));
+                return value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(K key) {
+            lock.lock();
+            try {
+                map.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void clear() {
+            lock.lock();
+            try {
+                map.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int size() {
+            lock.lock();
+            try {
+                return map.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isExpired(Node<V> node, long now) {
+            return ttlNanos > 0 && now - node.writeTime >= ttlNanos;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package tr.com.srdc.cda2fhir.util;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps code system OIDs to FHIR code system URLs. The mappings are read from the bundled DEFAULT_RESOURCE and, optionally,
+ * from an external file in the same "OID=URL" properties format (e.g. an export of a full OID registry), whose entries override the bundled ones.
+ * The default registry loads the external file given by the EXTERNAL_FILE_PROPERTY system property at startup.
+ * <p>
+ * The mappings are kept in an immutable open-addressing hash table with a low load factor, so a lookup is a single probe in most cases.
+ * Loading a file builds a new table and swaps it in atomically; hence, the registry can be reloaded while transformations are using it.
+ */
+public class CodeSystemRegistry {
+
+    public static final String DEFAULT_RESOURCE = "/terminology/code-systems.properties";
+    public static final String EXTERNAL_FILE_PROPERTY = "cda2fhir.codeSystems";
+
+    private static final Logger logger = LoggerFactory.getLogger(CodeSystemRegistry.class);
+
+    private static final CodeSystemRegistry defaultRegistry = createDefault();
+
+    private volatile Table table;
+    private volatile Path externalFile;
+
+    /**
+     * Constructs a registry containing the bundled mappings only
+     */
+    public CodeSystemRegistry() {
+        this.table = new Table(readBundled());
+    }
+
+    /**
+     * @return The registry used by IValueSetsTransformer.tOid2Url
+     */
+    public static CodeSystemRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    /**
+     * @param oid A code system OID
+     * @return The URL of the code system, or null if the OID is not registered
+     */
+    public String getUrl(String oid) {
+        return oid == null ? null : table.get(oid);
+    }
+
+    /**
+     * @return The number of the registered OIDs
+     */
+    public int size() {
+        return table.size;
+    }
+
+    /**
+     * Returns the generation of the mappings, which changes whenever the mappings are replaced by load or reload.
+     * The caches of the values derived from the mappings (e.g. CodeableConceptCache) use it to tell the stale values apart.
+     * @return The generation of the current mappings, unique among all the registries
+     */
+    public long getGeneration() {
+        return table.generation;
+    }
+
+    /**
+     * Replaces the mappings with the bundled ones overridden by those in the given file
+     * @param file A properties file mapping the OIDs to URLs
+     * @throws IOException If the file cannot be read; the mappings are then left unchanged
+     */
+    public void load(Path file) throws IOException {
+        Map<String, String> mappings = readBundled();
+        try(Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            read(reader, mappings);
+        }
+        table = new Table(mappings);
+        externalFile = file;
+        logger.info("Loaded " + table.size + " code system mappings, including " + file);
+    }
+
+    /**
+     * Reads the external file last loaded again, e.g. after it has been updated. If no external file has been loaded, only the bundled mappings are read again.
+     * @throws IOException If the file cannot be read; the mappings are then left unchanged
+     */
+    public void reload() throws IOException {
+        Path file = externalFile;
+        if(file != null)
+            load(file);
+        else
+            table = new Table(readBundled());
+    }
+
+    private static CodeSystemRegistry createDefault() {
+        CodeSystemRegistry registry = new CodeSystemRegistry();
+        String externalFile = System.getProperty(EXTERNAL_FILE_PROPERTY);
+        if(externalFile != null && !externalFile.isEmpty()) {
+            try {
+                registry.load(Paths.get(externalFile));
+            } catch(IOException e) {
+                logger.error("Could not load the code system mappings from " + externalFile + ". Using the bundled mappings only.", e);
+            }
+        }
+        return registry;
+    }
+
+    private static Map<String, String> readBundled() {
+        Map<String, String> mappings = new HashMap<String, String>();
+        try(InputStream in = CodeSystemRegistry.class.getResourceAsStream(DEFAULT_RESOURCE)) {
+            if(in == null) {
+                logger.error("Code system mappings resource " + DEFAULT_RESOURCE + " not found");
+                return mappings;
+            }
+            read(new InputStreamReader(in, StandardCharsets.UTF_8), mappings);
+        } catch(IOException e) {
+            logger.error("Could not read the code system mappings resource " + DEFAULT_RESOURCE, e);
+        }
+        return mappings;
+    }
+
+    private static void read(Reader reader, Map<String, String> mappings) throws IOException {
+        Properties properties = new Properties();
+        properties.load(reader);
+        for(String oid : properties.stringPropertyNames()) {
+            String url = properties.getProperty(oid).trim();
+            if(!oid.isEmpty() && !url.isEmpty())
+                mappings.put(oid, url);
+        }
+    }
+
+    /**
+     * Open-addressing (linear probing) hash table sized to at most a quarter full. The hash codes of the keys are kept
+     * next to them, so that a probe compares the strings only when their hash codes are equal.
+     */
+    private static final class Table {
+
+        private static final AtomicLong GENERATIONS = new AtomicLong();
+
+        private final long generation = GENERATIONS.incrementAndGet();
+        private final String[] keys;
+        private final String[] values;
+        private final int[] hashes;
+        private final int shift;
+        private final int mask;
+        private final int size;
+
+        Table(Map<String, String> mappings) {
+            int bits = 4;
+            while((1 << bits) < mappings.size() * 4)
+                bits++;
+            int capacity = 1 << bits;
+            this.keys = new String[capacity];
+            this.values = new String[capacity];
+            this.hashes = new int[capacity];
+            this.shift = 32 - bits;
+            this.mask = capacity - 1;
+            this.size = mappings.size();
+            for(Map.Entry<String, String> mapping : mappings.entrySet()) {
+                int hash = mapping.getKey().hashCode();
+                int i = indexFor(hash);
+                while(keys[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = mapping.getKey();
+                values[i] = mapping.getValue();
+                hashes[i] = hash;
+            }
+        }
+
+        String get(String key) {
+            int hash = key.hashCode();
+            for(int i = indexFor(hash); ; i = (i + 1) & mask) {
+                String candidate = keys[i];
+                if(candidate == null)
+                    return null;
+                if(hashes[i] == hash && candidate.equals(key))
+                    return values[i];
+            }
+        }
+
+        // Fibonacci hashing spreads the similar hash codes of the OIDs sharing a long prefix
+        private int indexFor(int hash) {
+            return (hash * 0x9E3779B9) >>> shift;
+        }
+    }
+}
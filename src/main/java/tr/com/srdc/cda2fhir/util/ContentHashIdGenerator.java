@@ -0,0 +1,230 @@
+package tr.com.srdc.cda2fhir.util;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EStructuralFeature;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.openhealthtools.mdht.uml.cda.ClinicalDocument;
+import org.openhealthtools.mdht.uml.hl7.datatypes.II;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Derives resource ids from the content of the source CDA artifacts, so that re-transforming the same document yields the same ids.
+ * The id of a resource is the 128-bit Murmur3 hash of its resource type and the II identifiers (root and extension) of its source artifact,
+ * formatted as a (version 8) UUID. When the source has no identifiers, or when its identifiers are also carried by an artifact that precedes it
+ * in the document, the structural position of the source within the document (and the id of the document itself) is hashed instead.
+ * The same artifact may produce several resources of the same type, which are numbered in the order they are requested.
+ * As the keys depend only on the sources, the ids do not depend on the order the resources of different artifacts are requested in,
+ * e.g. when the sections of a document are transformed concurrently.
+ * A new generator should be used for each document.
+ */
+public class ContentHashIdGenerator implements IIdGenerator {
+
+    private static final long SEED = 0x6364613266686972L;
+
+    // number of the ids generated for each key, as an artifact may produce several resources of the same type
+    private final ConcurrentMap<String, AtomicInteger> occurrences = new ConcurrentHashMap<String, AtomicInteger>();
+    private final ReentrantLock indexLock = new ReentrantLock();
+    private volatile DocumentIndex index;
+
+    public String generateId() {
+        return generateId(null, null);
+    }
+
+    public String generateId(String resourceType, EObject source) {
+        DocumentIndex documentIndex = source != null ? getIndex(source) : null;
+        String key = null;
+        if(documentIndex != null && documentIndex.isFirstCarrier(source))
+            key = identifierKey(resourceType, source);
+        // fall back to the position in the document
+        if(key == null)
+            key = resourceType + "|" + (documentIndex != null ? documentIndex.structuralPath(source) : "");
+
+        int occurrence = occurrences.computeIfAbsent(key, k -> new AtomicInteger()).getAndIncrement();
+        return hashToId(occurrence == 0 ? key : key + "#" + occurrence);
+    }
+
+    /**
+     * Returns the index of the document the given artifact belongs to, building it on first use
+     */
+    private DocumentIndex getIndex(EObject source) {
+        EObject root = EcoreUtil.getRootContainer(source);
+        DocumentIndex documentIndex = index;
+        if(documentIndex != null && documentIndex.root == root)
+            return documentIndex;
+        indexLock.lock();
+        try {
+            documentIndex = index;
+            if(documentIndex == null || documentIndex.root != root) {
+                documentIndex = new DocumentIndex(root);
+                index = documentIndex;
+            }
+            return documentIndex;
+        } finally {
+            indexLock.unlock();
+        }
+    }
+
+    /**
+     * Builds the hash key of a resource from the II identifiers of its source
+     * @return A key of the form type|root^extension|..., or null if the source has no identifiers
+     */
+    private static String identifierKey(String resourceType, EObject source) {
+        String identifiers = identifiers(source);
+        return identifiers != null ? resourceType + identifiers : null;
+    }
+
+    /**
+     * @return The II identifiers of a CDA artifact in the form |root^extension|..., or null if the artifact has no identifiers
+     */
+    private static String identifiers(EObject source) {
+        StringBuilder key = null;
+        for(II ii : getIds(source)) {
+            if(ii == null || ii.isSetNullFlavor() || ii.getRoot() == null)
+                continue;
+            if(key == null)
+                key = new StringBuilder();
+            key.append('|').append(ii.getRoot());
+            if(ii.getExtension() != null)
+                key.append('^').append(ii.getExtension());
+        }
+        return key != null ? key.toString() : null;
+    }
+
+    /**
+     * Returns the identifiers (i.e. the "id" feature) of a CDA artifact, which is either a single II or a list of IIs depending on the artifact
+     */
+    @SuppressWarnings("unchecked")
+    private static List<II> getIds(EObject source) {
+        if(source == null)
+            return Collections.emptyList();
+        EStructuralFeature idFeature = source.eClass().getEStructuralFeature("id");
+        if(idFeature == null)
+            return Collections.emptyList();
+        Object ids = source.eGet(idFeature);
+        if(ids instanceof II)
+            return Collections.singletonList((II) ids);
+        if(ids instanceof List)
+            return (List<II>) ids;
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param key The key to be hashed
+     * @return The 128-bit Murmur3 hash of the key, formatted as a (version 8) UUID
+     */
+    public static String hashToId(String key) {
+        long[] hash = Murmur3.hash128(key.getBytes(StandardCharsets.UTF_8), SEED);
+        // version 8 (custom) UUID
+        long msb = (hash[0] & ~0xF000L) | 0x8000L;
+        long lsb = (hash[1] & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return FastUUIDIdGenerator.format(msb, lsb);
+    }
+
+    /**
+     * The positions of the artifacts of a document, computed in a single pass over the document when the first id is requested:
+     * the index of each artifact within the list of its siblings, and the first artifact in document order carrying each set of identifiers
+     */
+    private static final class DocumentIndex {
+
+        private final EObject root;
+        private final String documentKey;
+        private final Map<EObject, Integer> positions = new IdentityHashMap<EObject, Integer>();
+        private final Map<String, EObject> firstCarriers = new HashMap<String, EObject>();
+
+        private DocumentIndex(EObject root) {
+            this.root = root;
+            // the same position in different documents gives different paths
+            String key = root instanceof ClinicalDocument ? identifierKey("ClinicalDocument", root) : null;
+            this.documentKey = key != null ? key : "";
+
+            // visit the artifacts in document order
+            Deque<EObject> pending = new ArrayDeque<EObject>();
+            pending.push(root);
+            while(!pending.isEmpty()) {
+                EObject current = pending.pop();
+                String identifiers = identifiers(current);
+                if(identifiers != null)
+                    firstCarriers.putIfAbsent(identifiers, current);
+
+                List<EObject> children = current.eContents();
+                if(children.isEmpty())
+                    continue;
+                Map<EStructuralFeature, Integer> siblingCounts = new HashMap<EStructuralFeature, Integer>();
+                for(EObject child : children) {
+                    EStructuralFeature feature = child.eContainingFeature();
+                    if(feature.isMany())
+                        positions.put(child, siblingCounts.merge(feature, 1, Integer::sum) - 1);
+                }
+                for(int i = children.size() - 1; i >= 0; i--) {
+                    pending.push(children.get(i));
+                }
+            }
+        }
+
+        /**
+         * @return true if the given artifact has identifiers that are not carried by a preceding artifact of the document
+         */
+        private boolean isFirstCarrier(EObject source) {
+            String identifiers = identifiers(source);
+            return identifiers != null && firstCarriers.get(identifiers) == source;
+        }
+
+        /**
+         * Computes the path of a CDA artifact from the root of its document, e.g. /component/structuredBody/component.3/section/entry.0/act,
+         * prefixed with the identifiers of the ClinicalDocument
+         */
+        private String structuralPath(EObject source) {
+            List<String> steps = new ArrayList<String>();
+            for(EObject current = source; current.eContainer() != null; current = current.eContainer()) {
+                EStructuralFeature feature = current.eContainingFeature();
+                String step = "/" + feature.getName();
+                if(feature.isMany()) {
+                    Integer position = positions.get(current);
+                    // an artifact added after the document was indexed
+                    if(position == null)
+                        position = ((List<?>) current.eContainer().eGet(feature)).indexOf(current);
+                    step += "." + position;
+                }
+                steps.add(step);
+            }
+            StringBuilder path = new StringBuilder(documentKey);
+            for(int i = steps.size() - 1; i >= 0; i--) {
+                path.append(steps.get(i));
+            }
+            return path.toString();
+        }
+    }
+}
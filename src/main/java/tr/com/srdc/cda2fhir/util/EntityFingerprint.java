@@ -0,0 +1,164 @@
+package tr.com.srdc.cda2fhir.util;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.openhealthtools.mdht.uml.hl7.datatypes.AD;
+import org.openhealthtools.mdht.uml.hl7.datatypes.ADXP;
+import org.openhealthtools.mdht.uml.hl7.datatypes.CD;
+import org.openhealthtools.mdht.uml.hl7.datatypes.EN;
+import org.openhealthtools.mdht.uml.hl7.datatypes.ENXP;
+import org.openhealthtools.mdht.uml.hl7.datatypes.II;
+
+import java.util.List;
+
+/**
+ * Builds the keys that identify a CDA entity (e.g. an author, a performer or an organization) within and across documents.
+ * An entity is identified by its ids if it has any; otherwise, by its normalized names and addresses. Coded entities, such as substances, are identified by their codes.
+ */
+public class EntityFingerprint {
+
+    private static final char SEPARATOR = '|';
+
+    /**
+     * Builds the fingerprint of a CDA entity
+     * @param resourceType Type of the FHIR resource the entity is transformed to; entities of different types never share a fingerprint
+     * @param ids The ids of the entity
+     * @param names The names of the entity
+     * @param addrs The addresses of the entity
+     * @return The fingerprint of the entity, or null if the entity has neither an id nor a name to be identified with
+     */
+    public static String of(String resourceType, List<II> ids, List<? extends EN> names, List<AD> addrs) {
+        StringBuilder key = new StringBuilder(resourceType).append(SEPARATOR);
+
+        int idStart = key.length();
+        if(ids != null) {
+            for(II ii : ids) {
+                if(ii != null && !ii.isSetNullFlavor() && ii.getRoot() != null) {
+                    key.append("id:").append(ii.getRoot());
+                    if(ii.getExtension() != null)
+                        key.append('^').append(ii.getExtension());
+                    key.append(SEPARATOR);
+                }
+            }
+        }
+        if(key.length() > idStart)
+            return key.toString();
+
+        // no ids; fall back to names and addresses
+        if(names != null) {
+            for(EN en : names) {
+                if(en != null && !en.isSetNullFlavor())
+                    appendName(key, en);
+            }
+        }
+        if(key.length() == idStart)
+            return null;
+        if(addrs != null) {
+            for(AD ad : addrs) {
+                if(ad != null && !ad.isSetNullFlavor())
+                    appendAddress(key, ad);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Builds the fingerprint of a coded CDA entity, e.g. a substance
+     * @param resourceType Type of the FHIR resource the entity is transformed to
+     * @param cd The code of the entity
+     * @return The fingerprint of the entity, or null if the code has no code system or code
+     */
+    public static String ofCode(String resourceType, CD cd) {
+        if(cd == null || cd.isSetNullFlavor() || cd.getCodeSystem() == null || cd.getCode() == null)
+            return null;
+        return resourceType + SEPARATOR + "code:" + cd.getCodeSystem() + '^' + cd.getCode();
+    }
+
+    private static void appendName(StringBuilder key, EN en) {
+        int start = key.length();
+        key.append("name:");
+        int textStart = key.length();
+        appendNormalized(key, en.getText());
+        appendParts(key, en.getPrefixes());
+        appendParts(key, en.getGivens());
+        appendParts(key, en.getFamilies());
+        appendParts(key, en.getSuffixes());
+        // an empty name identifies nothing; otherwise all the entities with an empty <name/> would be merged
+        if(key.length() == textStart) {
+            key.setLength(start);
+            return;
+        }
+        key.append(SEPARATOR);
+    }
+
+    private static void appendAddress(StringBuilder key, AD ad) {
+        key.append("addr:");
+        appendNormalized(key, ad.getText());
+        appendAddressParts(key, ad.getStreetAddressLines());
+        appendAddressParts(key, ad.getCities());
+        appendAddressParts(key, ad.getStates());
+        appendAddressParts(key, ad.getPostalCodes());
+        appendAddressParts(key, ad.getCountries());
+        key.append(SEPARATOR);
+    }
+
+    private static void appendParts(StringBuilder key, List<ENXP> parts) {
+        if(parts != null) {
+            for(ENXP part : parts) {
+                if(part != null)
+                    appendNormalized(key, part.getText());
+            }
+        }
+    }
+
+    private static void appendAddressParts(StringBuilder key, List<ADXP> parts) {
+        if(parts != null) {
+            for(ADXP part : parts) {
+                if(part != null && !part.isSetNullFlavor())
+                    appendNormalized(key, part.getText());
+            }
+        }
+    }
+
+    /**
+     * Appends the given text in lower case with its whitespace runs collapsed to single spaces and its punctuation dropped,
+     * so that e.g. "Dr. Henry  Seven" and "dr henry seven" result in the same key
+     */
+    private static void appendNormalized(StringBuilder key, String text) {
+        if(text == null)
+            return;
+        boolean pendingSpace = false;
+        int start = key.length();
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(Character.isLetterOrDigit(c)) {
+                if(pendingSpace && key.length() > start)
+                    key.append(' ');
+                key.append(Character.toLowerCase(c));
+                pendingSpace = false;
+            } else if(Character.isWhitespace(c)) {
+                pendingSpace = true;
+            }
+        }
+        if(key.length() > start)
+            key.append(' ');
+    }
+}
@@ -26,56 +26,190 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import tr.com.srdc.cda2fhir.conf.Config;
 
-import java.io.File;
-import java.io.FileWriter;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class FHIRUtil {
 
-    private static IParser jsonParser;
-    private static IParser xmlParser;
+    // the parsers keep state while encoding, hence each thread encodes with parsers of its own: the ones it borrows from the pools below
+    // for the encodings of FHIRUtil, and the ones it keeps for getJsonParser and getXmlParser
+    private static final ThreadLocal<ThreadParsers> threadParsers = new ThreadLocal<ThreadParsers>();
+    // incremented when the parser options change, so that the threads renew their parsers
+    private static final AtomicInteger parserGeneration = new AtomicInteger();
+    private static volatile Consumer<IParser> parserCustomizer;
+    // idle parsers shared by all the threads, bounded as encoding keeps a processor busy; replaced when the parser options change
+    private static final int MAX_IDLE_PARSERS = Runtime.getRuntime().availableProcessors();
+    private static volatile ParserPools parserPools = new ParserPools();
+
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     private final static Logger logger = LoggerFactory.getLogger(FHIRUtil.class);
 
-    static {
-        jsonParser = Config.getFhirContext().newJsonParser();
-        xmlParser = Config.getFhirContext().newXmlParser();
-        jsonParser.setPrettyPrint(true);
-        xmlParser.setPrettyPrint(true);
+    /**
+     * Sets the options applied to all the parsers of FHIRUtil, e.g. parser -> parser.setStripVersionsFromReferences(false).
+     * The threads pick the new options up at their next encoding. The pretty print option is set by FHIRUtil and should not be changed here.
+     * @param customizer Applied to each parser as it is created, or null for the default options of HAPI
+     */
+    public static void setParserCustomizer(Consumer<IParser> customizer) {
+        parserCustomizer = customizer;
+        parserGeneration.incrementAndGet();
+        parserPools = new ParserPools();
     }
-    
+
+    /**
+     * Returns the JSON parser of the calling thread, which can be used without any synchronization.
+     * The parser should not be handed to other threads, and its options should not be changed; use setParserCustomizer instead.
+     * The parser is kept for the thread, which pays off on the threads of a pool only; a virtual thread, which runs a single task,
+     * would create a parser per task. The encoding methods of FHIRUtil borrow their parsers from a bounded pool instead.
+     * @param prettyPrint true for the parser indenting its output, false for the compact one
+     * @return The JSON parser confined to the calling thread
+     */
+    public static IParser getJsonParser(boolean prettyPrint) {
+        return parsers().json(prettyPrint);
+    }
+
+    /**
+     * Returns the XML parser of the calling thread, which can be used without any synchronization.
+     * The parser should not be handed to other threads, and its options should not be changed; use setParserCustomizer instead.
+     * As with getJsonParser, the parser is kept for the thread; the encoding methods of FHIRUtil borrow theirs from a bounded pool.
+     * @param prettyPrint true for the parser indenting its output, false for the compact one
+     * @return The XML parser confined to the calling thread
+     */
+    public static IParser getXmlParser(boolean prettyPrint) {
+        return parsers().xml(prettyPrint);
+    }
+
     public static String encodeToJSON(IResource res) {
-    	return jsonParser.encodeResourceToString(res);
+        return encodeToString(true, true, res);
     }
     
     public static String encodeToXML(IResource res) {
-        return xmlParser.encodeResourceToString(res);
+        return encodeToString(false, true, res);
+    }
+
+    /**
+     * @param res The resource to be encoded
+     * @param withNarratives Whether the empty narratives are generated while encoding, regardless of Config.setGenerateNarrative
+     * @return The resource in pretty printed JSON
+     */
+    public static String encodeToJSON(IResource res, boolean withNarratives) {
+        return newParser(Config.getFhirContext(withNarratives).newJsonParser(), true).encodeResourceToString(res);
+    }
+
+    /**
+     * @param res The resource to be encoded
+     * @param withNarratives Whether the empty narratives are generated while encoding, regardless of Config.setGenerateNarrative
+     * @return The resource in pretty printed XML
+     */
+    public static String encodeToXML(IResource res, boolean withNarratives) {
+        return newParser(Config.getFhirContext(withNarratives).newXmlParser(), true).encodeResourceToString(res);
+    }
+
+    /**
+     * Encodes the resource in JSON into the writer, e.g. a line of an NDJSON file. The writer is neither flushed nor closed.
+     * @param res The resource to be encoded
+     * @param writer The writer the JSON will be written to
+     * @param prettyPrint true to indent the output, false for compact output
+     * @throws IOException if the writer cannot be written
+     */
+    public static void encodeToJSON(IResource res, Writer writer, boolean prettyPrint) throws IOException {
+        encodeToWriter(true, prettyPrint, res, writer);
+    }
+
+    /**
+     * @param res The resource to be encoded
+     * @return The resource in JSON without any indentation or line breaks
+     */
+    public static String encodeToCompactJSON(IResource res) {
+        return encodeToString(true, false, res);
+    }
+
+    /**
+     * @param res The resource to be encoded
+     * @return The resource in XML without any indentation or line breaks
+     */
+    public static String encodeToCompactXML(IResource res) {
+        return encodeToString(false, false, res);
+    }
+
+    /**
+     * Encodes the resource in UTF-8 JSON directly into the stream through a buffer, without building the whole document as a String.
+     * The stream is flushed but not closed.
+     * @param res The resource to be encoded
+     * @param out The stream the JSON will be written to
+     * @param prettyPrint true to indent the output, false for compact output
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeJSON(IResource res, OutputStream out, boolean prettyPrint) throws IOException {
+        write(true, prettyPrint, res, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes the resource in UTF-8 XML directly into the stream through a buffer, without building the whole document as a String.
+     * The stream is flushed but not closed.
+     * @param res The resource to be encoded
+     * @param out The stream the XML will be written to
+     * @param prettyPrint true to indent the output, false for compact output
+     * @throws IOException if the stream cannot be written
+     */
+    public static void writeXML(IResource res, OutputStream out, boolean prettyPrint) throws IOException {
+        write(false, prettyPrint, res, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes the resource in UTF-8 JSON directly into the channel through a buffer. The channel is not closed.
+     * @param res The resource to be encoded
+     * @param channel The channel the JSON will be written to, e.g. a FileChannel or a SocketChannel
+     * @param prettyPrint true to indent the output, false for compact output
+     * @throws IOException if the channel cannot be written
+     */
+    public static void writeJSON(IResource res, WritableByteChannel channel, boolean prettyPrint) throws IOException {
+        writeJSON(res, Channels.newOutputStream(channel), prettyPrint);
+    }
+
+    /**
+     * Encodes the resource in UTF-8 XML directly into the channel through a buffer. The channel is not closed.
+     * @param res The resource to be encoded
+     * @param channel The channel the XML will be written to, e.g. a FileChannel or a SocketChannel
+     * @param prettyPrint true to indent the output, false for compact output
+     * @throws IOException if the channel cannot be written
+     */
+    public static void writeXML(IResource res, WritableByteChannel channel, boolean prettyPrint) throws IOException {
+        writeXML(res, Channels.newOutputStream(channel), prettyPrint);
     }
 
     public static void printJSON(IResource res) {
-        System.out.println(jsonParser.encodeResourceToString(res));
+        System.out.println(encodeToJSON(res));
     }
 
     public static void printXML(IResource res) {
-        System.out.println(xmlParser.encodeResourceToString(res));
+        System.out.println(encodeToXML(res));
     }
 
     public static void printJSON(IResource res, String filePath) {
-        File f = new File(filePath);
-        f.getParentFile().mkdirs();
         try {
-            jsonParser.encodeResourceToWriter(res, new FileWriter(f));
+            writeToFile(true, res, filePath);
         } catch (IOException e) {
             logger.error("Could not print FHIR JSON to file", e);
         }
     }
 
     public static void printXML(IResource res, String filePath) {
-        File f = new File(filePath);
-        f.getParentFile().mkdirs();
         try {
-            xmlParser.encodeResourceToWriter(res, new FileWriter(f));
+            writeToFile(false, res, filePath);
         } catch (IOException e) {
             logger.error("Could not print FHIR XML to file", e);
         }
@@ -83,7 +217,7 @@ public class FHIRUtil {
 
     public static void printJSON(IResource res, Writer writer) {
         try {
-            jsonParser.encodeResourceToWriter(res, writer);
+            encodeToWriter(true, true, res, writer);
         } catch (IOException e) {
             logger.error("Could not print FHIR JSON to writer", e);
         }
@@ -91,10 +225,180 @@ public class FHIRUtil {
 
     public static void printXML(IResource res, Writer writer) {
         try {
-            xmlParser.encodeResourceToWriter(res, writer);
+            encodeToWriter(false, true, res, writer);
         } catch (IOException e) {
             logger.error("Could not print FHIR XML to writer", e);
         }
     }
 
+    /**
+     * Encodes the resource into the file in UTF-8, creating its parent directories, and closes the file
+     * @param json true to encode the resource in JSON, false in XML
+     * @param res The resource to be encoded
+     * @param filePath Path of the file, which is overwritten if it exists
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeToFile(boolean json, IResource res, String filePath) throws IOException {
+        Path path = Paths.get(filePath);
+        Path parent = path.toAbsolutePath().getParent();
+        if(parent != null)
+            Files.createDirectories(parent);
+        try (OutputStream out = Files.newOutputStream(path)) {
+            write(json, true, res, new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Encodes the resource through a buffer into the writer, and flushes it
+     * @param json true to encode the resource in JSON, false in XML
+     * @param prettyPrint Whether the output is indented
+     * @param res The resource to be encoded
+     * @param writer The unbuffered writer of the target
+     * @throws IOException if the target cannot be written
+     */
+    private static void write(boolean json, boolean prettyPrint, IResource res, Writer writer) throws IOException {
+        Writer bufferedWriter = new BufferedWriter(writer, BUFFER_SIZE);
+        encodeToWriter(json, prettyPrint, res, bufferedWriter);
+        bufferedWriter.flush();
+    }
+
+    /**
+     * Encodes the resource with a parser borrowed from the pool
+     * @param json true to encode the resource in JSON, false in XML
+     * @param prettyPrint Whether the output is indented
+     * @param res The resource to be encoded
+     * @return The encoded resource
+     */
+    private static String encodeToString(boolean json, boolean prettyPrint, IResource res) {
+        ParserPool pool = parserPools.get(json, prettyPrint);
+        IParser parser = pool.borrow();
+        try {
+            return parser.encodeResourceToString(res);
+        } finally {
+            pool.release(parser);
+        }
+    }
+
+    /**
+     * Encodes the resource into the writer with a parser borrowed from the pool. The writer is neither flushed nor closed.
+     * @param json true to encode the resource in JSON, false in XML
+     * @param prettyPrint Whether the output is indented
+     * @param res The resource to be encoded
+     * @param writer The writer of the target
+     * @throws IOException if the target cannot be written
+     */
+    private static void encodeToWriter(boolean json, boolean prettyPrint, IResource res, Writer writer) throws IOException {
+        ParserPool pool = parserPools.get(json, prettyPrint);
+        IParser parser = pool.borrow();
+        try {
+            parser.encodeResourceToWriter(res, writer);
+        } finally {
+            pool.release(parser);
+        }
+    }
+
+    /**
+     * @return The parsers of the calling thread, renewed if the parser options have changed since they were created
+     */
+    private static ThreadParsers parsers() {
+        ThreadParsers parsers = threadParsers.get();
+        int generation = parserGeneration.get();
+        if(parsers == null || parsers.generation != generation) {
+            parsers = new ThreadParsers(generation);
+            threadParsers.set(parsers);
+        }
+        return parsers;
+    }
+
+    /**
+     * Applies the current parser options to a new parser
+     * @param parser The parser to be configured
+     * @param prettyPrint Whether the parser indents its output
+     * @return The given parser
+     */
+    private static IParser newParser(IParser parser, boolean prettyPrint) {
+        Consumer<IParser> customizer = parserCustomizer;
+        if(customizer != null)
+            customizer.accept(parser);
+        return parser.setPrettyPrint(prettyPrint);
+    }
+
+    /**
+     * The pools of the four kinds of parsers, for the current parser options
+     */
+    private static class ParserPools {
+        private final ParserPool prettyJson = new ParserPool(true, true);
+        private final ParserPool compactJson = new ParserPool(true, false);
+        private final ParserPool prettyXml = new ParserPool(false, true);
+        private final ParserPool compactXml = new ParserPool(false, false);
+
+        private ParserPool get(boolean json, boolean prettyPrint) {
+            if(json)
+                return prettyPrint ? prettyJson : compactJson;
+            return prettyPrint ? prettyXml : compactXml;
+        }
+    }
+
+    /**
+     * The idle parsers of a single kind. A parser is created when none is idle, and dropped when MAX_IDLE_PARSERS are already idle.
+     */
+    private static class ParserPool {
+        private final boolean json;
+        private final boolean prettyPrint;
+        private final BlockingQueue<IParser> idleParsers = new ArrayBlockingQueue<IParser>(MAX_IDLE_PARSERS);
+
+        private ParserPool(boolean json, boolean prettyPrint) {
+            this.json = json;
+            this.prettyPrint = prettyPrint;
+        }
+
+        private IParser borrow() {
+            IParser parser = idleParsers.poll();
+            if(parser != null)
+                return parser;
+            return newParser(json ? Config.getFhirContext().newJsonParser() : Config.getFhirContext().newXmlParser(), prettyPrint);
+        }
+
+        private void release(IParser parser) {
+            idleParsers.offer(parser);
+        }
+    }
+
+    /**
+     * The parsers of a single thread, created on first use
+     */
+    private static class ThreadParsers {
+        private final int generation;
+        private IParser prettyJsonParser;
+        private IParser compactJsonParser;
+        private IParser prettyXmlParser;
+        private IParser compactXmlParser;
+
+        private ThreadParsers(int generation) {
+            this.generation = generation;
+        }
+
+        private IParser json(boolean prettyPrint) {
+            if(prettyPrint) {
+                if(prettyJsonParser == null)
+                    prettyJsonParser = newParser(Config.getFhirContext().newJsonParser(), true);
+                return prettyJsonParser;
+            }
+            if(compactJsonParser == null)
+                compactJsonParser = newParser(Config.getFhirContext().newJsonParser(), false);
+            return compactJsonParser;
+        }
+
+        private IParser xml(boolean prettyPrint) {
+            if(prettyPrint) {
+                if(prettyXmlParser == null)
+                    prettyXmlParser = newParser(Config.getFhirContext().newXmlParser(), true);
+                return prettyXmlParser;
+            }
+            if(compactXmlParser == null)
+                compactXmlParser = newParser(Config.getFhirContext().newXmlParser(), false);
+            return compactXmlParser;
+        }
+    }
+
 }
@@ -0,0 +1,90 @@
+package tr.com.srdc.cda2fhir.util;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates RFC 4122 formatted UUIDs from the thread-local pseudo random number generator instead of SecureRandom.
+ * The ids are either random (version 4) or time-ordered (version 7: 48 bits of Unix epoch milliseconds followed by random bits).
+ * They are not suitable for security purposes, but they are unique enough for resource ids and never block on entropy.
+ * The text form is written into a reused per-thread buffer, the resulting String being the only allocation.
+ */
+public class FastUUIDIdGenerator implements IIdGenerator {
+
+    public static final FastUUIDIdGenerator RANDOM = new FastUUIDIdGenerator(false);
+    public static final FastUUIDIdGenerator TIME_ORDERED = new FastUUIDIdGenerator(true);
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<char[]> BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[36];
+        }
+    };
+
+    private final boolean timeOrdered;
+
+    private FastUUIDIdGenerator(boolean timeOrdered) {
+        this.timeOrdered = timeOrdered;
+    }
+
+    public String generateId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long msb;
+        if(timeOrdered) {
+            // unix_ts_ms (48 bits) | version (4 bits) | rand_a (12 bits)
+            msb = (System.currentTimeMillis() << 16) | 0x7000L | (random.nextInt() & 0x0FFFL);
+        } else {
+            msb = (random.nextLong() & ~0xF000L) | 0x4000L;
+        }
+        // variant bits: 10xx
+        long lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return format(msb, lsb);
+    }
+
+    /**
+     * Formats the given 128 bits in the canonical 8-4-4-4-12 hexadecimal form
+     * @param msb Most significant 64 bits
+     * @param lsb Least significant 64 bits
+     * @return The canonical text form of the UUID
+     */
+    static String format(long msb, long lsb) {
+        char[] buf = BUFFER.get();
+        writeHex(buf, 0, msb >>> 32, 8);
+        buf[8] = '-';
+        writeHex(buf, 9, msb >>> 16, 4);
+        buf[13] = '-';
+        writeHex(buf, 14, msb, 4);
+        buf[18] = '-';
+        writeHex(buf, 19, lsb >>> 48, 4);
+        buf[23] = '-';
+        writeHex(buf, 24, lsb, 12);
+        return new String(buf);
+    }
+
+    private static void writeHex(char[] buf, int offset, long value, int digits) {
+        for(int i = offset + digits - 1; i >= offset; i--) {
+            buf[i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package tr.com.srdc.cda2fhir.util;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.eclipse.emf.ecore.EObject;
+
+public interface IIdGenerator {
+
+    /**
+     * Generates a resource id, unique among the ids generated by this generator
+     * @return a unique resource id
+     */
+    String generateId();
+
+    /**
+     * Generates a resource id for a resource transformed from the given CDA artifact, unique among the ids generated by this generator.
+     * Generators that do not derive ids from the source ignore the parameters.
+     * @param resourceType Type of the FHIR resource to be identified, e.g. Observation
+     * @param source The CDA artifact the resource is transformed from; may be null
+     * @return a unique resource id
+     */
+    default String generateId(String resourceType, EObject source) {
+        return generateId();
+    }
+}
@@ -21,5 +21,31 @@ package tr.com.srdc.cda2fhir.util;
  */
 
 public enum IdGeneratorEnum {
-        COUNTER, UUID
+        COUNTER, UUID,
+        // RFC 4122 random UUIDs from a fast thread-local PRNG instead of SecureRandom
+        FAST_UUID,
+        // time-ordered (version 7 style) UUIDs from a fast thread-local PRNG
+        FAST_TIME_ORDERED_UUID,
+        // ids hashed from the CDA identifiers (or the position) of the source artifacts; stable across re-transformations of the same document
+        CONTENT_HASH;
+
+        /**
+         * Creates the id generator to be used throughout the transformation of a single document
+         * @return An IIdGenerator implementing this strategy
+         */
+        public IIdGenerator newGenerator() {
+                switch (this) {
+                        case COUNTER:
+                                return new BlockCounterIdGenerator();
+                        case FAST_UUID:
+                                return FastUUIDIdGenerator.RANDOM;
+                        case FAST_TIME_ORDERED_UUID:
+                                return FastUUIDIdGenerator.TIME_ORDERED;
+                        case CONTENT_HASH:
+                                return new ContentHashIdGenerator();
+                        case UUID:
+                        default:
+                                return RandomUUIDIdGenerator.INSTANCE;
+                }
+        }
 }
@@ -0,0 +1,33 @@
+package tr.com.srdc.cda2fhir.util;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Determines how the narratives (text) of the CDA sections are transformed to the narratives of the Composition sections
+ */
+public enum NarrativeModeEnum {
+        // the narrative is transformed and parsed as XHTML along with the section
+        EAGER,
+        // the narrative is transformed and parsed only when the Composition is encoded (e.g. printed as JSON); the CDA document is kept until then
+        DEFERRED,
+        // the sections have no narrative, e.g. for the pipelines that strip the narratives before loading the resources
+        NONE
+}
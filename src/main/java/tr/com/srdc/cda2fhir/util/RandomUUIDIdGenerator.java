@@ -0,0 +1,39 @@
+package tr.com.srdc.cda2fhir.util;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.UUID;
+
+/**
+ * Generates random (version 4) UUIDs through java.util.UUID, which uses a shared SecureRandom.
+ * The generator is stateless; a single instance is shared by all the documents.
+ */
+public class RandomUUIDIdGenerator implements IIdGenerator {
+
+    public static final RandomUUIDIdGenerator INSTANCE = new RandomUUIDIdGenerator();
+
+    private RandomUUIDIdGenerator() {
+    }
+
+    public String generateId() {
+        return UUID.randomUUID().toString();
+    }
+}
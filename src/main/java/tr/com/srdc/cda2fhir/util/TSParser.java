@@ -0,0 +1,244 @@
+package tr.com.srdc.cda2fhir.util;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.fhir.model.primitive.BaseDateTimeDt;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * A single pass parser for the HL7 v3 TS (timestamp) values, i.e. YYYY[MM[DD[HHMM[SS[.S[S[S[S]]]]]]]][+/-ZZZZ].
+ * The parser reads the characters once, computes the instant arithmetically and sets it to the FHIR date type in a single call.
+ * It creates no intermediate Strings or boxed integers and does not set the fields through a Calendar; the time zones of the usual
+ * offsets are taken from a precomputed table. A GregorianCalendar is still built for the years before 1583, where the Julian
+ * calendar applies, and the FHIR date type allocates its own Calendar when the value is set.
+ */
+public class TSParser {
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    private static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+    private static final int DAYS_0000_TO_1970 = 719468;
+    private static final int GREGORIAN_CUTOVER_YEAR = 1583;
+
+    // time zones of the offsets from -14:00 to +14:00, in 15 minute steps
+    private static final int OFFSET_STEP_MINUTES = 15;
+    private static final int MAX_OFFSET_MINUTES = 14 * 60;
+    private static final TimeZone[] OFFSET_TIME_ZONES = new TimeZone[2 * MAX_OFFSET_MINUTES / OFFSET_STEP_MINUTES + 1];
+
+    private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+    static {
+        for(int i = 0; i < OFFSET_TIME_ZONES.length; i++) {
+            int offsetMinutes = i * OFFSET_STEP_MINUTES - MAX_OFFSET_MINUTES;
+            int abs = Math.abs(offsetMinutes);
+            // same ids as the ones TimeZone.getTimeZone("GMT+hhmm") gives
+            String id = String.format("GMT%c%02d:%02d", offsetMinutes < 0 ? '-' : '+', abs / 60, abs % 60);
+            OFFSET_TIME_ZONES[i] = TimeZone.getTimeZone(id);
+        }
+    }
+
+    /**
+     * Parses the given HL7 TS value into the given FHIR date type instance.
+     * If the value includes a time zone, the time zone of the date is set to it; otherwise, the date is interpreted as the local time
+     * in the default time zone, taking its daylight saving time into account, and its time zone is left unset.
+     * E.g. in America/New_York, 20060628142400 is 2006-06-28T14:24:00-04:00.
+     * @param value The TS value, e.g. 20160516, 201605161203-0500 or 20160516120301.25
+     * @param date The FHIR date type instance to be set
+     * @return true if the value is parsed, false if it is malformed. In the latter case, the date is not modified.
+     */
+    public static boolean parse(String value, BaseDateTimeDt date) {
+        if(value == null)
+            return false;
+        final int length = value.length();
+
+        // the date and time part: digits, and the fraction of a second after the seconds
+        int year, month = 1, day = 1, hour = 0, minute = 0, second = 0, millis = 0;
+        int pos = 0;
+
+        year = readDigits(value, pos, 4);
+        if(year < 0)
+            return false;
+        pos += 4;
+        TemporalPrecisionEnum precision = TemporalPrecisionEnum.YEAR;
+
+        if(pos < length && isDigit(value.charAt(pos))) {
+            month = readDigits(value, pos, 2);
+            pos += 2;
+            precision = TemporalPrecisionEnum.MONTH;
+            if(pos < length && isDigit(value.charAt(pos))) {
+                day = readDigits(value, pos, 2);
+                pos += 2;
+                precision = TemporalPrecisionEnum.DAY;
+                if(pos < length && isDigit(value.charAt(pos))) {
+                    // the hour is only allowed together with the minute
+                    hour = readDigits(value, pos, 2);
+                    minute = readDigits(value, pos + 2, 2);
+                    pos += 4;
+                    precision = TemporalPrecisionEnum.MINUTE;
+                    if(pos < length && isDigit(value.charAt(pos))) {
+                        second = readDigits(value, pos, 2);
+                        pos += 2;
+                        precision = TemporalPrecisionEnum.SECOND;
+                        if(pos < length && value.charAt(pos) == '.') {
+                            // up to four digits of the fraction of a second; the ones after the milliseconds are truncated
+                            int digits = 0;
+                            pos++;
+                            while(pos < length && isDigit(value.charAt(pos))) {
+                                if(digits < 3)
+                                    millis = millis * 10 + (value.charAt(pos) - '0');
+                                digits++;
+                                pos++;
+                            }
+                            if(digits < 1 || digits > 4)
+                                return false;
+                            for(int i = digits; i < 3; i++)
+                                millis *= 10;
+                            precision = TemporalPrecisionEnum.MILLI;
+                        }
+                    }
+                }
+            }
+        }
+        if(month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0)
+            return false;
+        if(month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1] || (month == 2 && day == 29 && !isLeapYear(year))
+                || hour > 23 || minute > 59 || second > 59)
+            return false;
+
+        // the time zone part
+        TimeZone timeZone = null;
+        if(pos < length) {
+            char sign = value.charAt(pos);
+            if(sign != '+' && sign != '-')
+                return false;
+            timeZone = parseTimeZone(value, pos);
+            if(timeZone == null)
+                return false;
+        }
+
+        long epochMillis;
+        if(year < GREGORIAN_CUTOVER_YEAR) {
+            // java.util.Date follows the Julian calendar before the Gregorian cutover; leave these rare dates to the JDK
+            GregorianCalendar calendar = new GregorianCalendar(timeZone != null ? timeZone : TimeZone.getDefault());
+            calendar.clear();
+            calendar.set(year, month - 1, day, hour, minute, second);
+            calendar.set(Calendar.MILLISECOND, millis);
+            epochMillis = calendar.getTimeInMillis();
+        } else if(timeZone != null) {
+            long localMillis = toLocalMillis(year, month, day, hour, minute, second, millis);
+            epochMillis = localMillis - timeZone.getRawOffset();
+        } else {
+            long localMillis = toLocalMillis(year, month, day, hour, minute, second, millis);
+            // the offset of the default time zone at the local time, considering the daylight saving time
+            TimeZone defaultTimeZone = TimeZone.getDefault();
+            int offset = defaultTimeZone.getOffset(localMillis - defaultTimeZone.getRawOffset());
+            epochMillis = localMillis - offset;
+            int actualOffset = defaultTimeZone.getOffset(epochMillis);
+            if(actualOffset != offset)
+                epochMillis = localMillis - actualOffset;
+        }
+
+        // set the time zone first, so that setValue does not assign the default one
+        if(timeZone != null)
+            date.setTimeZone(timeZone);
+        date.setValue(new Date(epochMillis), precision);
+        if(timeZone == null)
+            date.setTimeZone(null);
+        if(precision == TemporalPrecisionEnum.MILLI && epochMillis < 0 && millis != 0) {
+            // the fraction is derived from the instant by setValue, which does not consider the instants before 1970
+            date.setMillis(millis);
+        }
+        return true;
+    }
+
+    /**
+     * Resolves the time zone part of a TS value, starting with its sign
+     * @return The time zone, or null if the part is malformed
+     */
+    private static TimeZone parseTimeZone(String value, int pos) {
+        int digits = value.length() - pos - 1;
+        int hours, minutes;
+        if(digits == 4) {
+            hours = readDigits(value, pos + 1, 2);
+            minutes = readDigits(value, pos + 3, 2);
+        } else if(digits == 2) {
+            hours = readDigits(value, pos + 1, 2);
+            minutes = 0;
+        } else {
+            // unusual forms, e.g. +5 or +05:30, resolved by the JDK
+            TimeZone timeZone = TimeZone.getTimeZone("GMT" + value.substring(pos));
+            return "GMT".equals(timeZone.getID()) ? null : timeZone;
+        }
+        if(hours < 0 || minutes < 0 || minutes > 59)
+            return null;
+        int offsetMinutes = hours * 60 + minutes;
+        if(value.charAt(pos) == '-')
+            offsetMinutes = -offsetMinutes;
+        if(offsetMinutes % OFFSET_STEP_MINUTES == 0 && Math.abs(offsetMinutes) <= MAX_OFFSET_MINUTES)
+            return OFFSET_TIME_ZONES[(offsetMinutes + MAX_OFFSET_MINUTES) / OFFSET_STEP_MINUTES];
+        TimeZone timeZone = TimeZone.getTimeZone("GMT" + value.substring(pos));
+        return "GMT".equals(timeZone.getID()) ? null : timeZone;
+    }
+
+    /**
+     * @return The number represented by count digits starting from pos, or -1 if the value is too short or has a non-digit there
+     */
+    private static int readDigits(String value, int pos, int count) {
+        if(pos + count > value.length())
+            return -1;
+        int result = 0;
+        for(int i = pos; i < pos + count; i++) {
+            char c = value.charAt(i);
+            if(!isDigit(c))
+                return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+    }
+
+    private static long toLocalMillis(int year, int month, int day, int hour, int minute, int second, int millis) {
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY + ((hour * 60L + minute) * 60L + second) * 1000L + millis;
+    }
+
+    /**
+     * @return The number of days from 1970-01-01 to the given date of the proleptic Gregorian calendar
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - DAYS_0000_TO_1970;
+    }
+}
@@ -0,0 +1,64 @@
+package tr.com.srdc.cda2fhir.validation;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * The terminology backend of a validator: the terminology server the validation engines connect to, and the code systems and value sets
+ * known in-process, whose codes are checked by the validator itself without any network access.
+ */
+public interface ITerminologyService {
+
+    /**
+     * Returns the terminology server the validation engines should be connected to. The call does not block; a service discovering its server
+     * in the background returns its fallback until the discovery is complete.
+     * @return A FHIR DSTU2 terminology server URL String, or null if the service has no server, in which case the engines are connected to
+     * Config.DEFAULT_VALIDATOR_TERMINOLOGY_SERVER_URL since the HL7 validation engine mandates a terminology server
+     */
+    String getServerURL();
+
+    /**
+     * @param system A code system URI, e.g. http://loinc.org
+     * @return true if the codes of the system are known in-process, so that isValidCode can decide on them
+     */
+    boolean isKnownCodeSystem(String system);
+
+    /**
+     * @param system A code system URI
+     * @param code A code of the system
+     * @return true if the code is defined in the code system; false if it is not or the system is not known
+     */
+    boolean isValidCode(String system, String code);
+
+    /**
+     * @param system A code system URI
+     * @param code A code of the system
+     * @return The display of the code, or null if the code or its display is not known
+     */
+    String getDisplay(String system, String code);
+
+    /**
+     * @param valueSet A value set URL
+     * @param system A code system URI
+     * @param code A code of the system
+     * @return true if the value set is known and includes the code; false otherwise
+     */
+    boolean isInValueSet(String valueSet, String system, String code);
+}
@@ -46,4 +46,19 @@ public interface IValidator {
      * @return An output stream containing the validation result. The validation result is contained in div element.
      */
     OutputStream validateResource(IResource resource);
+
+    /**
+     * Validates the FHIR resource(s) contained in the FHIR Bundle, returning the issues found rather than an html report
+     * @param bundle A FHIR Bundle instance containing the FHIR resource(s) to be validated. If the (DAF) profile is supplied in meta.profile attribute of contained resources, then (DAF) profile validation is enable automatically.
+     * @param stopAtFirstError true to stop validating the later entries once an entry is found invalid, e.g. in a gate that rejects invalid bundles
+     * @return The issues found, in entry order
+     */
+    ValidationResult validate(Bundle bundle, boolean stopAtFirstError);
+
+    /**
+     * Validates a FHIR IResource instance, returning the issues found rather than an html report
+     * @param resource A FHIR IResource instance. If the (DAF) profile is supplied in meta.profile attribute, then (DAF) profile validation is enable automatically.
+     * @return The issues found in the resource
+     */
+    ValidationResult validate(IResource resource);
 }
\ No newline at end of file
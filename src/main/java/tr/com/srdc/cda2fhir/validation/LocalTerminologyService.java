@@ -0,0 +1,152 @@
+package tr.com.srdc.cda2fhir.validation;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A terminology service answering from the code systems and value sets loaded into memory, for the validators that run without network access.
+ * The definitions are read from a tab separated file, one record per line; blank lines and the lines starting with # are ignored:
+ * <pre>
+ * CodeSystem	http://loinc.org	8302-2	Body height
+ * ValueSet	http://hl7.org/fhir/ValueSet/observation-status	http://hl7.org/fhir/observation-status	final
+ * </pre>
+ * A CodeSystem record defines a code (and optionally its display) in a code system; a ValueSet record includes a code of a code system in a value set.
+ * Instances are immutable once loaded, and can be shared by many validators.
+ */
+public class LocalTerminologyService implements ITerminologyService {
+
+	public static final String CODE_SYSTEM_RECORD = "CodeSystem";
+	public static final String VALUE_SET_RECORD = "ValueSet";
+
+	private final String serverURL;
+	// code system -> code -> display ("" if no display is given)
+	private final Map<String, Map<String, String>> codeSystems;
+	// value set -> "system|code"
+	private final Map<String, Set<String>> valueSets;
+
+	private LocalTerminologyService(String serverURL, Map<String, Map<String, String>> codeSystems, Map<String, Set<String>> valueSets) {
+		this.serverURL = serverURL;
+		this.codeSystems = codeSystems;
+		this.valueSets = valueSets;
+	}
+
+	/**
+	 * Loads the code systems and value sets from the given file
+	 * @param path Path of the tab separated definitions file, in UTF-8
+	 * @param serverURL The terminology server the engines should be connected to, e.g. one within the same network; null for none
+	 * @return The service answering from the loaded definitions
+	 * @throws IOException if the file cannot be read or contains a malformed record
+	 */
+	public static LocalTerminologyService load(Path path, String serverURL) throws IOException {
+		try (InputStream is = Files.newInputStream(path)) {
+			return load(is, serverURL);
+		}
+	}
+
+	/**
+	 * Loads the code systems and value sets from the given stream, which is not closed
+	 * @param is The stream of the tab separated definitions, in UTF-8
+	 * @param serverURL The terminology server the engines should be connected to, e.g. one within the same network; null for none
+	 * @return The service answering from the loaded definitions
+	 * @throws IOException if the stream cannot be read or contains a malformed record
+	 */
+	public static LocalTerminologyService load(InputStream is, String serverURL) throws IOException {
+		Map<String, Map<String, String>> codeSystems = new HashMap<String, Map<String, String>>();
+		Map<String, Set<String>> valueSets = new HashMap<String, Set<String>>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+		String line;
+		int lineNumber = 0;
+		while((line = reader.readLine()) != null) {
+			lineNumber++;
+			if(line.trim().isEmpty() || line.startsWith("#"))
+				continue;
+			String[] fields = line.split("\t", -1);
+			if(fields.length >= 3 && CODE_SYSTEM_RECORD.equals(fields[0])) {
+				Map<String, String> codes = codeSystems.get(fields[1]);
+				if(codes == null) {
+					codes = new HashMap<String, String>();
+					codeSystems.put(fields[1], codes);
+				}
+				codes.put(fields[2], fields.length > 3 ? fields[3] : "");
+			} else if(fields.length >= 4 && VALUE_SET_RECORD.equals(fields[0])) {
+				Set<String> members = valueSets.get(fields[1]);
+				if(members == null) {
+					members = new HashSet<String>();
+					valueSets.put(fields[1], members);
+				}
+				members.add(fields[2] + "|" + fields[3]);
+			} else {
+				throw new IOException("Malformed terminology record at line " + lineNumber + ": " + line);
+			}
+		}
+		return new LocalTerminologyService(serverURL, Collections.unmodifiableMap(codeSystems), Collections.unmodifiableMap(valueSets));
+	}
+
+	public String getServerURL() {
+		return serverURL;
+	}
+
+	public boolean isKnownCodeSystem(String system) {
+		return system != null && codeSystems.containsKey(system);
+	}
+
+	public boolean isValidCode(String system, String code) {
+		Map<String, String> codes = system != null ? codeSystems.get(system) : null;
+		return codes != null && codes.containsKey(code);
+	}
+
+	public String getDisplay(String system, String code) {
+		Map<String, String> codes = system != null ? codeSystems.get(system) : null;
+		String display = codes != null ? codes.get(code) : null;
+		return display == null || display.isEmpty() ? null : display;
+	}
+
+	public boolean isInValueSet(String valueSet, String system, String code) {
+		Set<String> members = valueSet != null ? valueSets.get(valueSet) : null;
+		return members != null && members.contains(system + "|" + code);
+	}
+
+	/**
+	 * @return The number of code systems loaded
+	 */
+	public int getCodeSystemCount() {
+		return codeSystems.size();
+	}
+
+	/**
+	 * @return The number of value sets loaded
+	 */
+	public int getValueSetCount() {
+		return valueSets.size();
+	}
+}
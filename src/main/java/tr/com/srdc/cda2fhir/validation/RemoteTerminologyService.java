@@ -0,0 +1,154 @@
+package tr.com.srdc.cda2fhir.validation;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import tr.com.srdc.cda2fhir.conf.Config;
+
+/**
+ * A terminology service backed by a remote FHIR terminology server, which is the first reachable one among the configured alternatives.
+ * The servers are probed in the background, on first use; until the probing is over, the fallback server is reported.
+ * Code checks are left to the terminology server; hence, no code system is known in-process.
+ */
+public class RemoteTerminologyService implements ITerminologyService {
+
+	private final List<String> serverURLs;
+	private final String fallbackServerURL;
+	private volatile String serverURL;
+	private CompletableFuture<String> discovery;
+
+	private final Logger logger = LoggerFactory.getLogger(RemoteTerminologyService.class);
+
+	/**
+	 * @return The service for the servers in Config, shared by all the validators using the default configuration, so that the servers are probed once
+	 */
+	public static RemoteTerminologyService getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	/**
+	 * Constructs a service probing the servers in Config.VALIDATOR_TERMINOLOGY_SERVER_URLS, falling back to Config.DEFAULT_VALIDATOR_TERMINOLOGY_SERVER_URL
+	 */
+	public RemoteTerminologyService() {
+		this(Arrays.asList(Config.VALIDATOR_TERMINOLOGY_SERVER_URLS), Config.DEFAULT_VALIDATOR_TERMINOLOGY_SERVER_URL);
+	}
+
+	/**
+	 * @param serverURLs The terminology server URL Strings to be probed, in the order of preference
+	 * @param fallbackServerURL The terminology server used if none of the servers is reachable
+	 */
+	public RemoteTerminologyService(List<String> serverURLs, String fallbackServerURL) {
+		this.serverURLs = serverURLs;
+		this.fallbackServerURL = fallbackServerURL;
+		this.serverURL = fallbackServerURL;
+	}
+
+	public String getServerURL() {
+		discover();
+		return serverURL;
+	}
+
+	/**
+	 * Starts probing the servers on a background thread, unless already started
+	 * @return A future completed with the first reachable server, or the fallback server if none is reachable
+	 */
+	public synchronized CompletableFuture<String> discover() {
+		if(discovery == null) {
+			discovery = new CompletableFuture<String>();
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					serverURL = findServer();
+					discovery.complete(serverURL);
+				}
+			}, "cda2fhir-terminology-discovery");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return discovery;
+	}
+
+	public boolean isKnownCodeSystem(String system) {
+		return false;
+	}
+
+	public boolean isValidCode(String system, String code) {
+		return false;
+	}
+
+	public String getDisplay(String system, String code) {
+		return null;
+	}
+
+	public boolean isInValueSet(String valueSet, String system, String code) {
+		return false;
+	}
+
+	/**
+	 * @return The first reachable server, or the fallback server if none is reachable
+	 */
+	private String findServer() {
+		// searching for an available terminology server
+		for(String tServerURLString : serverURLs) {
+			if(checkServer(tServerURLString)) {
+				logger.info("Terminology server is successfully set as: {}", tServerURLString);
+				return tServerURLString;
+			} else {
+				logger.warn("Could not reach terminology server at {} . Trying the next alternative ...", tServerURLString);
+			}
+		}
+		// if the set of terminology servers did not work, proceed with the fallback option even if it is not reachable
+		// because the HL7 validation engine mandates setting a terminology server
+		logger.warn("None of the terminology server alternatives was reachable. Proceeding with the fallback option {}", fallbackServerURL);
+		return fallbackServerURL;
+	}
+
+	/**
+	 * Sends an HTTP GET request to a server to check if the server is available
+	 * @param serverURLString A string that contains the URL of the server
+	 * @return A boolean indicating if the server is available
+	 */
+	private boolean checkServer(String serverURLString) {
+		try {
+			URL url = new URL(serverURLString);
+			HttpURLConnection con = (HttpURLConnection) url.openConnection();
+			con.setRequestMethod("GET");
+			con.setConnectTimeout(Config.DEFAULT_VALIDATOR_TERMINOLOGY_SERVER_CHECK_TIMEOUT);
+			con.setReadTimeout(Config.DEFAULT_VALIDATOR_TERMINOLOGY_SERVER_CHECK_TIMEOUT);
+			con.connect();
+			return con.getResponseCode() < 300;
+		} catch(Exception e) {
+			logger.error("Exception occurred while trying to reach the server at {}", serverURLString, e);
+			return false;
+		}
+	}
+
+	private static class DefaultHolder {
+		private static final RemoteTerminologyService INSTANCE = new RemoteTerminologyService();
+	}
+}
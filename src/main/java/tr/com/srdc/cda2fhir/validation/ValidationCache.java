@@ -0,0 +1,181 @@
+package tr.com.srdc.cda2fhir.validation;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.valueset.IssueTypeEnum;
+import ca.uhn.fhir.parser.IParser;
+import tr.com.srdc.cda2fhir.conf.Config;
+import tr.com.srdc.cda2fhir.util.BoundedCache;
+
+/**
+ * Memoizes the validation outcomes of resources. The same Organizations, Practitioners, Substances and Medications occur in many entries
+ * and many documents; a resource equal to one validated before is not validated again.
+ * The cache is keyed on the SHA-256 digest of the compact JSON encoding of the resource without its id; hence, two resources differing only
+ * in their ids share the same outcome. The outcomes of failed validations (e.g. an unreachable terminology server) are not cached.
+ * The cache should be shared only by the validators with the same terminology service, since the outcomes depend on it.
+ * Instances are safe to be shared by concurrent validations.
+ */
+public class ValidationCache {
+
+	public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+	// the parsers and digests keep state while encoding; each thread has its own
+	private static final ThreadLocal<IParser> canonicalParser = ThreadLocal.withInitial(
+			() -> Config.getFhirContext().newJsonParser().setPrettyPrint(false).setOmitResourceId(true));
+	private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final BoundedCache<String, List<ValidationIssue>> outcomes;
+
+	/**
+	 * Constructs a cache of DEFAULT_MAXIMUM_SIZE outcomes, which never expire
+	 */
+	public ValidationCache() {
+		this(DEFAULT_MAXIMUM_SIZE, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param maximumSize Maximum number of outcomes to be kept, > 0
+	 * @param timeToLive Time an outcome is kept after the validation. If not positive, the outcomes never expire.
+	 * @param unit Unit of the timeToLive
+	 */
+	public ValidationCache(int maximumSize, long timeToLive, TimeUnit unit) {
+		this.outcomes = new BoundedCache<String, List<ValidationIssue>>(maximumSize, timeToLive, unit);
+	}
+
+	/**
+	 * Returns the issues of the resource, validating it only if an equal resource has not been validated before
+	 * @param resource The resource to be validated
+	 * @param entryIndex Position of the resource in the bundle entries
+	 * @param validator The validation to be applied to a resource whose outcome is not cached
+	 * @return The issues of the resource, about the given entry
+	 */
+	public List<ValidationIssue> get(IResource resource, int entryIndex, Function<IResource, List<ValidationIssue>> validator) {
+		String key = digest(resource);
+		List<ValidationIssue> cached = key != null ? outcomes.get(key) : null;
+		if(cached == null) {
+			List<ValidationIssue> issues = validator.apply(resource);
+			if(key != null && isCacheable(issues))
+				outcomes.putIfAbsent(key, forEntry(issues, -1, null));
+			return issues;
+		}
+		return forEntry(cached, entryIndex, resource.getId().getValue());
+	}
+
+	/**
+	 * Forgets all the cached outcomes, e.g. after the terminology server or the definitions change
+	 */
+	public void clear() {
+		outcomes.invalidateAll();
+	}
+
+	/**
+	 * @return The number of the cached outcomes
+	 */
+	public int size() {
+		return outcomes.size();
+	}
+
+	public long getHitCount() {
+		return outcomes.getHitCount();
+	}
+
+	public long getMissCount() {
+		return outcomes.getMissCount();
+	}
+
+	/**
+	 * @return The ratio of the validations answered from the cache, or 0 if there has been no validation
+	 */
+	public double getHitRate() {
+		return outcomes.getHitRate();
+	}
+
+	/**
+	 * @return The underlying cache, e.g. to read its eviction count
+	 */
+	public BoundedCache<?, ?> getCache() {
+		return outcomes;
+	}
+
+	@Override
+	public String toString() {
+		return outcomes.toString();
+	}
+
+	/**
+	 * Digests the canonical encoding of the resource, streaming it into the digest without building the encoded string
+	 * @param resource The resource to be digested
+	 * @return The Base64 encoded SHA-256 digest of the resource without its id, or null if the resource could not be encoded
+	 */
+	private static String digest(IResource resource) {
+		MessageDigest digest = sha256.get();
+		digest.reset();
+		try {
+			Writer writer = new OutputStreamWriter(new DigestOutputStream(OutputStream.nullOutputStream(), digest), StandardCharsets.UTF_8);
+			canonicalParser.get().encodeResourceToWriter(resource, writer);
+			writer.flush();
+		} catch (IOException e) {
+			return null;
+		}
+		return Base64.getEncoder().encodeToString(digest.digest());
+	}
+
+	private static boolean isCacheable(List<ValidationIssue> issues) {
+		for(ValidationIssue issue : issues) {
+			if(issue.getCode() == IssueTypeEnum.EXCEPTION)
+				return false;
+		}
+		return true;
+	}
+
+	private static List<ValidationIssue> forEntry(List<ValidationIssue> issues, int entryIndex, String resourceId) {
+		if(issues.isEmpty())
+			return Collections.emptyList();
+		List<ValidationIssue> entryIssues = new ArrayList<ValidationIssue>(issues.size());
+		for(ValidationIssue issue : issues) {
+			entryIssues.add(issue.forEntry(entryIndex, resourceId));
+		}
+		return entryIssues;
+	}
+}
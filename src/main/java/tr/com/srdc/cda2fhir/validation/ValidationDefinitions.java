@@ -0,0 +1,118 @@
+package tr.com.srdc.cda2fhir.validation;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import tr.com.srdc.cda2fhir.conf.Config;
+
+/**
+ * The validation definitions (StructureDefinitions, ValueSets etc.) the validation engines read, resolved once per JVM.
+ * By default, the definitions are loaded from the classpath (Config.VALIDATION_DEFINITION_PATH), so that they are found when the library
+ * is used as a jar. A snapshot file prepared beforehand, e.g. a definitions zip trimmed to the resources and profiles in use, can be given
+ * instead through the cda2fhir.validationDefinitions system property.
+ */
+public class ValidationDefinitions {
+
+	public static final String DEFINITIONS_PROPERTY = "cda2fhir.validationDefinitions";
+	public static final String CLASSPATH_PREFIX = "classpath:";
+
+	private static final Logger logger = LoggerFactory.getLogger(ValidationDefinitions.class);
+
+	private final String location;
+	private final Path path;
+
+	private ValidationDefinitions(String location, Path path) {
+		this.location = location;
+		this.path = path;
+	}
+
+	/**
+	 * @return The definitions given by the cda2fhir.validationDefinitions system property, or by Config.VALIDATION_DEFINITION_PATH if the property is not set
+	 */
+	public static ValidationDefinitions getShared() {
+		return SharedHolder.INSTANCE;
+	}
+
+	/**
+	 * Resolves the definitions at the given location to a file the validation engines can read
+	 * @param location A file path, or a classpath resource prefixed with "classpath:", which is copied to a temporary file
+	 * @return The resolved definitions
+	 * @throws IOException if the definitions do not exist or cannot be copied
+	 */
+	public static ValidationDefinitions resolve(String location) throws IOException {
+		if(location.startsWith(CLASSPATH_PREFIX)) {
+			String resource = location.substring(CLASSPATH_PREFIX.length());
+			try (InputStream is = ValidationDefinitions.class.getClassLoader().getResourceAsStream(resource)) {
+				if(is == null)
+					throw new IOException("Validation definitions could not be found in the classpath: " + resource);
+				// the validation engine reads the definitions from a file
+				Path path = Files.createTempFile("cda2fhir-validation-definitions", "-" + Paths.get(resource).getFileName());
+				path.toFile().deleteOnExit();
+				Files.copy(is, path, StandardCopyOption.REPLACE_EXISTING);
+				return new ValidationDefinitions(location, path);
+			}
+		}
+		Path path = Paths.get(location);
+		if(!Files.isReadable(path))
+			throw new IOException("Validation definitions could not be read: " + location);
+		return new ValidationDefinitions(location, path);
+	}
+
+	/**
+	 * @return The location the definitions were resolved from
+	 */
+	public String getLocation() {
+		return location;
+	}
+
+	/**
+	 * @return The file the validation engines read the definitions from
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	private static class SharedHolder {
+		private static final ValidationDefinitions INSTANCE = resolveShared();
+
+		private static ValidationDefinitions resolveShared() {
+			String location = System.getProperty(DEFINITIONS_PROPERTY, Config.VALIDATION_DEFINITION_PATH);
+			try {
+				ValidationDefinitions definitions = resolve(location);
+				logger.info("Validation definitions are resolved from {}", location);
+				return definitions;
+			} catch (IOException e) {
+				// the engines report the failure while reading the definitions
+				logger.error("Could not resolve the validation definitions at {}", location, e);
+				return new ValidationDefinitions(location, Paths.get(location.startsWith(CLASSPATH_PREFIX) ? location.substring(CLASSPATH_PREFIX.length()) : location));
+			}
+		}
+	}
+}
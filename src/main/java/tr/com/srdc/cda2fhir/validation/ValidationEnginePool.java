@@ -0,0 +1,211 @@
+package tr.com.srdc.cda2fhir.validation;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.hl7.fhir.dstu2.validation.ValidationEngine;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+/**
+ * A number of validation engines whose definitions are read when they are added to the pool.
+ * A validation engine keeps the resource being validated and its outcome as its own state; hence, an engine validates one resource at a time,
+ * and concurrent validations take different engines from the pool. Reading the definitions is the costly part of creating a validator;
+ * the validators using the default configuration share the engines of a single pool, which grows to the largest number of engines asked for.
+ * The terminology server is a state of the pool. When it changes, each engine is connected to the new server the next time it is acquired;
+ * hence, changing the server never waits for the validations in progress.
+ */
+public class ValidationEnginePool {
+
+	private final String definitionPath;
+	private final List<ValidationEngine> engines = new CopyOnWriteArrayList<ValidationEngine>();
+	private final BlockingQueue<ValidationEngine> idleEngines = new LinkedBlockingQueue<ValidationEngine>();
+	// the server each engine is connected to
+	private final Map<ValidationEngine, String> engineServerURLs = new ConcurrentHashMap<ValidationEngine, String>();
+	private volatile String tServerURL;
+	// true once a server is set explicitly, which is not overridden by a discovered one
+	private boolean tServerSet;
+
+	private final Logger logger = LoggerFactory.getLogger(ValidationEnginePool.class);
+
+	/**
+	 * Constructs a pool of engines reading the shared definitions, see ValidationDefinitions.getShared
+	 * @param size Number of engines, > 0. Each engine holds its own copy of the definitions in memory.
+	 */
+	public ValidationEnginePool(int size) {
+		this(size, ValidationDefinitions.getShared().getPath().toString());
+	}
+
+	/**
+	 * Constructs a pool of engines, each of which reads the given definitions
+	 * @param size Number of engines, > 0. Each engine holds its own copy of the definitions in memory.
+	 * @param definitionPath Path of the validation definitions file
+	 */
+	public ValidationEnginePool(int size, String definitionPath) {
+		if(size < 1)
+			throw new IllegalArgumentException("Number of validation engines should be positive");
+		this.definitionPath = definitionPath;
+		ensureSize(size);
+	}
+
+	/**
+	 * Returns the pool shared by the validators constructed with ValidatorImpl.sharingEngines, adding engines to it if it has fewer than the given number
+	 * @param size Minimum number of engines, > 0
+	 * @return The pool shared within the JVM
+	 */
+	public static ValidationEnginePool getShared(int size) {
+		ValidationEnginePool pool = SharedHolder.INSTANCE;
+		pool.ensureSize(size);
+		return pool;
+	}
+
+	/**
+	 * @return The number of engines in the pool, i.e. the maximum number of resources validated at the same time
+	 */
+	public int getSize() {
+		return engines.size();
+	}
+
+	/**
+	 * @return The terminology server the engines are connected to, or null if they are not connected to any
+	 */
+	public String getTerminologyServer() {
+		return tServerURL;
+	}
+
+	/**
+	 * @return true if the terminology server has been set explicitly by connectToTSServer
+	 */
+	public synchronized boolean isTerminologyServerSet() {
+		return tServerSet;
+	}
+
+	/**
+	 * Adds engines to the pool until it has the given number of engines
+	 * @param size Minimum number of engines, > 0
+	 */
+	public synchronized void ensureSize(int size) {
+		while(engines.size() < size) {
+			ValidationEngine engine = newEngine();
+			engines.add(engine);
+			idleEngines.add(engine);
+		}
+	}
+
+	/**
+	 * Takes an engine from the pool, waiting for one to be released if all of them are in use.
+	 * The engine is connected to the terminology server of the pool if it is not connected to it yet.
+	 * @return An engine to be used by the calling thread only, until it is released
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public ValidationEngine acquire() throws InterruptedException {
+		ValidationEngine engine = idleEngines.take();
+		String serverURL = tServerURL;
+		if(serverURL != null && !serverURL.equals(engineServerURLs.get(engine))) {
+			try {
+				engine.connectToTSServer(serverURL);
+				engineServerURLs.put(engine, serverURL);
+			} catch (URISyntaxException e) {
+				logger.error("Terminology server URL string could not be parsed as a URI reference", e);
+			}
+		}
+		return engine;
+	}
+
+	/**
+	 * Returns an engine taken by acquire to the pool
+	 * @param engine The engine to be released
+	 */
+	public void release(ValidationEngine engine) {
+		idleEngines.add(engine);
+	}
+
+	/**
+	 * Sets the terminology server of the engines, overriding the default and the discovered servers
+	 * @param tServerURL A terminology server URL String
+	 * @throws URISyntaxException if the URL string could not be parsed as a URI reference
+	 */
+	public synchronized void connectToTSServer(String tServerURL) throws URISyntaxException {
+		new URI(tServerURL);
+		this.tServerURL = tServerURL;
+		this.tServerSet = true;
+	}
+
+	/**
+	 * Sets the terminology server of the engines, unless the pool already has one
+	 * @param tServerURL A terminology server URL String
+	 * @return true if the server of the pool is set
+	 * @throws URISyntaxException if the URL string could not be parsed as a URI reference
+	 */
+	public synchronized boolean connectToDefaultTSServer(String tServerURL) throws URISyntaxException {
+		if(this.tServerURL != null)
+			return false;
+		new URI(tServerURL);
+		this.tServerURL = tServerURL;
+		return true;
+	}
+
+	/**
+	 * Switches the engines to a terminology server found to be accessible, unless a server has been set explicitly
+	 * @param tServerURL A terminology server URL String
+	 * @return true if the server of the pool is changed
+	 * @throws URISyntaxException if the URL string could not be parsed as a URI reference
+	 */
+	public synchronized boolean connectToDiscoveredTSServer(String tServerURL) throws URISyntaxException {
+		if(tServerSet || tServerURL.equals(this.tServerURL))
+			return false;
+		new URI(tServerURL);
+		this.tServerURL = tServerURL;
+		return true;
+	}
+
+	/**
+	 * @return A new engine which has read the definitions of the pool
+	 */
+	private ValidationEngine newEngine() {
+		ValidationEngine engine = new ValidationEngine();
+		try {
+			engine.readDefinitions(definitionPath);
+		} catch (IOException e) {
+			logger.error("IOException occurred while trying to read the definitions for the validator", e);
+		} catch (SAXException e) {
+			logger.error("Improper definition for the validator", e);
+		} catch (FHIRException e) {
+			logger.error("FHIRException occurred while trying to read the definitions for the validator", e);
+		}
+		return engine;
+	}
+
+	private static class SharedHolder {
+		private static final ValidationEnginePool INSTANCE = new ValidationEnginePool(1);
+	}
+}
@@ -0,0 +1,107 @@
+package tr.com.srdc.cda2fhir.validation;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
+import ca.uhn.fhir.model.dstu2.valueset.IssueTypeEnum;
+
+/**
+ * A single issue found while validating a resource, e.g. a missing required element or a code not in its value set
+ */
+public class ValidationIssue {
+
+	private final int entryIndex;
+	private final String resourceId;
+	private final IssueSeverityEnum severity;
+	private final IssueTypeEnum code;
+	private final String location;
+	private final String message;
+
+	/**
+	 * @param entryIndex Position of the validated resource in the bundle entries, starting from 0; 0 if a single resource is validated
+	 * @param resourceId Id of the validated resource
+	 * @param severity Severity of the issue
+	 * @param code Type of the issue, may be null
+	 * @param location Path of the element the issue is about (e.g. Observation.code), may be null
+	 * @param message Description of the issue
+	 */
+	public ValidationIssue(int entryIndex, String resourceId, IssueSeverityEnum severity, IssueTypeEnum code, String location, String message) {
+		this.entryIndex = entryIndex;
+		this.resourceId = resourceId;
+		this.severity = severity;
+		this.code = code;
+		this.location = location;
+		this.message = message;
+	}
+
+	public int getEntryIndex() {
+		return entryIndex;
+	}
+
+	public String getResourceId() {
+		return resourceId;
+	}
+
+	public IssueSeverityEnum getSeverity() {
+		return severity;
+	}
+
+	public IssueTypeEnum getCode() {
+		return code;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return true if the issue makes the resource invalid, i.e. its severity is error or fatal
+	 */
+	public boolean isError() {
+		return severity == IssueSeverityEnum.ERROR || severity == IssueSeverityEnum.FATAL;
+	}
+
+	/**
+	 * @param entryIndex Position of the resource in the bundle entries
+	 * @param resourceId Id of the resource
+	 * @return An issue equal to this one, but about the given resource
+	 */
+	public ValidationIssue forEntry(int entryIndex, String resourceId) {
+		return new ValidationIssue(entryIndex, resourceId, severity, code, location, message);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("[entry ").append(entryIndex).append(' ').append(resourceId).append("] ");
+		sb.append(severity != null ? severity.getCode() : "unknown");
+		if(code != null)
+			sb.append(" (").append(code.getCode()).append(')');
+		if(location != null)
+			sb.append(' ').append(location);
+		sb.append(": ").append(message);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,206 @@
+package tr.com.srdc.cda2fhir.validation;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+
+/**
+ * The outcome of validating a bundle or a single resource: the issues found, in entry order.
+ * The html report of the former validation methods is rendered from the issues only when it is asked for.
+ */
+public class ValidationResult {
+
+	private final List<String> resourceIds;
+	private final List<ValidationIssue> issues;
+	private final boolean complete;
+
+	/**
+	 * @param resourceIds Ids of the validated resources by entry index; null for the entries that were not validated
+	 * @param issues The issues found, in entry order
+	 * @param complete false if the validation stopped at the first error, before all the entries were validated
+	 */
+	public ValidationResult(List<String> resourceIds, List<ValidationIssue> issues, boolean complete) {
+		this.resourceIds = Collections.unmodifiableList(resourceIds);
+		this.issues = Collections.unmodifiableList(issues);
+		this.complete = complete;
+	}
+
+	/**
+	 * @return true if no issue of error or fatal severity was found
+	 */
+	public boolean isValid() {
+		for(ValidationIssue issue : issues) {
+			if(issue.isError())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return false if the validation stopped at the first error, leaving the later entries unvalidated
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return The number of entries covered by the result, including the ones that were not validated
+	 */
+	public int getEntryCount() {
+		return resourceIds.size();
+	}
+
+	/**
+	 * @return All the issues found, in entry order
+	 */
+	public List<ValidationIssue> getIssues() {
+		return issues;
+	}
+
+	/**
+	 * @return The issues of error or fatal severity, in entry order
+	 */
+	public List<ValidationIssue> getErrors() {
+		List<ValidationIssue> errors = new ArrayList<ValidationIssue>();
+		for(ValidationIssue issue : issues) {
+			if(issue.isError())
+				errors.add(issue);
+		}
+		return errors;
+	}
+
+	/**
+	 * @param entryIndex Position of the resource in the bundle entries, starting from 0
+	 * @return The issues found in the resource of the given entry
+	 */
+	public List<ValidationIssue> getIssues(int entryIndex) {
+		List<ValidationIssue> entryIssues = new ArrayList<ValidationIssue>();
+		for(ValidationIssue issue : issues) {
+			if(issue.getEntryIndex() == entryIndex)
+				entryIssues.add(issue);
+		}
+		return entryIssues;
+	}
+
+	/**
+	 * @param entryIndex Position of the resource in the bundle entries, starting from 0
+	 * @return The issues found in the resource of the given entry as a FHIR OperationOutcome
+	 */
+	public OperationOutcome getOperationOutcome(int entryIndex) {
+		OperationOutcome outcome = new OperationOutcome();
+		for(ValidationIssue issue : getIssues(entryIndex)) {
+			OperationOutcome.Issue fhirIssue = outcome.addIssue();
+			fhirIssue.setSeverity(issue.getSeverity());
+			if(issue.getCode() != null)
+				fhirIssue.setCode(issue.getCode());
+			if(issue.getLocation() != null)
+				fhirIssue.addLocation(issue.getLocation());
+			fhirIssue.setDiagnostics(issue.getMessage());
+		}
+		return outcome;
+	}
+
+	/**
+	 * @return The issues as an html document, with a section for each validated entry
+	 */
+	public String toHtml() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<html>\n\t<body>");
+		appendHtmlSections(sb);
+		sb.append("\n\t</body>\n</html>");
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the issues as an html document, with a section for each validated entry
+	 * @param out The stream the html will be written to in UTF-8; flushed but not closed
+	 * @throws IOException if the stream cannot be written
+	 */
+	public void writeHtml(OutputStream out) throws IOException {
+		Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		writer.write(toHtml());
+		writer.flush();
+	}
+
+	/**
+	 * Appends an html section for each validated entry, i.e. the resource id followed by a table of its issues
+	 * @param sb The builder the sections are appended to
+	 */
+	void appendHtmlSections(StringBuilder sb) {
+		// the issues are in entry order; walk both lists together
+		int next = 0;
+		for(int entryIndex = 0; entryIndex < resourceIds.size(); entryIndex++) {
+			String resourceId = resourceIds.get(entryIndex);
+			if(resourceId == null)
+				continue;
+			sb.append("<h3>");
+			appendEscaped(sb, resourceId);
+			sb.append("</h3>");
+			int first = next;
+			while(next < issues.size() && issues.get(next).getEntryIndex() == entryIndex) {
+				next++;
+			}
+			if(first == next) {
+				sb.append("<div><p>All OK</p></div>");
+			} else {
+				sb.append("<div><table class=\"grid\"><tr><td><b>Severity</b></td><td><b>Location</b></td><td><b>Code</b></td><td><b>Details</b></td></tr>");
+				for(int i = first; i < next; i++) {
+					ValidationIssue issue = issues.get(i);
+					sb.append("<tr><td>");
+					appendEscaped(sb, issue.getSeverity() != null ? issue.getSeverity().getCode() : null);
+					sb.append("</td><td>");
+					appendEscaped(sb, issue.getLocation());
+					sb.append("</td><td>");
+					appendEscaped(sb, issue.getCode() != null ? issue.getCode().getCode() : null);
+					sb.append("</td><td>");
+					appendEscaped(sb, issue.getMessage());
+					sb.append("</td></tr>");
+				}
+				sb.append("</table></div>");
+			}
+			sb.append("<hr>");
+		}
+	}
+
+	private static void appendEscaped(StringBuilder sb, String text) {
+		if(text == null)
+			return;
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '<': sb.append("&lt;"); break;
+				case '>': sb.append("&gt;"); break;
+				case '&': sb.append("&amp;"); break;
+				case '"': sb.append("&quot;"); break;
+				default: sb.append(c);
+			}
+		}
+	}
+}
@@ -23,84 +23,182 @@ package tr.com.srdc.cda2fhir.validation;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 
+import org.hl7.fhir.dstu2.model.OperationOutcome;
 import org.hl7.fhir.dstu2.utils.client.EFhirClientException;
+import org.hl7.fhir.dstu2.validation.ValidationEngine;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.SAXException;
 
 import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.CodingDt;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
+import ca.uhn.fhir.model.dstu2.valueset.IssueTypeEnum;
 import tr.com.srdc.cda2fhir.conf.Config;
 import tr.com.srdc.cda2fhir.util.FHIRUtil;
 
 public class ValidatorImpl implements IValidator {
 
-	private String tServerURL = null;
-	private final org.hl7.fhir.dstu2.validation.ValidationEngine validationEngine = new org.hl7.fhir.dstu2.validation.ValidationEngine();
+	private final ITerminologyService terminologyService;
+	private volatile ValidationCache validationCache;
+	private final ValidationEnginePool enginePool;
+	// validates the entries of a bundle concurrently, one entry per engine; null if there is a single engine
+	private final ThreadPoolExecutor entryExecutor;
 	private final Logger logger = LoggerFactory.getLogger(ValidatorImpl.class);
 	
 	/**
-	 * Constructs a validator using the default configuration.
+	 * Constructs a validator using the default configuration, which validates one resource at a time.
+	 * The terminology server is the first reachable one in Config, which is searched for in the background.
 	 */
 	public ValidatorImpl() {
-		// searching for an available terminology server
-		for(String tServerURLString : Config.VALIDATOR_TERMINOLOGY_SERVER_URLS) {
-			/*
-			 *  if the request is successful,  set tServerURL with that available terminology server and break the loop.
-			 *   .. otherwise, catch the exception and continue with the next terminology server URL string contained in the config.
-			 */
-			boolean checkResult = checkServer(tServerURLString);
-			if(checkResult) {
-				this.tServerURL = tServerURLString;
-				logger.info("Terminology server is successfully set as: {}", tServerURLString);
-				break;
-			} else {
-				logger.warn("Could not reach terminology server at {} . Trying the next alternative ...", tServerURLString);
-				continue;
-			}
-		}
+		this(1);
+	}
+
+	/**
+	 * Constructs a validator that validates up to the given number of bundle entries concurrently.
+	 * The validator has its own validation engines, which read the shared definitions, see ValidationDefinitions.
+	 * @param engines Number of validation engines, > 0. Each engine holds its own copy of the validation definitions in memory.
+	 */
+	public ValidatorImpl(int engines) {
+		this(new ValidationEnginePool(engines), engines, RemoteTerminologyService.getDefault());
+	}
+
+	/**
+	 * Constructs a validator that validates up to the given number of bundle entries concurrently, on the validation engines shared
+	 * by all the validators constructed this way. Only the first of them creates engines, which saves the memory of a copy of
+	 * the definitions per validator; however, setting the terminology server of one of them sets it for all of them.
+	 * @param engines Number of validation engines, > 0. The shared pool grows to the largest number asked for.
+	 * @return A validator on the shared validation engines
+	 */
+	public static ValidatorImpl sharingEngines(int engines) {
+		return new ValidatorImpl(ValidationEnginePool.getShared(engines), engines, RemoteTerminologyService.getDefault());
+	}
+
+	/**
+	 * Constructs a validator with the given terminology backend, e.g. a LocalTerminologyService for a network without access to a terminology server.
+	 * The codes of the code systems known to the service are checked by the validator in addition to the validation engine.
+	 * The validator has its own validation engines, which read the shared definitions, see ValidationDefinitions.
+	 * @param engines Number of validation engines, > 0. Each engine holds its own copy of the validation definitions in memory.
+	 * @param terminologyService The terminology backend of the validator
+	 */
+	public ValidatorImpl(int engines, ITerminologyService terminologyService) {
+		this(new ValidationEnginePool(engines), engines, terminologyService);
+	}
 
-		// if the set of terminology servers did not work, proceed with the fallback option even if it is not reachable
-		// because the HL7 validation engine mandates setting a terminology server
-		if(this.tServerURL == null) {
-			this.tServerURL = Config.DEFAULT_VALIDATOR_TERMINOLOGY_SERVER_URL;
-			logger.warn("None of the terminology server alternatives was reachable. Proceeding with the fallback option {}", this.tServerURL);
+	private ValidatorImpl(ValidationEnginePool enginePool, int engines, ITerminologyService terminologyService) {
+		this.enginePool = enginePool;
+		this.terminologyService = terminologyService;
+		if(engines > 1) {
+			this.entryExecutor = new ThreadPoolExecutor(engines, engines, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+				Thread thread = new Thread(runnable, "cda2fhir-validator");
+				thread.setDaemon(true);
+				return thread;
+			});
+			// the idle workers exit, so that an unused validator holds no threads
+			this.entryExecutor.allowCoreThreadTimeOut(true);
+		} else {
+			this.entryExecutor = null;
 		}
-		
-		// reading definitions
+
+		// use the server known so far, without waiting for any network access; a shared pool keeps the server it already has
+		String serverURL = terminologyService.getServerURL();
 		try {
-			validationEngine.readDefinitions(Config.VALIDATION_DEFINITION_PATH);
-		} catch (IOException e) {
-			logger.error("IOException occurred while trying to read the definitions for the validator", e);
-		} catch (SAXException e) {
-			logger.error("Improper definition for the validator", e);
-		} catch (FHIRException e) {
-			logger.error("FHIRException occurred while trying to read the definitions for the validator", e);
+			// the HL7 validation engine mandates setting a terminology server
+			if(enginePool.connectToDefaultTSServer(serverURL != null ? serverURL : Config.DEFAULT_VALIDATOR_TERMINOLOGY_SERVER_URL))
+				logger.info("Validation engines are connected to the terminology server at {}", enginePool.getTerminologyServer());
+		} catch (URISyntaxException ex) {
+			logger.error("Terminology server URL string could not be parsed as a URI reference", ex);
+		}
+
+		// switch to the server found in the background, unless another server is set in the meantime
+		if(terminologyService instanceof RemoteTerminologyService) {
+			((RemoteTerminologyService) terminologyService).discover().thenAccept(discoveredURL -> {
+				try {
+					if(enginePool.connectToDiscoveredTSServer(discoveredURL))
+						logger.info("Validation engines are connected to the terminology server at {}", discoveredURL);
+				} catch (URISyntaxException ex) {
+					logger.error("Terminology server URL string could not be parsed as a URI reference", ex);
+				}
+			});
 		}
-		
-		// calling the validation engine's connect method for terminology service
-		setTerminologyServer(this.tServerURL);
 	}
-	
+
+	/**
+	 * Sets the terminology server of the validation engines. Only the validators sharing the engines (see sharingEngines) use the same server.
+	 * @param paramTServerURL A terminology server URL String
+	 */
 	public void setTerminologyServer(String paramTServerURL) {
-		this.tServerURL = paramTServerURL;
 		try {
-			validationEngine.connectToTSServer(tServerURL);
+			enginePool.connectToTSServer(paramTServerURL);
+			logger.info("Validation engines are connected to the terminology server at {}", paramTServerURL);
 		} catch (URISyntaxException ex) {
 			logger.error("Terminology server URL string could not be parsed as a URI reference", ex);
 		}
 	}
 
+	/**
+	 * @return The terminology server the validation engines are connected to
+	 */
+	public String getTerminologyServer() {
+		return enginePool.getTerminologyServer();
+	}
+
 	public OutputStream validateBundle(Bundle bundle) {
+		ValidationResult result = validate(bundle, false);
+		if(result == null)
+			return null;
+
+		// create an output stream to return
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try {
+			result.writeHtml(outputStream);
+		} catch (IOException e) {
+			logger.error("Could not write to the output stream.", e);
+		}
+		return outputStream;
+	}
+	
+	public OutputStream validateResource(IResource resource) {
+		ValidationResult result = validate(resource);
+		if(result == null)
+			return null;
+
+		// notice that html tag is not included in the outcome string
+		StringBuilder outcome = new StringBuilder();
+		result.appendHtmlSections(outcome);
+		byte[] outcomeBytes = outcome.toString().getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream(outcomeBytes.length);
+		outputStream.write(outcomeBytes, 0, outcomeBytes.length);
+		return outputStream;
+	}
+
+	/**
+	 * Sets the cache of the validation outcomes. A resource equal to one validated before, except for its id, is then not validated again.
+	 * The same cache may be given to many validators with the same terminology service; its hit and miss counts can be used to size it.
+	 * @param validationCache The cache to be used, or null to validate every resource (default)
+	 */
+	public void setValidationCache(ValidationCache validationCache) {
+		this.validationCache = validationCache;
+	}
+
+	public ValidationResult validate(Bundle bundle, boolean stopAtFirstError) {
 		if(bundle == null) {
 			logger.warn("The bundle to be validated is null. Returning null.");
 			return null;
@@ -111,114 +209,258 @@ public class ValidatorImpl implements IValidator {
 		}
 		
 		logger.info("Validating the bundle containing " + bundle.getEntry().size() + " entries");
-		
-		// create an output stream to return
-		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-		// init the html output
-		try {
-			outputStream.write("<html>\n\t<body>".getBytes("UTF-8"));
-		} catch (IOException e) {
-			logger.error("Could not write to the output stream.", e);
-		}
 
-		// traverse the entries of the bundle
+		List<IResource> resources = new ArrayList<IResource>(bundle.getEntry().size());
 		for(Bundle.Entry entry : bundle.getEntry()) {
-			if(entry != null && entry.getResource() != null) {	
-				try {
-					// validate the resource contained in the entry
-					ByteArrayOutputStream byteArrayOutputStream = (ByteArrayOutputStream) validateResource(entry.getResource());
-					
-					if(byteArrayOutputStream != null) {
-						byte[] byteArray = byteArrayOutputStream.toByteArray();
-						if(byteArray != null)
-							outputStream.write(byteArray);
-					}
-				} catch (IOException e) {
-					logger.error("Exception occurred while trying to write the validation outcome to the output stream. Ignoring", e);
-				}	
+			if(entry != null && entry.getResource() != null) {
+				resources.add(entry.getResource());
 			} else {
 				logger.warn("An entry of the bundle validator was running on was found null. Ignoring the entry.");
+				resources.add(null);
 			}
 		}
 
-		// last touch to the html output
-		try {
-			outputStream.write("\n\t</body>\n</html>".getBytes("UTF-8"));
-		} catch (IOException e) {
-			logger.error("Could not write to the output stream.", e);
-		}
-		
-		return outputStream;
+		if(entryExecutor != null && resources.size() > 1)
+			return validateConcurrently(resources, stopAtFirstError);
+		else
+			return validateSequentially(resources, stopAtFirstError);
 	}
-	
-	public OutputStream validateResource(IResource resource) {
+
+	public ValidationResult validate(IResource resource) {
 		if(resource == null) {
 			logger.warn("The resource to be validated is null. Returning null");
 			return null;
 		}
 		
 		if(resource instanceof Bundle) {
-			logger.error("Bundle is not a proper parameter for the method Validator.validateResource. Use Validator.validateBundle instead.");
+			logger.error("Bundle is not a proper parameter for the method Validator.validate(IResource). Use Validator.validate(Bundle, boolean) instead.");
 			return null;
 		}
-		
+
+		return validateSequentially(Collections.singletonList(resource), false);
+	}
+
+	/**
+	 * Validates the resources one after the other on the calling thread
+	 * @param resources FHIR IResource instances to be validated, in entry order; null for the entries to be skipped
+	 * @param stopAtFirstError true to leave the rest of the resources unvalidated once a resource has an error
+	 * @return The result of the validation
+	 */
+	private ValidationResult validateSequentially(List<IResource> resources, boolean stopAtFirstError) {
+		List<String> resourceIds = new ArrayList<String>(resources.size());
+		List<ValidationIssue> issues = new ArrayList<ValidationIssue>();
+		for(int i = 0; i < resources.size(); i++) {
+			IResource resource = resources.get(i);
+			if(resource == null) {
+				resourceIds.add(null);
+				continue;
+			}
+			List<ValidationIssue> entryIssues = validateWithPooledEngine(resource, i);
+			resourceIds.add(resource.getId().getValue());
+			issues.addAll(entryIssues);
+			if(stopAtFirstError && hasError(entryIssues))
+				return stoppedResult(resourceIds, issues, resources.size());
+		}
+		return new ValidationResult(resourceIds, issues, true);
+	}
+
+	/**
+	 * Validates the resources concurrently, as many at a time as there are engines in the pool
+	 * @param resources FHIR IResource instances to be validated, in entry order; null for the entries to be skipped
+	 * @param stopAtFirstError true to cancel the validation of the later resources once a resource has an error
+	 * @return The result of the validation, with the issues in entry order
+	 */
+	private ValidationResult validateConcurrently(List<IResource> resources, boolean stopAtFirstError) {
+		List<Future<List<ValidationIssue>>> futures = new ArrayList<Future<List<ValidationIssue>>>(resources.size());
+		for(int i = 0; i < resources.size(); i++) {
+			final IResource resource = resources.get(i);
+			final int entryIndex = i;
+			if(resource == null) {
+				futures.add(null);
+				continue;
+			}
+			futures.add(entryExecutor.submit(new Callable<List<ValidationIssue>>() {
+				public List<ValidationIssue> call() {
+					return validateWithPooledEngine(resource, entryIndex);
+				}
+			}));
+		}
+
+		List<String> resourceIds = new ArrayList<String>(resources.size());
+		List<ValidationIssue> issues = new ArrayList<ValidationIssue>();
+		for(int i = 0; i < futures.size(); i++) {
+			Future<List<ValidationIssue>> future = futures.get(i);
+			if(future == null) {
+				resourceIds.add(null);
+				continue;
+			}
+			List<ValidationIssue> entryIssues;
+			try {
+				entryIssues = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				cancel(futures);
+				logger.error("Interrupted while waiting for the entries to be validated. Returning the outcomes so far", e);
+				return stoppedResult(resourceIds, issues, resources.size());
+			} catch (ExecutionException e) {
+				logger.error("Exception occurred while validating an entry of the bundle. Ignoring", e.getCause());
+				entryIssues = exceptionIssues(resources.get(i), i, e.getCause());
+			}
+			resourceIds.add(resources.get(i).getId().getValue());
+			issues.addAll(entryIssues);
+			if(stopAtFirstError && hasError(entryIssues)) {
+				// the validations in progress are let to finish, so that their engines are released in a consistent state
+				cancel(futures);
+				return stoppedResult(resourceIds, issues, resources.size());
+			}
+		}
+		return new ValidationResult(resourceIds, issues, true);
+	}
+
+	private void cancel(List<Future<List<ValidationIssue>>> futures) {
+		for(Future<List<ValidationIssue>> future : futures) {
+			if(future != null)
+				future.cancel(false);
+		}
+	}
+
+	/**
+	 * @param resourceIds Ids of the resources validated so far
+	 * @param issues Issues found so far
+	 * @param entryCount Number of entries in the bundle
+	 * @return The result covering all the entries, where the ones after the validated entries are left unvalidated
+	 */
+	private ValidationResult stoppedResult(List<String> resourceIds, List<ValidationIssue> issues, int entryCount) {
+		boolean complete = resourceIds.size() == entryCount;
+		while(resourceIds.size() < entryCount) {
+			resourceIds.add(null);
+		}
+		return new ValidationResult(resourceIds, issues, complete);
+	}
+
+	private static boolean hasError(List<ValidationIssue> issues) {
+		for(ValidationIssue issue : issues) {
+			if(issue.isError())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Validates the resource on an engine taken from the pool, unless the outcome of an equal resource is cached
+	 * @param resource A FHIR IResource instance
+	 * @param entryIndex Position of the resource in the bundle entries
+	 * @return The issues found in the resource
+	 */
+	private List<ValidationIssue> validateWithPooledEngine(IResource resource, int entryIndex) {
+		ValidationCache cache = validationCache;
+		if(cache != null)
+			return cache.get(resource, entryIndex, uncached -> validateOnEngine(uncached, entryIndex));
+		return validateOnEngine(resource, entryIndex);
+	}
+
+	/**
+	 * Validates the resource on an engine taken from the pool, waiting for one if all of them are in use
+	 * @param resource A FHIR IResource instance
+	 * @param entryIndex Position of the resource in the bundle entries
+	 * @return The issues found in the resource
+	 */
+	private List<ValidationIssue> validateOnEngine(IResource resource, int entryIndex) {
+		ValidationEngine engine;
+		try {
+			engine = enginePool.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.error("Interrupted while waiting for a validation engine", e);
+			return exceptionIssues(resource, entryIndex, e);
+		}
+		try {
+			return validate(engine, resource, entryIndex);
+		} finally {
+			enginePool.release(engine);
+		}
+	}
+
+	/**
+	 * Validates a FHIR IResource instance on the given engine
+	 * @param engine A validation engine used by the calling thread only
+	 * @param resource A FHIR IResource instance
+	 * @param entryIndex Position of the resource in the bundle entries
+	 * @return The issues found in the resource
+	 */
+	private List<ValidationIssue> validate(ValidationEngine engine, IResource resource, int entryIndex) {
 		logger.info("Validating resource " + resource.getId());
-		
+
 		// set resource
-		this.validationEngine.setSource(this.tIResource2ByteArray(resource));
-		
+		byte[] source = tIResource2ByteArray(resource);
+		if(source == null)
+			return exceptionIssues(resource, entryIndex, new IOException("Resource could not be encoded in XML"));
+		engine.setSource(source);
+
 		// validate!
 		try {
-			this.validationEngine.process();
+			engine.process();
 		} catch (FHIRException | ParserConfigurationException | TransformerException | SAXException | IOException | EFhirClientException e) {
 			logger.error("Exception occurred while trying to validate the FHIR resource. Returning exception message", e);
-			String exceptionAsHtml = "<h3>" + resource.getId() + "</h3>" + "Exception occurred while validating this resource:<br>"
-					+ e.getMessage()+"<hr>";
-			try {
-				ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-				outputStream.write(exceptionAsHtml.getBytes("UTF-8"));
-				return outputStream;
-			} catch (IOException e1) {
-				logger.error("Exception occurred while trying to write the exception outcome to the output stream. Ignoring ");
-			}
+			return exceptionIssues(resource, entryIndex, e);
 		}
-		
-		// direct outcome string to an output stream
-		ByteArrayOutputStream outputStream = new java.io.ByteArrayOutputStream();
-		
-		// notice that html tag is not included in the outcome string
-		try {
-			String outcomeText = this.validationEngine.getOutcome().getText().getDivAsString();
-			outcomeText = "<h3>" + resource.getId() + "</h3>" + outcomeText + "<hr>";
-			outputStream.write(outcomeText.getBytes("UTF-8"));
-		} catch (IOException e) {
-			logger.error("Exception occurred while trying to write the validation outcome to the output stream. Returning null", e);
-			return null;
+
+		List<ValidationIssue> issues = tOutcome2Issues(engine.getOutcome(), resource, entryIndex);
+		checkLocalCodes(resource, entryIndex, issues);
+		return issues;
+	}
+
+	/**
+	 * Checks the codings of the resource whose code system is known to the terminology service, adding an issue for each unknown code
+	 * @param resource The validated FHIR IResource instance
+	 * @param entryIndex Position of the resource in the bundle entries
+	 * @param issues The issues of the resource, to which the issues found are added
+	 */
+	private void checkLocalCodes(IResource resource, int entryIndex, List<ValidationIssue> issues) {
+		for(CodingDt coding : Config.getFhirContext().newTerser().getAllPopulatedChildElementsOfType(resource, CodingDt.class)) {
+			String system = coding.getSystem();
+			if(terminologyService.isKnownCodeSystem(system) && !terminologyService.isValidCode(system, coding.getCode())) {
+				issues.add(new ValidationIssue(entryIndex, resource.getId().getValue(), IssueSeverityEnum.ERROR, IssueTypeEnum.INVALID_CODE,
+						null, "Code " + coding.getCode() + " is not defined in the code system " + system));
+			}
 		}
-		
-		return outputStream;
 	}
-	
+
 	/**
-	 * Sends an HTTP GET request to a server to check if the server is available
-	 * @param serverURLString A string that contains the URL of the server
-	 * @return A boolean indicating if the server is available
+	 * Transforms the outcome of the validation engine to validation issues
+	 * @param outcome The OperationOutcome produced by the validation engine
+	 * @param resource The validated FHIR IResource instance
+	 * @param entryIndex Position of the resource in the bundle entries
+	 * @return The issues contained in the outcome
 	 */
-	private boolean checkServer(String serverURLString) {
-		try {
-			URL url = new URL(serverURLString);
-			HttpURLConnection con = (HttpURLConnection) url.openConnection();
-			con.setRequestMethod("GET");
-			con.setConnectTimeout(Config.DEFAULT_VALIDATOR_TERMINOLOGY_SERVER_CHECK_TIMEOUT);
-			con.connect();
-			if (con.getResponseCode() < 300)
-				return true;
-			else
-				return false;
-		} catch(Exception e) {
-			logger.error("Exception occurred while trying to reach the server at {}", serverURLString, e);
-			return false;
+	private List<ValidationIssue> tOutcome2Issues(OperationOutcome outcome, IResource resource, int entryIndex) {
+		String resourceId = resource.getId().getValue();
+		List<ValidationIssue> issues = new ArrayList<ValidationIssue>();
+		if(outcome == null || outcome.getIssue() == null)
+			return issues;
+		for(OperationOutcome.OperationOutcomeIssueComponent issue : outcome.getIssue()) {
+			IssueSeverityEnum severity = issue.getSeverity() != null ? IssueSeverityEnum.forCode(issue.getSeverity().toCode()) : null;
+			IssueTypeEnum code = issue.getCode() != null ? IssueTypeEnum.forCode(issue.getCode().toCode()) : null;
+			String location = null;
+			if(issue.getLocation() != null && !issue.getLocation().isEmpty())
+				location = issue.getLocation().get(0).getValue();
+			String message = issue.getDiagnostics();
+			if(message == null && issue.getDetails() != null)
+				message = issue.getDetails().getText();
+			issues.add(new ValidationIssue(entryIndex, resourceId, severity, code, location, message));
 		}
+		return issues;
+	}
+
+	/**
+	 * @param resource The FHIR IResource instance whose validation failed
+	 * @param entryIndex Position of the resource in the bundle entries
+	 * @param e The cause of the failure
+	 * @return The failure as a single fatal issue
+	 */
+	private List<ValidationIssue> exceptionIssues(IResource resource, int entryIndex, Throwable e) {
+		return Collections.singletonList(new ValidationIssue(entryIndex, resource.getId().getValue(), IssueSeverityEnum.FATAL, IssueTypeEnum.EXCEPTION,
+				null, "Exception occurred while validating this resource: " + e.getMessage()));
 	}
 	
 	/**
@@ -227,12 +469,15 @@ public class ValidatorImpl implements IValidator {
 	 * @return A byte array
 	 */
 	private byte[] tIResource2ByteArray(IResource paramResource) {
+		// encoded directly into the array, without an intermediate string
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 		try {
-			return FHIRUtil.encodeToXML(paramResource).getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e) {
+			FHIRUtil.writeXML(paramResource, outputStream, true);
+		} catch (IOException e) {
 			logger.error("Could not encode resource {} in UTF-8 encoding", paramResource.getId(), e);
+			return null;
 		}
-		return null;
+		return outputStream.toByteArray();
 	}
 	
 }
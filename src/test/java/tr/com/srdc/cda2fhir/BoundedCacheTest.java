@@ -0,0 +1,58 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+import tr.com.srdc.cda2fhir.util.BoundedCache;
+
+import java.util.concurrent.TimeUnit;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        BoundedCache<String, String> cache = new BoundedCache<String, String>(3);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        // touch "a", so that "b" becomes the least recently used entry
+        Assert.assertEquals("1", cache.get("a"));
+        cache.put("d", "4");
+
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals("1", cache.get("a"));
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpiredEntryIsReloaded() throws Exception {
+        BoundedCache<String, String> cache = new BoundedCache<String, String>(100, 20, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("1", cache.get("a", key -> "1"));
+        Assert.assertEquals("1", cache.putIfAbsent("a", "2"));
+        Thread.sleep(50);
+        Assert.assertNull(cache.get("a"));
+        Assert.assertEquals("3", cache.get("a", key -> "3"));
+    }
+}
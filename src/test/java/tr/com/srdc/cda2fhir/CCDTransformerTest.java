@@ -20,18 +20,62 @@ package tr.com.srdc.cda2fhir;
  * #L%
  */
 
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Composition;
+import ca.uhn.fhir.model.dstu2.resource.Location;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
+import ca.uhn.fhir.model.dstu2.resource.Practitioner;
+import ca.uhn.fhir.model.dstu2.resource.Substance;
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.openhealthtools.mdht.uml.cda.AssignedAuthor;
+import org.openhealthtools.mdht.uml.cda.Author;
+import org.openhealthtools.mdht.uml.cda.CDAFactory;
 import org.openhealthtools.mdht.uml.cda.ClinicalDocument;
 import org.openhealthtools.mdht.uml.cda.util.CDAUtil;
+import org.openhealthtools.mdht.uml.hl7.datatypes.DatatypesFactory;
 import tr.com.srdc.cda2fhir.conf.Config;
+import tr.com.srdc.cda2fhir.transform.BatchProgress;
+import tr.com.srdc.cda2fhir.transform.BatchTransformerImpl;
 import tr.com.srdc.cda2fhir.transform.CCDTransformerImpl;
+import tr.com.srdc.cda2fhir.transform.CodeableConceptCache;
+import tr.com.srdc.cda2fhir.transform.DeferredXhtmlDt;
+import tr.com.srdc.cda2fhir.transform.IBatchTransformer;
+import tr.com.srdc.cda2fhir.transform.IBundleSink;
 import tr.com.srdc.cda2fhir.transform.ICDATransformer;
+import tr.com.srdc.cda2fhir.transform.SharedEntityCache;
+import tr.com.srdc.cda2fhir.util.EntityFingerprint;
 import tr.com.srdc.cda2fhir.util.FHIRUtil;
 import tr.com.srdc.cda2fhir.util.IdGeneratorEnum;
+import tr.com.srdc.cda2fhir.util.NarrativeModeEnum;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 public class CCDTransformerTest {
 
@@ -126,4 +170,580 @@ public class CCDTransformerTest {
             FHIRUtil.printJSON(bundle, "src/test/resources/output/Vitera_CCDA_SMART_Sample.json");
     }
 
+    // C-CDA_R2-1_CCD.xml - sections transformed in parallel should give the same bundle as the sequential transformation
+    @Test
+    public void testReferenceCCDInstanceParallelSections() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        Bundle sequentialBundle = new CCDTransformerImpl(IdGeneratorEnum.COUNTER).transformDocument(cda);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER);
+            ccdTransformer.setSectionExecutor(executor);
+            Bundle parallelBundle = ccdTransformer.transformDocument(cda);
+            assertSameStructure(sequentialBundle, parallelBundle);
+            Assert.assertEquals(FHIRUtil.encodeToJSON(sequentialBundle), FHIRUtil.encodeToJSON(parallelBundle));
+            FHIRUtil.printJSON(parallelBundle, "src/test/resources/output/C-CDA_R2-1_CCD-parallel.json");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // C-CDA_R2-1_CCD.xml - sections and their entries forked on the same pool should give the same structure as the sequential transformation
+    @Test
+    public void testReferenceCCDInstanceForkedEntries() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        Bundle sequentialBundle = new CCDTransformerImpl(IdGeneratorEnum.COUNTER).transformDocument(cda);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER);
+            ccdTransformer.setSectionExecutor(pool);
+            ccdTransformer.setEntryForkJoinPool(pool);
+            // fork every section with more than one entry
+            ccdTransformer.setEntryParallelismThreshold(2);
+            Bundle forkedBundle = ccdTransformer.transformDocument(cda);
+            assertSameStructure(sequentialBundle, forkedBundle);
+            Assert.assertEquals(FHIRUtil.encodeToJSON(sequentialBundle), FHIRUtil.encodeToJSON(forkedBundle));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // sample documents - the ids and the deduplicated entities of the concurrent transformations are the ones of the sequential transformation,
+    // as the sections and entries are settled in document order whichever finishes first
+    @Test
+    public void testParallelTransformationsEncodeAsSequential() throws Exception {
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+        String[] cdaPaths = {"src/test/resources/C-CDA_R2-1_CCD.xml", "src/test/resources/170.315_b1_toc_gold_sample2_v1.xml",
+                "src/test/resources/170.315_b1_toc_inp_ccd_r21_sample1_v5.xml", "src/test/resources/Vitera_CCDA_SMART_Sample.xml"};
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for(String cdaPath : cdaPaths) {
+                ClinicalDocument cda = CDAUtil.load(new FileInputStream(cdaPath));
+                for(boolean deduplicateEntities : new boolean[] {true, false}) {
+                    CCDTransformerImpl sequentialTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER);
+                    sequentialTransformer.setDeduplicateEntities(deduplicateEntities);
+                    String sequentialJSON = FHIRUtil.encodeToJSON(sequentialTransformer.transformDocument(cda));
+
+                    CCDTransformerImpl sectionTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER);
+                    sectionTransformer.setDeduplicateEntities(deduplicateEntities);
+                    sectionTransformer.setSectionExecutor(executor);
+                    CCDTransformerImpl entryTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER);
+                    entryTransformer.setDeduplicateEntities(deduplicateEntities);
+                    entryTransformer.setEntryForkJoinPool(pool);
+                    entryTransformer.setEntryParallelismThreshold(2);
+                    CCDTransformerImpl forkedTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER);
+                    forkedTransformer.setDeduplicateEntities(deduplicateEntities);
+                    forkedTransformer.setSectionExecutor(pool);
+                    forkedTransformer.setEntryForkJoinPool(pool);
+                    forkedTransformer.setEntryParallelismThreshold(2);
+
+                    // repeat, so that the sections and entries complete in different orders
+                    for(int i = 0; i < 4; i++) {
+                        Assert.assertEquals(cdaPath, sequentialJSON, FHIRUtil.encodeToJSON(sectionTransformer.transformDocument(cda)));
+                        Assert.assertEquals(cdaPath, sequentialJSON, FHIRUtil.encodeToJSON(entryTransformer.transformDocument(cda)));
+                        Assert.assertEquals(cdaPath, sequentialJSON, FHIRUtil.encodeToJSON(forkedTransformer.transformDocument(cda)));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            pool.shutdown();
+        }
+    }
+
+    // C-CDA_R2-1_CCD.xml - a single transformer instance shared by concurrent transformations
+    @Test
+    public void testSharedTransformerConcurrentDocuments() throws Exception {
+        final ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        final CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER);
+        Bundle sequentialBundle = ccdTransformer.transformDocument(cda);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Bundle>> futures = new ArrayList<Future<Bundle>>();
+            for(int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<Bundle>() {
+                    public Bundle call() {
+                        return ccdTransformer.transformDocument(cda);
+                    }
+                }));
+            }
+            for(Future<Bundle> future : futures) {
+                Bundle bundle = future.get();
+                assertSameStructure(sequentialBundle, bundle);
+                // each transformation has its own id counter and patient reference
+                Assert.assertEquals(sequentialBundle.getEntry().get(1).getResource().getId().getIdPart(), bundle.getEntry().get(1).getResource().getId().getIdPart());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // C-CDA_R2-1_CCD.xml - content hash ids are the same when the document is transformed again
+    @Test
+    public void testReferenceCCDInstanceContentHashIds() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        ICDATransformer ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.CONTENT_HASH);
+        Bundle first = ccdTransformer.transformDocument(cda);
+        Bundle second = ccdTransformer.transformDocument(cda);
+        Assert.assertEquals(FHIRUtil.encodeToJSON(first), FHIRUtil.encodeToJSON(second));
+    }
+
+    // C-CDA_R2-1_CCD.xml - content hash ids do not depend on the order the sections and entries are transformed in
+    @Test
+    public void testReferenceCCDInstanceContentHashIdsInParallel() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        String sequentialJSON = FHIRUtil.encodeToJSON(new CCDTransformerImpl(IdGeneratorEnum.CONTENT_HASH).transformDocument(cda));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.CONTENT_HASH);
+            ccdTransformer.setSectionExecutor(pool);
+            ccdTransformer.setEntryForkJoinPool(pool);
+            ccdTransformer.setEntryParallelismThreshold(2);
+            for(int i = 0; i < 4; i++) {
+                Assert.assertEquals(sequentialJSON, FHIRUtil.encodeToJSON(ccdTransformer.transformDocument(cda)));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // C-CDA_R2-1_CCD.xml - repeating authors and organizations result in a single entry each
+    @Test
+    public void testReferenceCCDInstanceDeduplicatedEntities() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER);
+        ccdTransformer.setDeduplicateEntities(false);
+        Bundle fullBundle = ccdTransformer.transformDocument(cda);
+        ccdTransformer.setDeduplicateEntities(true);
+        Bundle dedupBundle = ccdTransformer.transformDocument(cda);
+
+        Assert.assertTrue(dedupBundle.getEntry().size() <= fullBundle.getEntry().size());
+        Set<String> ids = new HashSet<String>();
+        for(Bundle.Entry entry : dedupBundle.getEntry()) {
+            Assert.assertTrue(ids.add(entry.getResource().getId().getValue()));
+        }
+        // the references of the composition and its sections are still resolved within the bundle
+        Composition composition = (Composition) dedupBundle.getEntry().get(0).getResource();
+        for(Composition.Section section : composition.getSection()) {
+            for(ResourceReferenceDt ref : section.getEntry()) {
+                Assert.assertTrue(ids.contains(ref.getReference().getValue()));
+            }
+        }
+    }
+
+    // C-CDA_R2-1_CCD.xml - the authors with an empty name and no ids cannot be told apart, hence are not merged
+    @Test
+    public void testReferenceCCDInstanceEmptyNamedAuthorsNotDeduplicated() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+        cda.getAuthors().clear();
+        for(String phone : Arrays.asList("tel:+1(555)555-1001", "tel:+1(555)555-1002")) {
+            AssignedAuthor assignedAuthor = CDAFactory.eINSTANCE.createAssignedAuthor();
+            assignedAuthor.setAssignedPerson(CDAFactory.eINSTANCE.createPerson());
+            assignedAuthor.getAssignedPerson().getNames().add(DatatypesFactory.eINSTANCE.createPN());
+            assignedAuthor.getTelecoms().add(DatatypesFactory.eINSTANCE.createTEL(phone));
+            Author author = CDAFactory.eINSTANCE.createAuthor();
+            author.setAssignedAuthor(assignedAuthor);
+            cda.getAuthors().add(author);
+        }
+        Assert.assertNull(EntityFingerprint.of("Practitioner", null, cda.getAuthors().get(0).getAssignedAuthor().getAssignedPerson().getNames(), null));
+
+        CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER);
+        ccdTransformer.setDeduplicateEntities(true);
+        Composition composition = (Composition) ccdTransformer.transformDocument(cda).getEntry().get(0).getResource();
+        Assert.assertEquals(2, composition.getAuthor().size());
+        Assert.assertNotEquals(composition.getAuthor().get(0).getReference().getValue(), composition.getAuthor().get(1).getReference().getValue());
+    }
+
+    // C-CDA_R2-1_CCD.xml - the shared entities get the same ids in every document and are emitted once if known entities are skipped
+    @Test
+    public void testReferenceCCDInstanceSharedEntityCache() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        SharedEntityCache sharedEntityCache = new SharedEntityCache();
+        CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.UUID);
+        ccdTransformer.setSharedEntityCache(sharedEntityCache);
+        Bundle first = ccdTransformer.transformDocument(cda);
+        Bundle second = ccdTransformer.transformDocument(cda);
+
+        Composition firstComposition = (Composition) first.getEntry().get(0).getResource();
+        Composition secondComposition = (Composition) second.getEntry().get(0).getResource();
+        Assert.assertEquals(firstComposition.getCustodian().getReference().getValue(), secondComposition.getCustodian().getReference().getValue());
+        Assert.assertEquals(firstComposition.getAuthor().get(0).getReference().getValue(), secondComposition.getAuthor().get(0).getReference().getValue());
+        Assert.assertTrue(sharedEntityCache.getCache().getHitCount() > 0);
+
+        sharedEntityCache.setSkipKnownEntities(true);
+        Bundle third = ccdTransformer.transformDocument(cda);
+        Assert.assertTrue(third.getEntry().size() < second.getEntry().size());
+        for(Bundle.Entry entry : third.getEntry()) {
+            Assert.assertNotEquals(firstComposition.getCustodian().getReference().getValue(), entry.getResource().getId().getValue());
+        }
+    }
+
+    // Different documents with per-document COUNTER ids - a shared entity id names the same entity in every document, and no new entity is skipped
+    @Test
+    public void testSharedEntityCacheAcrossDocumentsWithCounterIds() throws Exception {
+        List<ClinicalDocument> cdas = new ArrayList<ClinicalDocument>();
+        for(String file : Arrays.asList("170.315_b1_toc_gold_sample2_v1.xml", "170.315_b1_toc_inp_ccd_r21_sample1_v5.xml", "C-CDA_R2-1_CCD.xml"))
+            cdas.add(CDAUtil.load(new FileInputStream("src/test/resources/" + file)));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER);
+        ccdTransformer.setSharedEntityCache(new SharedEntityCache());
+        Map<String, String> entities = new HashMap<String, String>();
+        for(ClinicalDocument cda : cdas) {
+            Map<String, String> documentEntities = new HashMap<String, String>();
+            for(Bundle.Entry entry : ccdTransformer.transformDocument(cda).getEntry()) {
+                IResource resource = entry.getResource();
+                String identity = getEntityIdentity(resource);
+                if(identity != null)
+                    documentEntities.put(resource.getId().getValue(), identity);
+            }
+            for(Map.Entry<String, String> entity : documentEntities.entrySet()) {
+                String known = entities.putIfAbsent(entity.getKey(), entity.getValue());
+                Assert.assertTrue(entity.getKey(), known == null || known.equals(entity.getValue()));
+            }
+        }
+
+        SharedEntityCache skippingCache = new SharedEntityCache();
+        skippingCache.setSkipKnownEntities(true);
+        ccdTransformer.setSharedEntityCache(skippingCache);
+        Set<String> emitted = new HashSet<String>();
+        for(ClinicalDocument cda : cdas) {
+            for(Bundle.Entry entry : ccdTransformer.transformDocument(cda).getEntry()) {
+                IResource resource = entry.getResource();
+                if(getEntityIdentity(resource) != null)
+                    Assert.assertTrue(resource.getId().getValue(), emitted.add(resource.getId().getValue()));
+            }
+        }
+        Assert.assertEquals(entities.keySet(), emitted);
+    }
+
+    /**
+     * @return The identifiers and names (or the code) of a shared entity, which are the same in all the documents the entity occurs in;
+     * null if the resource is not a shared entity. The other details, e.g. the addresses, may differ from document to document.
+     */
+    private static String getEntityIdentity(IResource resource) {
+        if(resource instanceof Organization) {
+            Organization organization = (Organization) resource;
+            return FHIRUtil.encodeToJSON(new Organization().setIdentifier(organization.getIdentifier()).setName(organization.getName()));
+        } else if(resource instanceof Practitioner) {
+            Practitioner practitioner = (Practitioner) resource;
+            return FHIRUtil.encodeToJSON(new Practitioner().setIdentifier(practitioner.getIdentifier()).setName(practitioner.getName()));
+        } else if(resource instanceof Location) {
+            Location location = (Location) resource;
+            return FHIRUtil.encodeToJSON(new Location().setIdentifier(location.getIdentifier()).setName(location.getName()));
+        } else if(resource instanceof Substance) {
+            return FHIRUtil.encodeToJSON(new Substance().setCode(((Substance) resource).getCode()));
+        }
+        return null;
+    }
+
+    // C-CDA_R2-1_CCD.xml - the repeating codes are transformed once, yielding the same bundle
+    @Test
+    public void testReferenceCCDInstanceCodeableConceptCache() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(false);
+
+        CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.CONTENT_HASH);
+        Bundle uncached = ccdTransformer.transformDocument(cda);
+        CodeableConceptCache cache = new CodeableConceptCache();
+        ccdTransformer.setCodeableConceptCache(cache);
+        Bundle cached = ccdTransformer.transformDocument(cda);
+        Config.setGenerateNarrative(true);
+
+        Assert.assertTrue(cache.getHitCount() > 0);
+        Assert.assertEquals(uncached.getEntry().size(), cached.getEntry().size());
+        Set<String> uncachedResources = new HashSet<String>();
+        for(Bundle.Entry entry : uncached.getEntry())
+            uncachedResources.add(FHIRUtil.encodeToJSON(entry.getResource()));
+        for(Bundle.Entry entry : cached.getEntry())
+            Assert.assertTrue(uncachedResources.contains(FHIRUtil.encodeToJSON(entry.getResource())));
+    }
+
+    // C-CDA_R2-1_CCD.xml - the deferred section narratives are transformed when encoded, the same as the eager ones; or they are left out
+    @Test
+    public void testReferenceCCDInstanceSectionNarrativeModes() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.CONTENT_HASH);
+        Composition eager = (Composition) ccdTransformer.transformDocument(cda).getEntry().get(0).getResource();
+
+        ccdTransformer.setSectionNarrativeMode(NarrativeModeEnum.DEFERRED);
+        Composition deferred = (Composition) ccdTransformer.transformDocument(cda).getEntry().get(0).getResource();
+        Assert.assertFalse(((DeferredXhtmlDt) deferred.getSection().get(0).getText().getDiv()).isMaterialized());
+        Assert.assertEquals(FHIRUtil.encodeToJSON(eager), FHIRUtil.encodeToJSON(deferred));
+        Assert.assertTrue(((DeferredXhtmlDt) deferred.getSection().get(0).getText().getDiv()).isMaterialized());
+
+        ccdTransformer.setSectionNarrativeMode(NarrativeModeEnum.NONE);
+        Composition none = (Composition) ccdTransformer.transformDocument(cda).getEntry().get(0).getResource();
+        Assert.assertEquals(eager.getSection().size(), none.getSection().size());
+        for(Composition.Section section : none.getSection())
+            Assert.assertTrue(section.getText().isEmpty());
+    }
+
+    // All samples and a missing file transformed as a batch, handed to the sink in input order
+    @Test
+    public void testReferenceCCDInstanceGeneratedResourceNarratives() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.CONTENT_HASH);
+        String encoded = FHIRUtil.encodeToJSON(ccdTransformer.transformDocument(cda));
+        Assert.assertNotEquals(encoded, FHIRUtil.encodeToJSON(ccdTransformer.transformDocument(cda), false));
+
+        // the narratives generated within the transformation are kept by an encoder generating none
+        ccdTransformer.setGenerateResourceNarratives(true);
+        Bundle sequentialBundle = ccdTransformer.transformDocument(cda);
+        Assert.assertEquals(encoded, FHIRUtil.encodeToJSON(sequentialBundle, false));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ccdTransformer.setEntryForkJoinPool(pool);
+            ccdTransformer.setEntryParallelismThreshold(1);
+            Bundle parallelBundle = ccdTransformer.transformDocument(cda);
+            assertSameStructure(sequentialBundle, parallelBundle);
+            Assert.assertEquals(FHIRUtil.encodeToJSON(sequentialBundle), FHIRUtil.encodeToJSON(parallelBundle));
+            for(int i = 0; i < sequentialBundle.getEntry().size(); i++) {
+                Assert.assertEquals(sequentialBundle.getEntry().get(i).getResource().getText().getDivAsString(),
+                        parallelBundle.getEntry().get(i).getResource().getText().getDivAsString());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // C-CDA_R2-1_CCD.xml - compact encoding, directly into a stream and a channel
+    @Test
+    public void testReferenceCCDInstanceCompactEncoding() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(false);
+        Bundle bundle = new CCDTransformerImpl(IdGeneratorEnum.COUNTER).transformDocument(cda);
+
+        String compact = FHIRUtil.encodeToCompactJSON(bundle);
+        Assert.assertFalse(compact.contains("\n"));
+        Assert.assertTrue(compact.length() < FHIRUtil.encodeToJSON(bundle).length());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FHIRUtil.writeJSON(bundle, out, false);
+        Assert.assertEquals(compact, new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        Path file = Paths.get("src/test/resources/output/C-CDA_R2-1_CCD-compact.xml");
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            FHIRUtil.writeXML(bundle, channel, false);
+        }
+        Assert.assertEquals(FHIRUtil.encodeToCompactXML(bundle), new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testBatchInInputOrder() throws Exception {
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+
+        Stream<Path> paths = Stream.of(
+                Paths.get("src/test/resources/170.315_b1_toc_gold_sample2_v1.xml"),
+                Paths.get("src/test/resources/170.315_b1_toc_inp_ccd_r21_sample1_v5.xml"),
+                Paths.get("src/test/resources/missing.xml"),
+                Paths.get("src/test/resources/C-CDA_R2-1_CCD.xml"),
+                Paths.get("src/test/resources/Vitera_CCDA_SMART_Sample.xml"));
+
+        final List<Long> indices = new ArrayList<Long>();
+        final List<Long> failures = new ArrayList<Long>();
+        BatchTransformerImpl batchTransformer = new BatchTransformerImpl(new CCDTransformerImpl(IdGeneratorEnum.COUNTER), 2);
+        batchTransformer.setOutputOrder(IBatchTransformer.OutputOrder.INPUT);
+        BatchProgress progress = batchTransformer.transformAll(paths, new IBundleSink() {
+            public void accept(long index, Bundle bundle) {
+                indices.add(index);
+            }
+            public void onError(long index, Exception error) {
+                indices.add(index);
+                failures.add(index);
+            }
+        });
+
+        Assert.assertEquals(5, progress.getSubmitted());
+        Assert.assertEquals(4, progress.getSucceeded());
+        Assert.assertEquals(1, progress.getFailed());
+        Assert.assertEquals(0, progress.getInFlight());
+        Assert.assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), indices);
+        Assert.assertEquals(Arrays.asList(2L), failures);
+    }
+
+    // An Error thrown while transforming a document fails that document only; the documents after it are still handed over in the input order
+    @Test(timeout = 120000)
+    public void testBatchWithTransformerError() throws Exception {
+        Config.setGenerateDafProfileMetadata(true);
+        Config.setGenerateNarrative(true);
+        final ClinicalDocument failing = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER) {
+            @Override
+            public Bundle transformDocument(ClinicalDocument document) {
+                if(document == failing)
+                    throw new StackOverflowError();
+                return super.transformDocument(document);
+            }
+        };
+
+        final List<Long> indices = new ArrayList<Long>();
+        final List<Exception> failures = new ArrayList<Exception>();
+        BatchTransformerImpl batchTransformer = new BatchTransformerImpl(ccdTransformer, 2);
+        batchTransformer.setOutputOrder(IBatchTransformer.OutputOrder.INPUT);
+        BatchProgress progress = batchTransformer.transformAll(Arrays.asList(cda, failing, cda, failing, cda), new IBundleSink() {
+            public void accept(long index, Bundle bundle) {
+                indices.add(index);
+            }
+            public void onError(long index, Exception error) {
+                indices.add(index);
+                failures.add(error);
+            }
+        });
+
+        Assert.assertEquals(3, progress.getSucceeded());
+        Assert.assertEquals(2, progress.getFailed());
+        Assert.assertEquals(0, progress.getInFlight());
+        Assert.assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), indices);
+        Assert.assertTrue(failures.get(0).getCause() instanceof StackOverflowError);
+    }
+
+    // Any other Error stops the batch and is rethrown once the documents in flight are handed over
+    @Test(timeout = 120000)
+    public void testBatchRethrowsFatalError() throws Exception {
+        final ClinicalDocument failing = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        final OutOfMemoryError error = new OutOfMemoryError();
+        CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER) {
+            @Override
+            public Bundle transformDocument(ClinicalDocument document) {
+                if(document == failing)
+                    throw error;
+                return super.transformDocument(document);
+            }
+        };
+
+        final List<Exception> failures = new ArrayList<Exception>();
+        BatchTransformerImpl batchTransformer = new BatchTransformerImpl(ccdTransformer, 1);
+        try {
+            batchTransformer.transformAll(Arrays.asList(cda, failing, cda, cda, cda, cda, cda, cda), new IBundleSink() {
+                public void accept(long index, Bundle bundle) {
+                }
+                public void onError(long index, Exception e) {
+                    failures.add(e);
+                }
+            });
+            Assert.fail("The error should be rethrown");
+        } catch (OutOfMemoryError e) {
+            Assert.assertSame(error, e);
+        }
+
+        BatchProgress progress = batchTransformer.getProgress();
+        Assert.assertEquals(0, progress.getInFlight());
+        Assert.assertTrue(progress.getSubmitted() < 8);
+        Assert.assertSame(error, failures.get(0).getCause());
+    }
+
+    // An interrupted batch cancels the documents in flight on a given executor, without shutting it down, and hands nothing to the sink after returning
+    @Test(timeout = 120000)
+    public void testBatchInterrupted() throws Exception {
+        final ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        final CountDownLatch started = new CountDownLatch(2);
+        final AtomicInteger interrupted = new AtomicInteger();
+        final CCDTransformerImpl ccdTransformer = new CCDTransformerImpl(IdGeneratorEnum.COUNTER) {
+            @Override
+            public Bundle transformDocument(ClinicalDocument document) {
+                started.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+                return super.transformDocument(document);
+            }
+        };
+
+        final AtomicInteger handedOver = new AtomicInteger();
+        final IBundleSink sink = new IBundleSink() {
+            public void accept(long index, Bundle bundle) {
+                handedOver.incrementAndGet();
+            }
+            public void onError(long index, Exception e) {
+                handedOver.incrementAndGet();
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        final BatchTransformerImpl batchTransformer = new BatchTransformerImpl(ccdTransformer, executor, 4);
+        final List<Boolean> interruptStatus = new ArrayList<Boolean>();
+        Thread batch = new Thread(new Runnable() {
+            public void run() {
+                batchTransformer.transformAll(Arrays.asList(cda, cda, cda, cda, cda, cda), sink);
+                interruptStatus.add(Thread.currentThread().isInterrupted());
+            }
+        });
+        batch.start();
+        started.await();
+        batch.interrupt();
+        batch.join();
+
+        Assert.assertEquals(Arrays.asList(true), interruptStatus);
+        Assert.assertFalse(executor.isShutdown());
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        Assert.assertEquals(2, interrupted.get());
+        Assert.assertEquals(0, handedOver.get());
+        Assert.assertTrue(batchTransformer.getProgress().getSubmitted() < 6);
+    }
+
+    /**
+     * Asserts that two bundles contain the same resource types in the same order and that their Compositions have the same sections with the same number of entries
+     */
+    private static void assertSameStructure(Bundle expected, Bundle actual) {
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.getEntry().size(), actual.getEntry().size());
+        for(int i = 0; i < expected.getEntry().size(); i++) {
+            Assert.assertEquals(expected.getEntry().get(i).getResource().getResourceName(), actual.getEntry().get(i).getResource().getResourceName());
+        }
+        Composition expectedComposition = (Composition) expected.getEntry().get(0).getResource();
+        Composition actualComposition = (Composition) actual.getEntry().get(0).getResource();
+        Assert.assertEquals(expectedComposition.getSection().size(), actualComposition.getSection().size());
+        for(int i = 0; i < expectedComposition.getSection().size(); i++) {
+            Assert.assertEquals(expectedComposition.getSection().get(i).getTitle(), actualComposition.getSection().get(i).getTitle());
+            Assert.assertEquals(expectedComposition.getSection().get(i).getEntry().size(), actualComposition.getSection().get(i).getEntry().size());
+        }
+    }
+
 }
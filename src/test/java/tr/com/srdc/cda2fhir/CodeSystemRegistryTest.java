@@ -0,0 +1,114 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openhealthtools.mdht.uml.hl7.datatypes.CD;
+import org.openhealthtools.mdht.uml.hl7.datatypes.DatatypesFactory;
+import tr.com.srdc.cda2fhir.transform.CodeableConceptCache;
+import tr.com.srdc.cda2fhir.transform.DataTypesTransformerImpl;
+import tr.com.srdc.cda2fhir.transform.IValueSetsTransformer;
+import tr.com.srdc.cda2fhir.transform.ValueSetsTransformerImpl;
+import tr.com.srdc.cda2fhir.util.CodeSystemRegistry;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CodeSystemRegistryTest {
+
+    @Test
+    public void testBundledMappings() {
+        IValueSetsTransformer vst = new ValueSetsTransformerImpl();
+        Assert.assertEquals("http://loinc.org", vst.tOid2Url("2.16.840.1.113883.6.1"));
+        Assert.assertEquals("http://snomed.info/sct", vst.tOid2Url("2.16.840.1.113883.6.96"));
+        Assert.assertEquals("http://www2a.cdc.gov/vaccines/iis/iisstandards/vaccines.asp?rpt=cvx", vst.tOid2Url("2.16.840.1.113883.12.292"));
+        Assert.assertEquals("urn:oid:1.2.3.4", vst.tOid2Url("1.2.3.4"));
+        Assert.assertNull(CodeSystemRegistry.getDefault().getUrl(null));
+    }
+
+    @Test
+    public void testExternalFileAndReload() throws Exception {
+        Path file = Files.createTempFile("code-systems", ".properties");
+        try {
+            // a few thousand OIDs, one of them overriding a bundled mapping
+            List<String> lines = new ArrayList<String>();
+            for(int i = 0; i < 5000; i++)
+                lines.add("2.16.840.1.113883.19." + i + "=http://example.org/cs/" + i);
+            lines.add("2.16.840.1.113883.6.1=http://example.org/loinc");
+            Files.write(file, lines, StandardCharsets.UTF_8);
+
+            CodeSystemRegistry registry = new CodeSystemRegistry();
+            int bundled = registry.size();
+            registry.load(file);
+            Assert.assertEquals(bundled + 5000, registry.size());
+            for(int i = 0; i < 5000; i++)
+                Assert.assertEquals("http://example.org/cs/" + i, registry.getUrl("2.16.840.1.113883.19." + i));
+            Assert.assertEquals("http://example.org/loinc", registry.getUrl("2.16.840.1.113883.6.1"));
+            Assert.assertEquals("http://snomed.info/sct", registry.getUrl("2.16.840.1.113883.6.96"));
+            Assert.assertNull(registry.getUrl("2.16.840.1.113883.19.5000"));
+
+            // the updated file replaces the mappings loaded before
+            Files.write(file, "2.16.840.1.113883.19.5000=http://example.org/cs/new\n".getBytes(StandardCharsets.UTF_8));
+            registry.reload();
+            Assert.assertEquals(bundled + 1, registry.size());
+            Assert.assertEquals("http://example.org/cs/new", registry.getUrl("2.16.840.1.113883.19.5000"));
+            Assert.assertNull(registry.getUrl("2.16.840.1.113883.19.0"));
+            Assert.assertEquals("http://loinc.org", registry.getUrl("2.16.840.1.113883.6.1"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testCodeableConceptCacheFollowsReload() throws Exception {
+        CodeableConceptCache cache = new CodeableConceptCache();
+        DataTypesTransformerImpl cachingDtt = new DataTypesTransformerImpl();
+        cachingDtt.setCodeableConceptCache(cache);
+        CD cd = DatatypesFactory.eINSTANCE.createCD();
+        cd.setCode("8867-4");
+        cd.setCodeSystem("2.16.840.1.113883.6.1");
+
+        CodeSystemRegistry registry = CodeSystemRegistry.getDefault();
+        Path file = Files.createTempFile("code-systems", ".properties");
+        try {
+            registry.load(file);
+            Assert.assertEquals("http://loinc.org", cachingDtt.tCD2CodeableConcept(cd).getCoding().get(0).getSystem());
+            Assert.assertEquals("http://loinc.org", cachingDtt.tCD2CodeableConcept(cd).getCoding().get(0).getSystem());
+            Assert.assertEquals(1, cache.getHitCount());
+
+            // the codings cached before the reload are not returned afterwards
+            Files.write(file, "2.16.840.1.113883.6.1=http://example.org/loinc\n".getBytes(StandardCharsets.UTF_8));
+            registry.reload();
+            Assert.assertEquals("http://example.org/loinc", cachingDtt.tCD2CodeableConcept(cd).getCoding().get(0).getSystem());
+            Assert.assertEquals("http://example.org/loinc", cachingDtt.tCD2CodeableConcept(cd).getCoding().get(0).getSystem());
+            Assert.assertEquals(2, cache.getHitCount());
+        } finally {
+            // back to the bundled mappings
+            Files.write(file, new byte[0]);
+            registry.reload();
+            Files.delete(file);
+        }
+    }
+}
@@ -27,11 +27,13 @@ import ca.uhn.fhir.model.dstu2.composite.CodingDt;
 import ca.uhn.fhir.model.dstu2.composite.ContactPointDt;
 import ca.uhn.fhir.model.dstu2.composite.HumanNameDt;
 import ca.uhn.fhir.model.dstu2.composite.IdentifierDt;
+import ca.uhn.fhir.model.dstu2.composite.NarrativeDt;
 import ca.uhn.fhir.model.dstu2.composite.PeriodDt;
 import ca.uhn.fhir.model.dstu2.composite.QuantityDt;
 import ca.uhn.fhir.model.dstu2.composite.RangeDt;
 import ca.uhn.fhir.model.dstu2.composite.RatioDt;
 import ca.uhn.fhir.model.dstu2.composite.TimingDt;
+import ca.uhn.fhir.model.dstu2.resource.Composition;
 import ca.uhn.fhir.model.primitive.BooleanDt;
 import ca.uhn.fhir.model.primitive.DateDt;
 import ca.uhn.fhir.model.primitive.DateTimeDt;
@@ -40,11 +42,16 @@ import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.model.primitive.IntegerDt;
 import ca.uhn.fhir.model.primitive.StringDt;
 
+import java.io.ByteArrayInputStream;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.util.TimeZone;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.openhealthtools.mdht.uml.cda.ClinicalDocument;
+import org.openhealthtools.mdht.uml.cda.StrucDocText;
+import org.openhealthtools.mdht.uml.cda.util.CDAUtil;
 import org.openhealthtools.mdht.uml.hl7.datatypes.AD;
 import org.openhealthtools.mdht.uml.hl7.datatypes.BL;
 import org.openhealthtools.mdht.uml.hl7.datatypes.CD;
@@ -71,8 +78,11 @@ import org.openhealthtools.mdht.uml.hl7.vocab.NullFlavor;
 import org.openhealthtools.mdht.uml.hl7.vocab.PostalAddressUse;
 import org.openhealthtools.mdht.uml.hl7.vocab.TelecommunicationAddressUse;
 
+import tr.com.srdc.cda2fhir.transform.CodeableConceptCache;
 import tr.com.srdc.cda2fhir.transform.IDataTypesTransformer;
+import tr.com.srdc.cda2fhir.transform.StrucDocTextWriter;
 import tr.com.srdc.cda2fhir.transform.DataTypesTransformerImpl;
+import tr.com.srdc.cda2fhir.util.FHIRUtil;
 
 public class DataTypesTransformerTest{
 	IDataTypesTransformer dtt = new DataTypesTransformerImpl();
@@ -210,6 +220,58 @@ public class DataTypesTransformerTest{
         Assert.assertNull("CodeableConcept.nullFlavor set instance transform failed", codeableConcept3);
     }
     
+    @Test
+    public void testCD2CodeableConceptCached() {
+        CodeableConceptCache cache = new CodeableConceptCache(10);
+        DataTypesTransformerImpl cachingDtt = new DataTypesTransformerImpl();
+        cachingDtt.setCodeableConceptCache(cache);
+
+        CD cd = DatatypesFactory.eINSTANCE.createCD();
+        cd.setCode("8867-4");
+        cd.setCodeSystem("2.16.840.1.113883.6.1");
+        cd.setDisplayName("Heart rate");
+        CD translation = DatatypesFactory.eINSTANCE.createCD();
+        translation.setCode("364075005");
+        translation.setCodeSystem("2.16.840.1.113883.6.96");
+        cd.getTranslations().add(translation);
+
+        CodeableConceptDt first = cachingDtt.tCD2CodeableConcept(cd);
+        CodeableConceptDt second = cachingDtt.tCD2CodeableConcept(cd);
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        // each call gets its own instance, equal to the uncached transformation
+        Assert.assertNotSame(first, second);
+        Assert.assertNotSame(first.getCoding().get(0), second.getCoding().get(0));
+        CodeableConceptDt uncached = dtt.tCD2CodeableConcept(cd);
+        Assert.assertEquals(uncached.getCoding().size(), second.getCoding().size());
+        for(int i = 0; i < uncached.getCoding().size(); i++) {
+            Assert.assertEquals(uncached.getCoding().get(i).getSystem(), second.getCoding().get(i).getSystem());
+            Assert.assertEquals(uncached.getCoding().get(i).getCode(), second.getCoding().get(i).getCode());
+            Assert.assertEquals(uncached.getCoding().get(i).getVersion(), second.getCoding().get(i).getVersion());
+            Assert.assertEquals(uncached.getCoding().get(i).getDisplay(), second.getCoding().get(i).getDisplay());
+        }
+        first.setText("modified");
+        Assert.assertNull(cachingDtt.tCD2CodeableConcept(cd).getText());
+
+        // the translations are not part of the transformation excluding them
+        CodeableConceptDt excluding = cachingDtt.tCD2CodeableConceptExcludingTranslations(cd);
+        Assert.assertEquals(1, excluding.getCoding().size());
+        Assert.assertEquals(2, cache.getMissCount());
+
+        // a different translation is a different key
+        translation.setCode("78564009");
+        Assert.assertEquals("78564009", cachingDtt.tCD2CodeableConcept(cd).getCoding().get(1).getCode());
+
+        // empty coded values are cached as well, and still transformed to null
+        CD empty = DatatypesFactory.eINSTANCE.createCD();
+        Assert.assertNull(cachingDtt.tCD2CodeableConcept(empty));
+        Assert.assertNull(cachingDtt.tCD2CodeableConcept(empty));
+        CD nullFlavored = DatatypesFactory.eINSTANCE.createCD();
+        nullFlavored.setNullFlavor(NullFlavor.UNK);
+        Assert.assertNull(cachingDtt.tCD2CodeableConcept(nullFlavored));
+        Assert.assertEquals(4, cache.size());
+    }
+
     @Test
     public void testCV2Coding() {
     	// simple instance test
@@ -890,6 +952,106 @@ public class DataTypesTransformerTest{
     	Assert.assertEquals("TS.value was not transformed","2013-05-14T13:17:19"+getLocalTimeZoneString(),instant10.getValueAsString());
     }
     
+    @Test
+    public void testString2DateTimeEdgeCases() {
+    	// leading zeros of the fraction of a second are kept
+    	Assert.assertEquals("TS.value was not transformed","2013-05-14T13:17:19.045+01:00",dtt.tString2DateTime("20130514131719.045+0100").getValueAsString());
+    	
+    	// the fourth digit of the fraction is truncated
+    	Assert.assertEquals("TS.value was not transformed","2013-05-14T13:17:19.123+01:00",dtt.tString2DateTime("20130514131719.1234+0100").getValueAsString());
+    	
+    	// leap day
+    	Assert.assertEquals("TS.value was not transformed","2016-02-29",dtt.tString2DateTime("20160229").getValueAsString());
+    	
+    	// half hour timezone
+    	Assert.assertEquals("TS.value was not transformed","2016-05-27T15:40:00+05:30",dtt.tString2DateTime("201605271540+0530").getValueAsString());
+    	
+    	// malformed values
+    	Assert.assertNull("Malformed TS.value was transformed",dtt.tString2DateTime("2016ab"));
+    	Assert.assertNull("Malformed TS.value was transformed",dtt.tString2DateTime("2016052715"));
+    	Assert.assertNull("Malformed TS.value was transformed",dtt.tString2DateTime("20161301"));
+    	Assert.assertNull("Malformed TS.value was transformed",dtt.tString2DateTime("20150229"));
+    	Assert.assertNull("Malformed TS.value was transformed",dtt.tString2DateTime("20160527154000."));
+    	Assert.assertNull("Malformed TS.value was transformed",dtt.tString2DateTime("201605271540+08x0"));
+    }
+    
+    @Test
+    public void testString2DateTimeDefaultTimeZone() {
+    	// a value without a time zone is local time in the default time zone, with its daylight saving time offset at that time
+    	TimeZone defaultTimeZone = TimeZone.getDefault();
+    	try {
+    		TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+    		Assert.assertEquals("TS.value was not transformed","2006-06-28T14:24:00-04:00",dtt.tString2DateTime("20060628142400").getValueAsString());
+    		Assert.assertEquals("TS.value was not transformed","2006-01-28T14:24:00-05:00",dtt.tString2DateTime("20060128142400").getValueAsString());
+    	} finally {
+    		TimeZone.setDefault(defaultTimeZone);
+    	}
+    }
+    
+    @Test
+    public void testStrucDocText2Narrative() throws Exception {
+        String text = "<paragraph ID=\"p1\" styleCode=\"Bold\">A &amp;amp; B &lt;x&gt;\n\t&amp; C</paragraph><!-- note -->"
+                + "<list listType=\"ordered\"><item ID=\"i1\">one</item></list>"
+                + "<table border=\"1\"><tbody><tr><td><content styleCode=\"Italics\">cell</content></td></tr></tbody></table>"
+                + "<linkHtml href=\"http://example.org\">link</linkHtml>";
+        Assert.assertEquals("<div><p>A &amp; B &amp;lt;x&amp;gt;&amp; C</p><!--  note  --><ol><li>one</li></ol>"
+                + "<table border=\"1\"><tbody><tr><td><span>cell</span></td></tr></tbody></table><a href=\"http://example.org\">link</a></div>",
+                StrucDocTextWriter.toString(loadSectionText(text)));
+
+        // a large table is written in a single pass
+        StringBuilder rows = new StringBuilder("<table><tbody>");
+        for(int i = 0; i < 20000; i++)
+            rows.append("<tr ID=\"r").append(i).append("\"><td>Hemoglobin</td><td>13.2 g/dL</td></tr>");
+        rows.append("</tbody></table>");
+        String div = StrucDocTextWriter.toString(loadSectionText(rows.toString()));
+        Assert.assertEquals(20000, div.split("<tr>", -1).length - 1);
+        Assert.assertTrue(div.endsWith("<tr><td>Hemoglobin</td><td>13.2 g/dL</td></tr></tbody></table></div>"));
+    }
+
+    // a narrative that is not valid XHTML is left out by the deferred transformation as by the eager one
+    @Test
+    public void testStrucDocText2DeferredNarrativeInvalidXhtml() throws Exception {
+        StrucDocText sdt = loadSectionText("<paragraph title='a\"b'>text</paragraph>");
+        Assert.assertNull(dtt.tStrucDocText2Narrative(sdt));
+
+        NarrativeDt deferred = dtt.tStrucDocText2DeferredNarrative(sdt);
+        Composition composition = new Composition();
+        composition.addSection().setTitle("Section").setText(deferred);
+        String json = FHIRUtil.encodeToJSON(composition, false);
+        Assert.assertFalse(json, json.contains("\"text\""));
+        Assert.assertTrue(deferred.isEmpty());
+        Assert.assertNull(deferred.getStatus().getValueAsEnum());
+    }
+
+    // the single pass writes the same narrative text for each row of a table, however large the table is
+    @Test
+    public void testStrucDocText2NarrativeGrowsLinearly() throws Exception {
+        int[] sizes = {0, 1, 1000, 4000, 16000};
+        int[] lengths = new int[sizes.length];
+        for(int i = 0; i < sizes.length; i++) {
+            StringBuilder rows = new StringBuilder("<table><tbody>");
+            for(int row = 0; row < sizes[i]; row++)
+                rows.append(String.format("<tr ID=\"r%05d\"><td>Hemoglobin %05d</td><td>13.2 g/dL &amp; rising</td></tr>", row, row));
+            rows.append("</tbody></table>");
+            String narrative = StrucDocTextWriter.toString(loadSectionText(rows.toString()));
+            lengths[i] = narrative.length();
+            if(sizes[i] > 0)
+                Assert.assertTrue(narrative.contains(String.format("Hemoglobin %05d", sizes[i] - 1)));
+        }
+        int rowLength = lengths[1] - lengths[0];
+        Assert.assertTrue(rowLength > 0);
+        for(int i = 2; i < sizes.length; i++) {
+            Assert.assertEquals(lengths[0] + sizes[i] * rowLength, lengths[i]);
+        }
+    }
+
+    private StrucDocText loadSectionText(String text) throws Exception {
+        String xml = "<ClinicalDocument xmlns=\"urn:hl7-org:v3\"><component><structuredBody><component><section><text>"
+                + text + "</text></section></component></structuredBody></component></ClinicalDocument>";
+        ClinicalDocument cda = CDAUtil.load(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        return cda.getAllSections().get(0).getText();
+    }
+
 	// LocalTimeZone is used for the tests of TS2DateTime and TS2Instant
 	private String getLocalTimeZoneString() {
 		int timeZoneOffset = TimeZone.getDefault().getRawOffset();
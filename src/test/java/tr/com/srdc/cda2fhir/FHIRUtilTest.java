@@ -0,0 +1,119 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhealthtools.mdht.uml.cda.ClinicalDocument;
+import org.openhealthtools.mdht.uml.cda.util.CDAUtil;
+import tr.com.srdc.cda2fhir.conf.Config;
+import tr.com.srdc.cda2fhir.transform.CCDTransformerImpl;
+import tr.com.srdc.cda2fhir.util.FHIRUtil;
+import tr.com.srdc.cda2fhir.util.IdGeneratorEnum;
+
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FHIRUtilTest {
+
+    @BeforeClass
+    public static void init() {
+        // Load MDHT CDA packages. Otherwise ContinuityOfCareDocument and similar documents will not be recognised.
+        CDAUtil.loadPackages();
+    }
+
+    @Test
+    public void testConcurrentEncoding() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Config.setGenerateNarrative(false);
+        final Bundle bundle = new CCDTransformerImpl(IdGeneratorEnum.COUNTER).transformDocument(cda);
+        final String json = FHIRUtil.encodeToJSON(bundle);
+        final String compactXml = FHIRUtil.encodeToCompactXML(bundle);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for(int i = 0; i < 16; i++) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        Assert.assertNotSame(FHIRUtil.getJsonParser(true), FHIRUtil.getJsonParser(false));
+                        return json.equals(FHIRUtil.encodeToJSON(bundle)) && compactXml.equals(FHIRUtil.encodeToCompactXML(bundle));
+                    }
+                }));
+            }
+            for(Future<Boolean> future : futures)
+                Assert.assertTrue(future.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Encodings on threads that each run a single task, as virtual threads do, reuse the pooled parsers
+    @Test
+    public void testPooledParsersAcrossThreads() throws Exception {
+        final Patient patient = new Patient();
+        patient.setId("Patient/1");
+        final AtomicInteger created = new AtomicInteger();
+        final List<String> encoded = new ArrayList<String>();
+        try {
+            FHIRUtil.setParserCustomizer(parser -> created.incrementAndGet());
+            for(int i = 0; i < 16; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        encoded.add(FHIRUtil.encodeToCompactJSON(patient));
+                    }
+                });
+                thread.start();
+                thread.join();
+            }
+        } finally {
+            FHIRUtil.setParserCustomizer(null);
+        }
+        Assert.assertEquals(16, encoded.size());
+        Assert.assertTrue(encoded.get(15).contains("\"id\":\"1\""));
+        Assert.assertEquals(1, created.get());
+    }
+
+    @Test
+    public void testParserCustomizer() {
+        Patient patient = new Patient();
+        patient.setId("Patient/1");
+        Assert.assertSame(FHIRUtil.getJsonParser(false), FHIRUtil.getJsonParser(false));
+        Assert.assertTrue(FHIRUtil.encodeToCompactJSON(patient).contains("\"id\":\"1\""));
+
+        try {
+            FHIRUtil.setParserCustomizer(parser -> parser.setOmitResourceId(true));
+            Assert.assertFalse(FHIRUtil.encodeToCompactJSON(patient).contains("\"id\":\"1\""));
+        } finally {
+            FHIRUtil.setParserCustomizer(null);
+        }
+        Assert.assertTrue(FHIRUtil.encodeToCompactJSON(patient).contains("\"id\":\"1\""));
+    }
+}
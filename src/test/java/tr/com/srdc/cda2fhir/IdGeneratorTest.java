@@ -0,0 +1,146 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.eclipse.emf.common.util.TreeIterator;
+import org.eclipse.emf.ecore.EObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openhealthtools.mdht.uml.cda.ClinicalDocument;
+import org.openhealthtools.mdht.uml.cda.util.CDAUtil;
+import tr.com.srdc.cda2fhir.util.BlockCounterIdGenerator;
+import tr.com.srdc.cda2fhir.util.ContentHashIdGenerator;
+import tr.com.srdc.cda2fhir.util.FastUUIDIdGenerator;
+import tr.com.srdc.cda2fhir.util.IIdGenerator;
+import tr.com.srdc.cda2fhir.util.Murmur3;
+import tr.com.srdc.cda2fhir.util.StringUtil;
+
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class IdGeneratorTest {
+
+    @Test
+    public void testBlockCounterIsDenseOnSingleThread() {
+        IIdGenerator idGen = new BlockCounterIdGenerator(4);
+        for(int i = 1; i <= 10; i++) {
+            Assert.assertEquals(Integer.toString(i), idGen.generateId());
+        }
+    }
+
+    @Test
+    public void testBlockCountersOfDocumentsAreIndependent() {
+        // the generators of two documents used alternately by the same thread
+        IIdGenerator first = new BlockCounterIdGenerator(4);
+        IIdGenerator second = new BlockCounterIdGenerator(4);
+        Assert.assertEquals("1", first.generateId());
+        Assert.assertEquals("1", second.generateId());
+        Assert.assertEquals("2", second.generateId());
+        // the rest of the first block was dropped on the switch
+        Assert.assertEquals("5", first.generateId());
+        Assert.assertEquals("6", first.generateId());
+    }
+
+    @Test
+    public void testBlockCounterIsUniqueAcrossThreads() throws Exception {
+        final IIdGenerator idGen = new BlockCounterIdGenerator();
+        final Set<String> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < 8; t++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    for(int i = 0; i < 10000; i++) {
+                        ids.add(idGen.generateId());
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(80000, ids.size());
+    }
+
+    @Test
+    public void testContentHashIdsDoNotDependOnRequestOrder() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        // the identified artifacts of the document, some of which carry the same identifiers (e.g. the same author)
+        List<EObject> sources = new ArrayList<EObject>();
+        for(TreeIterator<EObject> it = cda.eAllContents(); it.hasNext(); ) {
+            EObject source = it.next();
+            if(source.eClass().getEStructuralFeature("id") != null)
+                sources.add(source);
+        }
+
+        IIdGenerator inOrder = new ContentHashIdGenerator();
+        List<String> inOrderIds = new ArrayList<String>();
+        for(EObject source : sources) {
+            inOrderIds.add(inOrder.generateId("Practitioner", source));
+        }
+        IIdGenerator reversed = new ContentHashIdGenerator();
+        List<String> reversedIds = new ArrayList<String>();
+        for(int i = sources.size() - 1; i >= 0; i--) {
+            reversedIds.add(reversed.generateId("Practitioner", sources.get(i)));
+        }
+        Collections.reverse(reversedIds);
+
+        Assert.assertEquals(inOrderIds, reversedIds);
+        Assert.assertEquals(sources.size(), new HashSet<String>(inOrderIds).size());
+    }
+
+    @Test
+    public void testFastUUIDFormat() {
+        for(int i = 0; i < 1000; i++) {
+            String random = FastUUIDIdGenerator.RANDOM.generateId();
+            Assert.assertTrue(StringUtil.isUUID(random));
+            Assert.assertEquals('4', random.charAt(14));
+            Assert.assertTrue("89ab".indexOf(random.charAt(19)) >= 0);
+
+            String timeOrdered = FastUUIDIdGenerator.TIME_ORDERED.generateId();
+            Assert.assertTrue(StringUtil.isUUID(timeOrdered));
+            Assert.assertEquals('7', timeOrdered.charAt(14));
+            Assert.assertTrue("89ab".indexOf(timeOrdered.charAt(19)) >= 0);
+        }
+    }
+
+    @Test
+    public void testFastTimeOrderedUUIDIsOrderedByMillis() throws Exception {
+        String first = FastUUIDIdGenerator.TIME_ORDERED.generateId();
+        Thread.sleep(2);
+        String second = FastUUIDIdGenerator.TIME_ORDERED.generateId();
+        Assert.assertTrue(first.substring(0, 13).compareTo(second.substring(0, 13)) < 0);
+    }
+
+    @Test
+    public void testMurmur3ReferenceValue() {
+        long[] hash = Murmur3.hash128("The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8), 0);
+        Assert.assertEquals(0xe34bbc7bbc071b6cL, hash[0]);
+        Assert.assertEquals(0x7a433ca9c49a9347L, hash[1]);
+    }
+}
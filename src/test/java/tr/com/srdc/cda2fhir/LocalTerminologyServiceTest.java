@@ -0,0 +1,58 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+import tr.com.srdc.cda2fhir.validation.LocalTerminologyService;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+public class LocalTerminologyServiceTest {
+
+    @Test
+    public void testCodeSystemsAndValueSets() throws Exception {
+        LocalTerminologyService service = LocalTerminologyService.load(Paths.get("src/test/resources/terminology/local-terminology.tsv"), null);
+        Assert.assertNull(service.getServerURL());
+        Assert.assertEquals(2, service.getCodeSystemCount());
+        Assert.assertEquals(1, service.getValueSetCount());
+
+        Assert.assertTrue(service.isKnownCodeSystem("http://loinc.org"));
+        Assert.assertTrue(service.isValidCode("http://loinc.org", "8302-2"));
+        Assert.assertFalse(service.isValidCode("http://loinc.org", "0000-0"));
+        Assert.assertEquals("Heart rate", service.getDisplay("http://loinc.org", "8867-4"));
+        Assert.assertNull(service.getDisplay("http://hl7.org/fhir/observation-status", "final"));
+
+        Assert.assertFalse(service.isKnownCodeSystem("http://snomed.info/sct"));
+        Assert.assertFalse(service.isValidCode("http://snomed.info/sct", "38341003"));
+
+        Assert.assertTrue(service.isInValueSet("http://hl7.org/fhir/ValueSet/observation-status", "http://hl7.org/fhir/observation-status", "final"));
+        Assert.assertFalse(service.isInValueSet("http://hl7.org/fhir/ValueSet/observation-status", "http://hl7.org/fhir/observation-status", "amended"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedRecord() throws Exception {
+        LocalTerminologyService.load(new ByteArrayInputStream("CodeSystem\thttp://loinc.org\n".getBytes(StandardCharsets.UTF_8)), null);
+    }
+}
@@ -0,0 +1,132 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Bundle.Entry;
+import ca.uhn.fhir.parser.IParser;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhealthtools.mdht.uml.cda.ClinicalDocument;
+import org.openhealthtools.mdht.uml.cda.util.CDAUtil;
+import tr.com.srdc.cda2fhir.conf.Config;
+import tr.com.srdc.cda2fhir.transform.BatchProgress;
+import tr.com.srdc.cda2fhir.transform.BatchTransformerImpl;
+import tr.com.srdc.cda2fhir.transform.CCDTransformerImpl;
+import tr.com.srdc.cda2fhir.transform.NdjsonBundleSink;
+import tr.com.srdc.cda2fhir.util.IdGeneratorEnum;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+public class NdjsonBundleSinkTest {
+
+    private static final Path OUTPUT_DIR = Paths.get("src/test/resources/output/ndjson");
+
+    @BeforeClass
+    public static void init() {
+        // Load MDHT CDA packages. Otherwise ContinuityOfCareDocument and similar documents will not be recognised.
+        CDAUtil.loadPackages();
+    }
+
+    // C-CDA_R2-1_CCD.xml - a file per resource type, gzip compressed
+    @Test
+    public void testReferenceCCDInstancePerResourceType() throws Exception {
+        ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+        Bundle bundle = new CCDTransformerImpl(IdGeneratorEnum.COUNTER).transformDocument(cda);
+
+        Path directory = OUTPUT_DIR.resolve("per-type");
+        try (NdjsonBundleSink sink = new NdjsonBundleSink(directory, true)) {
+            sink.accept(0, bundle);
+            Assert.assertEquals(bundle.getEntry().size(), sink.getResourceCount());
+        }
+
+        Map<String, Integer> expectedCounts = new HashMap<String, Integer>();
+        for(Entry entry : bundle.getEntry())
+            expectedCounts.merge(entry.getResource().getResourceName(), 1, Integer::sum);
+
+        IParser jsonParser = Config.getFhirContext().newJsonParser();
+        for(Map.Entry<String, Integer> expected : expectedCounts.entrySet()) {
+            List<String> lines = readLines(directory.resolve(expected.getKey() + NdjsonBundleSink.GZIP_FILE_EXTENSION), true);
+            Assert.assertEquals(expected.getValue().intValue(), lines.size());
+            for(String line : lines) {
+                IResource resource = (IResource) jsonParser.parseResource(line);
+                Assert.assertEquals(expected.getKey(), resource.getResourceName());
+            }
+        }
+    }
+
+    // a batch of documents into a single file, one resource per line
+    @Test
+    public void testBatchSingleFile() throws Exception {
+        Stream<Path> paths = Stream.of(
+                Paths.get("src/test/resources/170.315_b1_toc_gold_sample2_v1.xml"),
+                Paths.get("src/test/resources/missing.xml"),
+                Paths.get("src/test/resources/C-CDA_R2-1_CCD.xml"));
+
+        Path file = OUTPUT_DIR.resolve("batch.ndjson");
+        BatchProgress progress;
+        long resourceCount;
+        try (NdjsonBundleSink sink = NdjsonBundleSink.singleFile(file, false)) {
+            progress = new BatchTransformerImpl(new CCDTransformerImpl(IdGeneratorEnum.COUNTER), 2).transformAll(paths, sink);
+            resourceCount = sink.getResourceCount();
+            Assert.assertEquals(1, sink.getErrorCount());
+            // the lines written so far are readable once flushed, before the sink is closed
+            sink.flush();
+            Assert.assertEquals(resourceCount, readLines(file, false).size());
+        }
+
+        Assert.assertEquals(2, progress.getSucceeded());
+        List<String> lines = readLines(file, false);
+        Assert.assertEquals(resourceCount, lines.size());
+        IParser jsonParser = Config.getFhirContext().newJsonParser();
+        for(String line : lines)
+            Assert.assertNotNull(jsonParser.parseResource(line));
+    }
+
+    private static List<String> readLines(Path file, boolean gzip) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        InputStream is = Files.newInputStream(file);
+        if(gzip)
+            is = new GZIPInputStream(is);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null)
+                lines.add(line);
+        }
+        return lines;
+    }
+}
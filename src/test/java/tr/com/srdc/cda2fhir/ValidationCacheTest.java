@@ -0,0 +1,84 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
+import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
+import ca.uhn.fhir.model.dstu2.valueset.IssueTypeEnum;
+import org.junit.Assert;
+import org.junit.Test;
+import tr.com.srdc.cda2fhir.validation.ValidationCache;
+import tr.com.srdc.cda2fhir.validation.ValidationIssue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class ValidationCacheTest {
+
+    @Test
+    public void testResourcesDifferingInIdsAreValidatedOnce() {
+        final AtomicInteger validations = new AtomicInteger();
+        Function<IResource, List<ValidationIssue>> validator = resource -> {
+            validations.incrementAndGet();
+            return Collections.singletonList(new ValidationIssue(0, resource.getId().getValue(), IssueSeverityEnum.WARNING,
+                    IssueTypeEnum.INFORMATIONAL_NOTE, "Organization.telecom", "No telecom"));
+        };
+        ValidationCache cache = new ValidationCache();
+
+        List<ValidationIssue> first = cache.get(organization("Organization/1", "Community Health and Hospitals"), 0, validator);
+        List<ValidationIssue> second = cache.get(organization("Organization/2", "Community Health and Hospitals"), 5, validator);
+        cache.get(organization("Organization/3", "Good Health Clinic"), 6, validator);
+
+        Assert.assertEquals(2, validations.get());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(first.get(0).getMessage(), second.get(0).getMessage());
+        Assert.assertEquals(5, second.get(0).getEntryIndex());
+        Assert.assertEquals("Organization/2", second.get(0).getResourceId());
+    }
+
+    @Test
+    public void testFailedValidationIsNotCached() {
+        final AtomicInteger validations = new AtomicInteger();
+        Function<IResource, List<ValidationIssue>> validator = resource -> {
+            validations.incrementAndGet();
+            return Collections.singletonList(new ValidationIssue(0, resource.getId().getValue(), IssueSeverityEnum.FATAL,
+                    IssueTypeEnum.EXCEPTION, null, "Terminology server is not reachable"));
+        };
+        ValidationCache cache = new ValidationCache();
+
+        cache.get(organization("Organization/1", "Community Health and Hospitals"), 0, validator);
+        cache.get(organization("Organization/1", "Community Health and Hospitals"), 0, validator);
+        Assert.assertEquals(2, validations.get());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    private static Organization organization(String id, String name) {
+        Organization organization = new Organization();
+        organization.setId(id);
+        organization.setName(name);
+        return organization;
+    }
+}
@@ -0,0 +1,51 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.Assert;
+import org.junit.Test;
+import tr.com.srdc.cda2fhir.validation.ValidationDefinitions;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public class ValidationDefinitionsTest {
+
+    @Test
+    public void testClasspathDefinitionsAreCopiedToFile() throws Exception {
+        ValidationDefinitions definitions = ValidationDefinitions.resolve("classpath:validation-min.xml.zip");
+        Assert.assertTrue(Files.isReadable(definitions.getPath()));
+        Assert.assertTrue(definitions.getPath().toString().endsWith(".zip"));
+        Assert.assertEquals(Files.size(Paths.get("src/main/resources/validation-min.xml.zip")), Files.size(definitions.getPath()));
+    }
+
+    @Test
+    public void testSharedDefinitionsAreResolvedOnce() {
+        Assert.assertSame(ValidationDefinitions.getShared(), ValidationDefinitions.getShared());
+        Assert.assertTrue(Files.isReadable(ValidationDefinitions.getShared().getPath()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingDefinitions() throws Exception {
+        ValidationDefinitions.resolve("classpath:no-such-definitions.zip");
+    }
+}
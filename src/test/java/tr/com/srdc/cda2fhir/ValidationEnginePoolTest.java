@@ -0,0 +1,64 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.hl7.fhir.dstu2.validation.ValidationEngine;
+import org.junit.Assert;
+import org.junit.Test;
+import tr.com.srdc.cda2fhir.validation.ValidationEnginePool;
+
+public class ValidationEnginePoolTest {
+
+    @Test
+    public void testExplicitServerIsKept() throws Exception {
+        ValidationEnginePool pool = new ValidationEnginePool(1);
+        Assert.assertTrue(pool.connectToDefaultTSServer("http://fallback.example.org/r2"));
+        // a later validator keeps the server of the pool
+        Assert.assertFalse(pool.connectToDefaultTSServer("http://other.example.org/r2"));
+        Assert.assertTrue(pool.connectToDiscoveredTSServer("http://discovered.example.org/r2"));
+        Assert.assertEquals("http://discovered.example.org/r2", pool.getTerminologyServer());
+
+        pool.connectToTSServer("http://explicit.example.org/r2");
+        Assert.assertTrue(pool.isTerminologyServerSet());
+        Assert.assertFalse(pool.connectToDiscoveredTSServer("http://discovered.example.org/r2"));
+        Assert.assertFalse(pool.connectToDefaultTSServer("http://fallback.example.org/r2"));
+        Assert.assertEquals("http://explicit.example.org/r2", pool.getTerminologyServer());
+    }
+
+    @Test(timeout = 60000)
+    public void testServerChangeDoesNotWaitForEnginesInUse() throws Exception {
+        ValidationEnginePool pool = new ValidationEnginePool(1);
+        pool.connectToDefaultTSServer("http://fallback.example.org/r2");
+        ValidationEngine engine = pool.acquire();
+        // the only engine is in use; the new server is picked up when the engine is acquired again
+        pool.connectToTSServer("http://explicit.example.org/r2");
+        pool.release(engine);
+        Assert.assertSame(engine, pool.acquire());
+        pool.release(engine);
+    }
+
+    @Test
+    public void testSharedPoolGrows() {
+        ValidationEnginePool pool = ValidationEnginePool.getShared(1);
+        Assert.assertSame(pool, ValidationEnginePool.getShared(2));
+        Assert.assertTrue(pool.getSize() >= 2);
+    }
+}
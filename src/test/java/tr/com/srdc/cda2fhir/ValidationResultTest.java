@@ -0,0 +1,67 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
+import ca.uhn.fhir.model.dstu2.valueset.IssueTypeEnum;
+import org.junit.Assert;
+import org.junit.Test;
+import tr.com.srdc.cda2fhir.validation.ValidationIssue;
+import tr.com.srdc.cda2fhir.validation.ValidationResult;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ValidationResultTest {
+
+    @Test
+    public void testIssuesByEntry() {
+        ValidationResult result = new ValidationResult(Arrays.asList("Patient/1", null, "Observation/2"), Arrays.asList(
+                new ValidationIssue(0, "Patient/1", IssueSeverityEnum.WARNING, IssueTypeEnum.INFORMATIONAL_NOTE, "Patient.name", "No family name"),
+                new ValidationIssue(2, "Observation/2", IssueSeverityEnum.ERROR, IssueTypeEnum.REQUIRED_ELEMENT_MISSING, "Observation.code", "Element <code> is required")), true);
+
+        Assert.assertFalse(result.isValid());
+        Assert.assertTrue(result.isComplete());
+        Assert.assertEquals(3, result.getEntryCount());
+        Assert.assertEquals(1, result.getErrors().size());
+        Assert.assertEquals("Observation.code", result.getErrors().get(0).getLocation());
+        Assert.assertTrue(result.getIssues(1).isEmpty());
+
+        OperationOutcome outcome = result.getOperationOutcome(2);
+        Assert.assertEquals(1, outcome.getIssue().size());
+        Assert.assertEquals(IssueSeverityEnum.ERROR.getCode(), outcome.getIssue().get(0).getSeverity());
+        Assert.assertEquals("Element <code> is required", outcome.getIssue().get(0).getDiagnostics());
+
+        String html = result.toHtml();
+        Assert.assertTrue(html.contains("<h3>Patient/1</h3>"));
+        Assert.assertTrue(html.contains("Element &lt;code&gt; is required"));
+        Assert.assertEquals(2, html.split("<hr>", -1).length - 1);
+    }
+
+    @Test
+    public void testNoIssues() {
+        ValidationResult result = new ValidationResult(Collections.singletonList("Patient/1"), Collections.<ValidationIssue>emptyList(), true);
+        Assert.assertTrue(result.isValid());
+        Assert.assertTrue(result.toHtml().contains("All OK"));
+        Assert.assertTrue(result.getOperationOutcome(0).getIssue().isEmpty());
+    }
+}
@@ -24,6 +24,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -31,12 +36,17 @@ import org.openhealthtools.mdht.uml.cda.ClinicalDocument;
 import org.openhealthtools.mdht.uml.cda.util.CDAUtil;
 
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.valueset.IssueTypeEnum;
 import tr.com.srdc.cda2fhir.conf.Config;
 import tr.com.srdc.cda2fhir.transform.CCDTransformerImpl;
 import tr.com.srdc.cda2fhir.transform.ICDATransformer;
 import tr.com.srdc.cda2fhir.util.FHIRUtil;
 import tr.com.srdc.cda2fhir.util.IdGeneratorEnum;
+import tr.com.srdc.cda2fhir.validation.ITerminologyService;
 import tr.com.srdc.cda2fhir.validation.IValidator;
+import tr.com.srdc.cda2fhir.validation.LocalTerminologyService;
+import tr.com.srdc.cda2fhir.validation.ValidationIssue;
+import tr.com.srdc.cda2fhir.validation.ValidationResult;
 import tr.com.srdc.cda2fhir.validation.ValidatorImpl;
 
 public class ValidatorTest {
@@ -108,6 +118,78 @@ public class ValidatorTest {
 		transformAndValidate(cdaResourcePath, targetPathForFHIRResource, targetPathForResultFile, generateDAFProfileMetadata);
 	}
 	
+	// C-CDA_R2-1_CCD.xml with DAF profile, entries validated concurrently give the same issues in the same order as the sequential validation
+	@Test
+	public void testReferenceCCDBundleWithProfileConcurrently() throws Exception {
+		ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+		Config.setGenerateDafProfileMetadata(true);
+		Bundle bundle = new CCDTransformerImpl(IdGeneratorEnum.COUNTER).transformDocument(cda);
+
+		ValidationResult sequential = new ValidatorImpl(1).validate(bundle, false);
+		ValidationResult concurrent = new ValidatorImpl(4).validate(bundle, false);
+		Assert.assertTrue(concurrent.isComplete());
+		Assert.assertEquals(sequential.getEntryCount(), concurrent.getEntryCount());
+		Assert.assertEquals(toStrings(sequential.getIssues()), toStrings(concurrent.getIssues()));
+	}
+	
+	// Setting the terminology server of a validator changes only the validators sharing its engines
+	@Test
+	public void testTerminologyServerPerValidator() throws Exception {
+		ValidatorImpl validator = new ValidatorImpl(1);
+		ValidatorImpl other = new ValidatorImpl(1);
+		String otherServer = other.getTerminologyServer();
+		validator.setTerminologyServer("http://localhost:1/fhir");
+		Assert.assertEquals("http://localhost:1/fhir", validator.getTerminologyServer());
+		Assert.assertEquals(otherServer, other.getTerminologyServer());
+
+		ValidatorImpl shared = ValidatorImpl.sharingEngines(1);
+		ValidatorImpl otherShared = ValidatorImpl.sharingEngines(2);
+		shared.setTerminologyServer("http://localhost:2/fhir");
+		Assert.assertEquals("http://localhost:2/fhir", otherShared.getTerminologyServer());
+		Assert.assertEquals(otherServer, other.getTerminologyServer());
+	}
+	
+	// C-CDA_R2-1_CCD.xml with DAF profile, structured result
+	@Test
+	public void testReferenceCCDBundleResult() throws Exception {
+		ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+		Config.setGenerateDafProfileMetadata(true);
+		Bundle bundle = new CCDTransformerImpl(IdGeneratorEnum.COUNTER).transformDocument(cda);
+
+		IValidator validator = new ValidatorImpl();
+		ValidationResult result = validator.validate(bundle, false);
+		Assert.assertTrue(result.isComplete());
+		Assert.assertEquals(bundle.getEntry().size(), result.getEntryCount());
+		for(ValidationIssue issue : result.getIssues())
+			Assert.assertTrue(issue.getEntryIndex() >= 0 && issue.getEntryIndex() < bundle.getEntry().size());
+
+		ValidationResult firstErrorResult = validator.validate(bundle, true);
+		Assert.assertEquals(result.isValid(), firstErrorResult.isValid());
+		if(!firstErrorResult.isValid())
+			Assert.assertEquals(result.getErrors().get(0).getEntryIndex(), firstErrorResult.getErrors().get(0).getEntryIndex());
+	}
+	
+	// C-CDA_R2-1_CCD.xml with DAF profile, codes checked by a local terminology service
+	// LOINC 8480-6 is not listed in local-terminology.tsv whereas 8302-2 is
+	@Test
+	public void testReferenceCCDBundleWithLocalTerminology() throws Exception {
+		ClinicalDocument cda = CDAUtil.load(new FileInputStream("src/test/resources/C-CDA_R2-1_CCD.xml"));
+		Config.setGenerateDafProfileMetadata(true);
+		Bundle bundle = new CCDTransformerImpl(IdGeneratorEnum.COUNTER).transformDocument(cda);
+
+		ITerminologyService terminologyService = LocalTerminologyService.load(Paths.get("src/test/resources/terminology/local-terminology.tsv"), null);
+		ValidationResult result = new ValidatorImpl(1, terminologyService).validate(bundle, false);
+
+		List<String> invalidCodes = new ArrayList<String>();
+		for(ValidationIssue issue : result.getIssues()) {
+			if(issue.getCode() == IssueTypeEnum.INVALID_CODE)
+				invalidCodes.add(issue.getMessage());
+		}
+		Assert.assertTrue(invalidCodes.contains("Code 8480-6 is not defined in the code system http://loinc.org"));
+		for(String message : invalidCodes)
+			Assert.assertFalse(message, message.startsWith("Code 8302-2 "));
+	}
+	
 	// Vitera_CCDA_SMART_Sample.xml without profile
 	@Ignore
 	public void testViteraBundleWithoutProfile() throws Exception {	
@@ -128,6 +210,13 @@ public class ValidatorTest {
 		transformAndValidate(cdaResourcePath, targetPathForFHIRResource, targetPathForResultFile, generateDAFProfileMetadata);
 	}
 	
+	private static List<String> toStrings(List<ValidationIssue> issues) {
+		List<String> strings = new ArrayList<String>();
+		for(ValidationIssue issue : issues)
+			strings.add(issue.toString());
+		return strings;
+	}
+	
 	/**
 	 * Transforms a CDA resource to a FHIR resource, validates the FHIR resource and prints the validation result to the target path.
 	 * @param cdaResourcePath A file path of the CDA resource that is to be transformed
@@ -137,7 +226,19 @@ public class ValidatorTest {
 	 * @throws Exception
 	 */
 	private void transformAndValidate(String cdaResourcePath, String targetPathForFHIRResource, String targetPathForResultFile, boolean generateDAFProfileMetadata) throws Exception {
-		IValidator validator = new ValidatorImpl();
+		transformAndValidate(new ValidatorImpl(), cdaResourcePath, targetPathForFHIRResource, targetPathForResultFile, generateDAFProfileMetadata);
+	}
+
+	/**
+	 * Transforms a CDA resource to a FHIR resource, validates the FHIR resource with the given validator and prints the validation result to the target path.
+	 * @param validator The validator to be used
+	 * @param cdaResourcePath A file path of the CDA resource that is to be transformed
+	 * @param targetPathForFHIRResource A file path where the FHIR resource is to be created
+	 * @param targetPathForResultFile A file path where the validation result file is to be created
+	 * @param generateDAFProfileMetadata A boolean indicating whether the generated resources will include DAF profile declarations in meta.profile
+	 * @throws Exception
+	 */
+	private void transformAndValidate(IValidator validator, String cdaResourcePath, String targetPathForFHIRResource, String targetPathForResultFile, boolean generateDAFProfileMetadata) throws Exception {
 		ByteArrayOutputStream os = null;
 		
 		// file to be transformed
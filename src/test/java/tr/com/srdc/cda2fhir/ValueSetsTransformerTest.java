@@ -0,0 +1,77 @@
+package tr.com.srdc.cda2fhir;
+
+/*
+ * #%L
+ * CDA to FHIR Transformer Library
+ * %%
+ * Copyright (C) 2016 SRDC Yazilim Arastirma ve Gelistirme ve Danismanlik Tic. A.S.
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.model.dstu2.composite.CodeableConceptDt;
+import ca.uhn.fhir.model.dstu2.composite.CodingDt;
+import org.junit.Assert;
+import org.junit.Test;
+import org.openhealthtools.mdht.uml.hl7.datatypes.CD;
+import org.openhealthtools.mdht.uml.hl7.datatypes.DatatypesFactory;
+import org.openhealthtools.mdht.uml.hl7.vocab.NullFlavor;
+import org.openhealthtools.mdht.uml.hl7.vocab.ParticipationType;
+import tr.com.srdc.cda2fhir.transform.IValueSetsTransformer;
+import tr.com.srdc.cda2fhir.transform.ValueSetsTransformerImpl;
+
+public class ValueSetsTransformerTest {
+    IValueSetsTransformer vst = new ValueSetsTransformerImpl();
+
+    @Test
+    public void testFixedCodingsAreShared() {
+        CodingDt unknown = vst.tNullFlavor2DataAbsentReasonCode(NullFlavor.UNK);
+        Assert.assertEquals("http://hl7.org/fhir/data-absent-reason", unknown.getSystem());
+        Assert.assertEquals("unknown", unknown.getCode());
+        Assert.assertSame(unknown, vst.tNullFlavor2DataAbsentReasonCode(NullFlavor.UNK));
+        Assert.assertSame(unknown, new ValueSetsTransformerImpl().tNullFlavor2DataAbsentReasonCode(NullFlavor.UNK));
+
+        CodingDt author = vst.tParticipationType2ParticipationTypeCode(ParticipationType.AUT);
+        Assert.assertEquals("AUT", author.getCode());
+        Assert.assertEquals("author", author.getDisplay());
+        Assert.assertSame(author, vst.tParticipationType2ParticipationTypeCode(ParticipationType.AUT));
+
+        CodingDt parent = vst.tRoleCode2PatientContactRelationshipCode("MTH");
+        Assert.assertEquals("parent", parent.getCode());
+        Assert.assertSame(parent, vst.tRoleCode2PatientContactRelationshipCode("MTH"));
+        Assert.assertNull(vst.tRoleCode2PatientContactRelationshipCode("unknownRole"));
+    }
+
+    @Test
+    public void testObservationInterpretationCode() {
+        CD high = DatatypesFactory.eINSTANCE.createCD();
+        high.setCode("HX");
+        CodeableConceptDt first = vst.tObservationInterpretationCode2ObservationInterpretationCode(high);
+        CodeableConceptDt second = vst.tObservationInterpretationCode2ObservationInterpretationCode(high);
+        Assert.assertEquals("H", first.getCodingFirstRep().getCode());
+        Assert.assertEquals("High", first.getCodingFirstRep().getDisplay());
+        // the concepts are distinct, the coding is shared
+        Assert.assertNotSame(first, second);
+        Assert.assertSame(first.getCodingFirstRep(), second.getCodingFirstRep());
+
+        // an unmapped code is carried over with its display name
+        CD normal = DatatypesFactory.eINSTANCE.createCD();
+        normal.setCode("N");
+        normal.setDisplayName("Normal");
+        CodeableConceptDt normalConcept = vst.tObservationInterpretationCode2ObservationInterpretationCode(normal);
+        Assert.assertEquals("http://hl7.org/fhir/v2/0078", normalConcept.getCodingFirstRep().getSystem());
+        Assert.assertEquals("N", normalConcept.getCodingFirstRep().getCode());
+        Assert.assertEquals("Normal", normalConcept.getCodingFirstRep().getDisplay());
+    }
+}